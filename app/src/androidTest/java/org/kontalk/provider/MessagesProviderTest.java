@@ -18,7 +18,13 @@
 
 package org.kontalk.provider;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.After;
@@ -28,17 +34,22 @@ import org.junit.runner.RunWith;
 import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 import android.test.MoreAsserts;
 import android.test.ProviderTestCase2;
 
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.SystemUtils;
@@ -46,6 +57,7 @@ import org.kontalk.util.SystemUtils;
 
 @RunWith(AndroidJUnit4.class)
 public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
+    private static final String TAG = MessagesProviderTest.class.getSimpleName();
 
     private static final String TEST_USERID = XmppStringUtils
         .completeJidFrom(MessageUtils.sha1("+15555215554"), "prime.kontalk.net");
@@ -183,6 +195,328 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         c.close();
     }
 
+    @Test
+    public void testThreadCounters() {
+        String peer = "counters@prime.kontalk.net";
+        Uri in1 = insertIncomingMessage(peer, true);
+        Uri in2 = insertIncomingMessage(peer, true);
+        Uri out = MessagesProviderUtils.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), peer, "Test message for you", true);
+        assertNotNull(out);
+        long threadId = MessagesProviderUtils.getThreadByMessage(getMockContext(), in1);
+        Uri thread = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
+        assertThreadCounters(thread, 3, 2, 2);
+
+        // mark as read
+        ContentValues values = new ContentValues(2);
+        values.put(Messages.UNREAD, false);
+        values.put(Messages.NEW, false);
+        getMockContentResolver().update(in1, values, null, null);
+        assertThreadCounters(thread, 3, 1, 1);
+        // updating again shouldn't change anything
+        getMockContentResolver().update(in1, values, null, null);
+        assertThreadCounters(thread, 3, 1, 1);
+
+        // status change
+        values = new ContentValues(1);
+        values.put(Messages.STATUS, Messages.STATUS_SENT);
+        getMockContentResolver().update(out, values, null, null);
+        assertThreadCounters(thread, 3, 1, 1);
+
+        MessagesProviderUtils.deleteMessage(getMockContext(), ContentUris.parseId(in2));
+        assertThreadCounters(thread, 2, 0, 0);
+
+        assertEquals(0, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+    }
+
+    @Test
+    public void testRepairManyThreadCounters() {
+        // more threads than SQLite bound variables
+        int count = 1200;
+
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++)
+            values[i] = incomingMessageValues("repair" + i + "@prime.kontalk.net", true);
+        assertEquals(count, getMockContentResolver().bulkInsert(Messages.CONTENT_URI, values));
+
+        // break the counters of all threads
+        ContentValues broken = new ContentValues(1);
+        broken.put(Threads.COUNT, 0);
+        for (int i = 0; i < count; i++) {
+            long threadId = getThreadByPeer("repair" + i + "@prime.kontalk.net");
+            getMockContentResolver().update(ContentUris
+                .withAppendedId(Threads.CONTENT_URI, threadId), broken, null, null);
+        }
+
+        assertEquals(count, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+        assertThreadCounters(ContentUris.withAppendedId(Threads.CONTENT_URI,
+            getThreadByPeer("repair0@prime.kontalk.net")), 1, 1, 1);
+        assertEquals(0, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+    }
+
+    @Test
+    public void testBulkInsert() {
+        String peer = "bulk@prime.kontalk.net";
+        String word = StringUtils.randomString(12);
+        // more than one yield point
+        int count = 250;
+
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++)
+            values[i] = incomingMessageValues(peer, "Bulk message " + word, true);
+        assertEquals(count, getMockContentResolver().bulkInsert(Messages.CONTENT_URI, values));
+
+        long threadId = getThreadByPeer(peer);
+        assertThreadCounters(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+            count, count, count);
+        assertQueryCount(getFulltextUri(word), count);
+        assertEquals(0, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+    }
+
+    @Test
+    public void testApplyBatch() throws Exception {
+        String peer = "batch@prime.kontalk.net";
+        String word = StringUtils.randomString(12);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ops.add(ContentProviderOperation.newInsert(Messages.CONTENT_URI)
+                .withValues(incomingMessageValues(peer, "Batch message " + word, true))
+                .withYieldAllowed(true)
+                .build());
+        }
+        ContentProviderResult[] results = getMockContentResolver()
+            .applyBatch(MessagesProvider.AUTHORITY, ops);
+        assertEquals(5, results.length);
+
+        long threadId = getThreadByPeer(peer);
+        Uri thread = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
+        assertThreadCounters(thread, 5, 5, 5);
+        assertQueryCount(getFulltextUri(word), 5);
+
+        // mark two messages as read and delete another one
+        ops.clear();
+        for (int i = 0; i < 2; i++) {
+            ops.add(ContentProviderOperation.newUpdate(results[i].uri)
+                .withValue(Messages.UNREAD, false)
+                .withValue(Messages.NEW, false)
+                .withYieldAllowed(true)
+                .build());
+        }
+        ops.add(ContentProviderOperation.newDelete(results[4].uri)
+            .withYieldAllowed(true)
+            .build());
+        getMockContentResolver().applyBatch(MessagesProvider.AUTHORITY, ops);
+
+        assertThreadCounters(thread, 4, 2, 2);
+        assertQueryCount(results[4].uri, 0);
+        assertQueryCount(getFulltextUri(word), 4);
+        assertEquals(0, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+    }
+
+    @Test
+    public void testFulltextSearch() {
+        String peer = "search@prime.kontalk.net";
+        String word = StringUtils.randomString(12);
+
+        Uri once = insertIncomingMessage(peer, "Searching " + word + " once", false);
+        Uri twice = insertIncomingMessage(peer, word + " searching " + word + " twice", false);
+        insertIncomingMessage(peer, "Nothing to see here", false);
+
+        // prefix search, most relevant first
+        Cursor c = getMockContentResolver().query(getFulltextUri(word.substring(0, 8) + "*"),
+            new String[] { Messages._ID, Fulltext.SNIPPET, Fulltext.RANK, Fulltext.TIMESTAMP },
+            null, null, Fulltext.RELEVANCE_SORT_ORDER);
+        assertNotNull(c);
+        try {
+            assertEquals(2, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(ContentUris.parseId(twice), c.getLong(0));
+            assertTrue(c.getString(1).contains(Fulltext.SNIPPET_START + word + Fulltext.SNIPPET_END));
+            assertEquals(2, c.getInt(2));
+            assertTrue(c.moveToNext());
+            assertEquals(ContentUris.parseId(once), c.getLong(0));
+        }
+        finally {
+            c.close();
+        }
+
+        // paging
+        Uri page = getFulltextUri(word).buildUpon()
+            .appendQueryParameter(Fulltext.OFFSET, "1")
+            .appendQueryParameter(Fulltext.COUNT, "10")
+            .build();
+        c = getMockContentResolver().query(page, new String[] { Messages._ID, Fulltext.TIMESTAMP },
+            null, null, Fulltext.DATE_SORT_ORDER);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        // index follows content changes
+        String changed = StringUtils.randomString(12);
+        ContentValues values = new ContentValues(1);
+        values.put(Messages.BODY_CONTENT, ("Changed " + changed).getBytes());
+        getMockContentResolver().update(twice, values, null, null);
+        assertQueryCount(getFulltextUri(word), 1);
+        assertQueryCount(getFulltextUri(changed), 1);
+        MessagesProviderUtils.deleteMessage(getMockContext(), ContentUris.parseId(once));
+        assertQueryCount(getFulltextUri(word), 0);
+    }
+
+    /** Measures insert and status update cost against thread size. */
+    @Test
+    public void testThreadCountersBenchmark() throws Exception {
+        final int samples = 50;
+        int[] sizes = { 100, 1000, 10000 };
+
+        for (int size : sizes) {
+            String peer = "bench" + size + "@prime.kontalk.net";
+
+            // fill the thread in a single batch
+            ArrayList<ContentProviderOperation> ops = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                ops.add(ContentProviderOperation.newInsert(Messages.CONTENT_URI)
+                    .withValues(incomingMessageValues(peer, true))
+                    .build());
+            }
+            getMockContentResolver().applyBatch(MessagesProvider.AUTHORITY, ops);
+
+            long start = System.nanoTime();
+            Uri[] inserted = new Uri[samples];
+            for (int i = 0; i < samples; i++)
+                inserted[i] = insertIncomingMessage(peer, true);
+            long insertTime = (System.nanoTime() - start) / samples;
+
+            ContentValues values = new ContentValues(1);
+            start = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                values.put(Messages.STATUS, (i % 2 == 0) ?
+                    Messages.STATUS_RECEIVED : Messages.STATUS_CONFIRMED);
+                getMockContentResolver().update(inserted[i], values, null, null);
+            }
+            long updateTime = (System.nanoTime() - start) / samples;
+
+            Log.i(TAG, "thread size " + size + ": insert " + insertTime / 1000 +
+                " us, status update " + updateTime / 1000 + " us");
+
+            long threadId = MessagesProviderUtils.getThreadByMessage(getMockContext(), inserted[0]);
+            assertThreadCounters(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+                size + samples, size + samples, size + samples);
+        }
+    }
+
+    /** Measures read latency while other threads are writing. */
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        final int writers = 2;
+        final int messagesPerWriter = 500;
+        // about 100 messages per second for each writer
+        final long writeInterval = 10;
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++) {
+            final String peer = "stress" + w + "@prime.kontalk.net";
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < messagesPerWriter; i++) {
+                            Uri msg = insertIncomingMessage(peer, true);
+                            ContentValues values = new ContentValues(1);
+                            values.put(Messages.STATUS, Messages.STATUS_CONFIRMED);
+                            getMockContentResolver().update(msg, values, null, null);
+                            Thread.sleep(writeInterval);
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                    finally {
+                        writersDone.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        while (writersDone.getCount() > 0) {
+            long start = System.nanoTime();
+            Cursor c = getMockContentResolver().query(Threads.CONTENT_URI, null, null, null, null);
+            assertNotNull(c);
+            c.getCount();
+            c.close();
+            latencies.add(System.nanoTime() - start);
+        }
+        assertTrue(writersDone.await(1, TimeUnit.MINUTES));
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        Collections.sort(latencies);
+        Log.i(TAG, latencies.size() + " reads during " + writers * messagesPerWriter + " writes: " +
+            "median " + latencies.get(latencies.size() / 2) / 1000 + " us, " +
+            "95th " + latencies.get(latencies.size() * 95 / 100) / 1000 + " us, " +
+            "max " + latencies.get(latencies.size() - 1) / 1000 + " us");
+
+        assertEquals(0, MessagesProviderUtils.repairThreadCounters(getMockContext()));
+    }
+
+    private ContentValues incomingMessageValues(String peer, boolean unread) {
+        return incomingMessageValues(peer, "Test message for me", unread);
+    }
+
+    private ContentValues incomingMessageValues(String peer, String text, boolean unread) {
+        byte[] bytes = text.getBytes();
+        ContentValues values = new ContentValues(10);
+        values.put(Messages.MESSAGE_ID, MessageUtils.messageId());
+        values.put(Messages.PEER, peer);
+        values.put(Messages.BODY_MIME, "text/plain");
+        values.put(Messages.BODY_CONTENT, bytes);
+        values.put(Messages.BODY_LENGTH, bytes.length);
+        values.put(Messages.UNREAD, unread);
+        values.put(Messages.NEW, unread);
+        values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
+        values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+        values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+        return values;
+    }
+
+    private Uri insertIncomingMessage(String peer, boolean unread) {
+        return insertIncomingMessage(peer, "Test message for me", unread);
+    }
+
+    private Uri insertIncomingMessage(String peer, String text, boolean unread) {
+        Uri msg = getMockContentResolver().insert(Messages.CONTENT_URI,
+            incomingMessageValues(peer, text, unread));
+        assertNotNull(msg);
+        return msg;
+    }
+
+    private long getThreadByPeer(String peer) {
+        Cursor c = getMockContentResolver().query(Threads.CONTENT_URI,
+            new String[] { Threads._ID }, Threads.PEER + "=?", new String[] { peer }, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private Uri getFulltextUri(String pattern) {
+        return Fulltext.CONTENT_URI.buildUpon()
+            .appendQueryParameter("pattern", pattern).build();
+    }
+
+    private void assertThreadCounters(Uri thread, int count, int unread, int newCount) {
+        assertQueryValues(thread,
+            Threads.COUNT, String.valueOf(count),
+            Threads.UNREAD, String.valueOf(unread),
+            Threads.NEW, String.valueOf(newCount));
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(AndroidJUnit4.class)
+public class SQLiteRosterStoreTest {
+    private static final String TAG = SQLiteRosterStoreTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "roster-test.db";
+    private static final int ROSTER_SIZE = 5000;
+
+    private Context mContext;
+    private SQLiteRosterStore mStore;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.onDestroy();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    private static RosterPacket.Item createItem(int index, RosterPacket.ItemType type) {
+        RosterPacket.Item item = new RosterPacket.Item("user" + index + "@prime.kontalk.net", "User " + index);
+        item.setItemType(type);
+        return item;
+    }
+
+    private static List<RosterPacket.Item> createRoster(int size) {
+        List<RosterPacket.Item> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            items.add(createItem(i, RosterPacket.ItemType.both));
+        return items;
+    }
+
+    @Test
+    public void testAddRemoveEntry() {
+        RosterPacket.Item item = createItem(1, RosterPacket.ItemType.to);
+        assertTrue(mStore.addEntry(item, "1"));
+        assertTrue(mStore.isSubscribed(item.getUser()));
+
+        // roster push for an existing entry
+        item = createItem(1, RosterPacket.ItemType.none);
+        assertTrue(mStore.addEntry(item, "2"));
+        assertFalse(mStore.isSubscribed(item.getUser()));
+        assertEquals(1, mStore.size());
+
+        assertTrue(mStore.removeEntry(item.getUser(), "3"));
+        assertNull(mStore.getEntry(item.getUser()));
+        assertEquals(0, mStore.size());
+    }
+
+    @Test
+    public void testResetEntries() {
+        List<RosterPacket.Item> items = createRoster(10);
+        assertTrue(mStore.resetEntries(items, "1"));
+
+        items.remove(0);
+        items.set(0, createItem(1, RosterPacket.ItemType.from));
+        assertTrue(mStore.resetEntries(items, "2"));
+        assertNull(mStore.getEntry("user0@prime.kontalk.net"));
+        assertFalse(mStore.isSubscribed("user1@prime.kontalk.net"));
+
+        // reopen the store to check what was written
+        mStore.onDestroy();
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+        assertEquals(9, mStore.size());
+        assertNull(mStore.getEntry("user0@prime.kontalk.net"));
+        assertEquals(RosterPacket.ItemType.from, mStore.getEntry("user1@prime.kontalk.net").getItemType());
+        assertTrue(mStore.isSubscribed("user9@prime.kontalk.net"));
+    }
+
+    @Test
+    public void benchmarkRoster() {
+        long start = SystemClock.elapsedRealtime();
+        assertTrue(mStore.resetEntries(createRoster(ROSTER_SIZE), "1"));
+        Log.i(TAG, "store of " + ROSTER_SIZE + " entries: " +
+            (SystemClock.elapsedRealtime() - start) + " ms");
+
+        mStore.onDestroy();
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+
+        start = SystemClock.elapsedRealtime();
+        assertNotNull(mStore.getEntries());
+        Log.i(TAG, "load of " + ROSTER_SIZE + " entries: " +
+            (SystemClock.elapsedRealtime() - start) + " ms");
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROSTER_SIZE; i++)
+            assertTrue(mStore.isSubscribed("user" + i + "@prime.kontalk.net"));
+        Log.i(TAG, ROSTER_SIZE + " authorization checks: " +
+            (SystemClock.elapsedRealtime() - start) + " ms");
+
+        // full roster received again with a single change
+        List<RosterPacket.Item> items = createRoster(ROSTER_SIZE);
+        items.set(0, createItem(0, RosterPacket.ItemType.none));
+        start = SystemClock.elapsedRealtime();
+        assertTrue(mStore.resetEntries(items, "2"));
+        Log.i(TAG, "reset of " + ROSTER_SIZE + " entries with 1 change: " +
+            (SystemClock.elapsedRealtime() - start) + " ms");
+        assertFalse(mStore.isSubscribed("user0@prime.kontalk.net"));
+    }
+
+}
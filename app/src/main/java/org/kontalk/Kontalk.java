@@ -40,6 +40,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
@@ -48,6 +49,7 @@ import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.DownloadService;
 import org.kontalk.service.NetworkStateReceiver;
 import org.kontalk.service.ServerListUpdater;
+import org.kontalk.service.StreamResumption;
 import org.kontalk.service.SystemBootStartup;
 import org.kontalk.service.UploadService;
 import org.kontalk.service.msgcenter.IPushService;
@@ -135,6 +137,11 @@ public class Kontalk extends Application {
             new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                // trust settings changed - discard cached TLS configuration
+                if ("pref_accept_any_certificate".equals(key)) {
+                    ClientHTTPConnection.invalidateSSLSocketFactories();
+                }
+
                 // no account - abort
                 if (Authenticator.getDefaultAccount(Kontalk.this) == null)
                     return;
@@ -199,6 +206,8 @@ public class Kontalk extends Application {
                             pushMgr.unregister(PushServiceManager.getDefaultListener());
                         // delete all messages
                         MessagesProvider.deleteDatabase(Kontalk.this);
+                        // forget any resumable stream (might contain messages)
+                        StreamResumption.clear(Kontalk.this);
                         // invalidate cached personal key
                         invalidatePersonalKey();
                     }
@@ -211,6 +220,7 @@ public class Kontalk extends Application {
         else {
             // ensure everything is cleared up
             MessagesProvider.deleteDatabase(Kontalk.this);
+            StreamResumption.clear(Kontalk.this);
         }
 
         // enable/disable components
@@ -248,6 +258,8 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        // client certificate might have changed
+        ClientHTTPConnection.invalidateSSLSocketFactories();
     }
 
     private void ensureCachedPassphrase() {
@@ -19,13 +19,23 @@
 package org.kontalk;
 
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.net.Uri;
+import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.crypto.Coder;
@@ -38,6 +48,7 @@ import org.kontalk.message.GroupComponent;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.message.MessageComponent;
 import org.kontalk.message.VCardComponent;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.provider.UsersProvider;
@@ -55,6 +66,7 @@ import org.kontalk.util.Preferences;
  * @author Daniele Ricci
  */
 public class MessagesController {
+    private static final String TAG = Kontalk.TAG;
 
     private final Context mContext;
 
@@ -119,33 +131,14 @@ public class MessagesController {
     public Uri incoming(CompositeMessage msg) {
         final String sender = msg.getSender(true);
 
-        // save to local storage
-        ContentValues values = new ContentValues();
-        values.put(MyMessages.Messages.MESSAGE_ID, msg.getId());
-        values.put(MyMessages.Messages.PEER, sender);
-
-        MessageUtils.fillContentValues(values, msg);
-
         GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
         // notify for 1-to-1 messages and group creation and part group commands
         boolean notify = (group == null || group.isCreateCommand() || group.isPartCommand());
 
-        values.put(MyMessages.Messages.STATUS, msg.getStatus());
-        // group commands don't get notifications
-        values.put(MyMessages.Messages.UNREAD, notify);
-        values.put(MyMessages.Messages.NEW, notify);
-        values.put(MyMessages.Messages.DIRECTION, MyMessages.Messages.DIRECTION_IN);
-        values.put(MyMessages.Messages.TIMESTAMP, System.currentTimeMillis());
+        // save to local storage
+        ContentValues values = createIncomingValues(msg, notify);
 
         GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
-        if (groupInfo != null) {
-            values.put(MyMessages.Groups.GROUP_JID, groupInfo.getContent().getJid());
-            values.put(MyMessages.Groups.GROUP_TYPE, KontalkGroupController.GROUP_TYPE);
-
-            String groupSubject = groupInfo.getContent().getSubject();
-            if (groupSubject != null)
-                values.put(MyMessages.Groups.SUBJECT, groupSubject);
-        }
 
         if (group != null) {
             // the following operations will work because we are operating with
@@ -229,17 +222,7 @@ public class MessagesController {
 
         if (groupInfo == null) {
             // mark sender as registered in the users database
-            final Context context = mContext.getApplicationContext();
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        UsersProvider.markRegistered(context, sender);
-                    }
-                    catch (SQLiteConstraintException e) {
-                        // this might happen during an online/offline switch
-                    }
-                }
-            }).start();
+            markRegistered(Collections.singletonList(sender));
         }
 
         // fire notification only if message was actually inserted to database
@@ -250,6 +233,154 @@ public class MessagesController {
             MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
         }
 
+        if (msgUri != null)
+            autodownload(msg, sender, msgUri);
+
+        return msgUri;
+    }
+
+    /**
+     * Process a batch of incoming messages, storing them in a single
+     * transaction. Group commands are not supported: they must go through
+     * {@link #incoming(CompositeMessage)}.
+     * @return the message URIs, in the same order (null for duplicate messages)
+     */
+    public Uri[] incoming(List<CompositeMessage> messages) {
+        ContentResolver cr = mContext.getContentResolver();
+        Uri[] msgUris = new Uri[messages.size()];
+
+        // duplicates would abort the whole batch, filter them out first
+        Set<String> msgIds = getExistingIncomingMessages(messages);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(messages.size());
+        int[] positions = new int[messages.size()];
+        for (int i = 0; i < msgUris.length; i++) {
+            CompositeMessage msg = messages.get(i);
+            if (msg.getComponent(GroupCommandComponent.class) != null)
+                throw new IllegalArgumentException("group commands can't be batched");
+
+            if (msgIds.add(msg.getId())) {
+                positions[ops.size()] = i;
+                ops.add(ContentProviderOperation.newInsert(MyMessages.Messages.CONTENT_URI)
+                    .withValues(createIncomingValues(msg, true))
+                    .build());
+            }
+        }
+
+        if (ops.size() > 0) {
+            try {
+                ContentProviderResult[] results = cr.applyBatch(MessagesProvider.AUTHORITY, ops);
+                for (int i = 0; i < results.length; i++)
+                    msgUris[positions[i]] = results[i].uri;
+            }
+            catch (Exception e) {
+                // store messages one by one
+                Log.w(TAG, "batch insert failed, falling back to single inserts", e);
+                for (int i = 0; i < msgUris.length; i++)
+                    msgUris[i] = incoming(messages.get(i));
+                return msgUris;
+            }
+        }
+
+        boolean notify = false;
+        List<String> senders = new ArrayList<>(messages.size());
+        for (int i = 0; i < msgUris.length; i++) {
+            CompositeMessage msg = messages.get(i);
+            String sender = msg.getSender(true);
+            GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+
+            if (groupInfo == null && !senders.contains(sender))
+                senders.add(sender);
+
+            if (msgUris[i] != null) {
+                String paused = groupInfo != null ? groupInfo.getContent().getJid() : sender;
+                if (!MessagingNotification.isPaused(paused))
+                    notify = true;
+
+                autodownload(msg, sender, msgUris[i]);
+            }
+        }
+
+        if (senders.size() > 0) {
+            // mark senders as registered in the users database
+            markRegistered(senders);
+        }
+
+        if (notify) {
+            // update notifications (delayed)
+            MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
+        }
+
+        return msgUris;
+    }
+
+    private ContentValues createIncomingValues(CompositeMessage msg, boolean notify) {
+        ContentValues values = new ContentValues();
+        values.put(MyMessages.Messages.MESSAGE_ID, msg.getId());
+        values.put(MyMessages.Messages.PEER, msg.getSender(true));
+
+        MessageUtils.fillContentValues(values, msg);
+
+        values.put(MyMessages.Messages.STATUS, msg.getStatus());
+        // group commands don't get notifications
+        values.put(MyMessages.Messages.UNREAD, notify);
+        values.put(MyMessages.Messages.NEW, notify);
+        values.put(MyMessages.Messages.DIRECTION, MyMessages.Messages.DIRECTION_IN);
+        values.put(MyMessages.Messages.TIMESTAMP, System.currentTimeMillis());
+
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+        if (groupInfo != null) {
+            values.put(MyMessages.Groups.GROUP_JID, groupInfo.getContent().getJid());
+            values.put(MyMessages.Groups.GROUP_TYPE, KontalkGroupController.GROUP_TYPE);
+
+            String groupSubject = groupInfo.getContent().getSubject();
+            if (groupSubject != null)
+                values.put(MyMessages.Groups.SUBJECT, groupSubject);
+        }
+
+        return values;
+    }
+
+    /** Returns the ids of the given messages already in the database. */
+    private Set<String> getExistingIncomingMessages(List<CompositeMessage> messages) {
+        Set<String> ids = new HashSet<>();
+        String[] args = new String[messages.size()];
+        StringBuilder where = new StringBuilder(MyMessages.Messages.DIRECTION)
+            .append('=').append(MyMessages.Messages.DIRECTION_IN)
+            .append(" AND ").append(MyMessages.Messages.MESSAGE_ID).append(" IN (");
+        for (int i = 0; i < args.length; i++) {
+            args[i] = messages.get(i).getId();
+            where.append(i > 0 ? ",?" : "?");
+        }
+        where.append(')');
+
+        Cursor c = mContext.getContentResolver().query(MyMessages.Messages.CONTENT_URI,
+            new String[] { MyMessages.Messages.MESSAGE_ID }, where.toString(), args, null);
+        if (c != null) {
+            while (c.moveToNext())
+                ids.add(c.getString(0));
+            c.close();
+        }
+        return ids;
+    }
+
+    private void markRegistered(final List<String> senders) {
+        final Context context = mContext.getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                for (String sender : senders) {
+                    try {
+                        UsersProvider.markRegistered(context, sender);
+                    }
+                    catch (SQLiteConstraintException e) {
+                        // this might happen during an online/offline switch
+                    }
+                }
+            }
+        }).start();
+    }
+
+    private void autodownload(CompositeMessage msg, String sender, Uri msgUri) {
         // check if we need to autodownload
         @SuppressWarnings("unchecked")
         Class<AttachmentComponent>[] tryComponents = new Class[] {
@@ -265,14 +396,12 @@ public class MessagesController {
                 long databaseId = ContentUris.parseId(msgUri);
                 DownloadService.start(mContext, databaseId, sender, msg.getTimestamp(),
                     att.getSecurityFlags() != Coder.SECURITY_CLEARTEXT,
-                    att.getFetchUrl(), false);
+                    att.getFetchUrl(), att.getMime(), att.getLength(), false);
 
                 // only one attachment is supported
                 break;
             }
         }
-
-        return msgUri;
     }
 
 }
@@ -18,32 +18,35 @@
 
 package org.kontalk.client;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 
@@ -52,6 +55,8 @@ import android.util.Log;
 
 import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
 
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
@@ -77,9 +82,25 @@ public class ClientHTTPConnection {
     private final X509Certificate mCertificate;
 
     private HttpsURLConnection currentRequest;
+    /** True if the current download was aborted by the user. */
+    private volatile boolean mAborted;
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
+    /** Extension of files being decrypted while downloading. */
+    private static final String PARTIAL_EXTENSION = ".part";
+
+    /** Not defined in {@link HttpURLConnection}. */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /** Encrypted downloads smaller than this are not kept for resuming. */
+    private static final long MIN_RESUMABLE_ENCRYPTED_LENGTH = 1024 * 1024;
+
+    /** Cached socket factories. */
+    private static final Map<FactoryKey, SSLSocketFactory> sSocketFactories = new HashMap<>();
+    /** Number of HTTP requests, for connection reuse statistics. */
+    private static final AtomicLong sRequests = new AtomicLong();
+
     public ClientHTTPConnection(Context context) {
         this(context, null, null);
     }
@@ -91,6 +112,7 @@ public class ClientHTTPConnection {
     }
 
     public void abort() {
+        mAborted = true;
         try {
             currentRequest.disconnect();
         }
@@ -104,7 +126,7 @@ public class ClientHTTPConnection {
      * @return the request object
      */
     private HttpsURLConnection prepareURLDownload(String url, boolean acceptAnyCertificate) throws IOException {
-        HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
+        HttpsURLConnection conn = openConnection(url);
         try {
             setupClient(conn, acceptAnyCertificate);
         }
@@ -114,6 +136,43 @@ public class ClientHTTPConnection {
         return conn;
     }
 
+    /**
+     * Opens an HTTPS connection. The platform keeps sockets alive between
+     * requests to the same host, but a socket can be reused only after the
+     * response (or error) body has been fully read and closed: use
+     * {@link #releaseConnection} when done with a response.
+     */
+    public static HttpsURLConnection openConnection(String url) throws IOException {
+        sRequests.incrementAndGet();
+        return (HttpsURLConnection) new URL(url).openConnection();
+    }
+
+    /**
+     * Reads and closes whatever is left of the response, so the underlying
+     * connection can go back to the pool and be reused.
+     */
+    public static void releaseConnection(HttpURLConnection conn) {
+        InputStream in = null;
+        try {
+            in = conn.getInputStream();
+        }
+        catch (IOException e) {
+            in = conn.getErrorStream();
+        }
+
+        if (in != null) {
+            try {
+                byte[] buf = new byte[1024];
+                while (in.read(buf) >= 0);
+            }
+            catch (IOException ignored) {
+            }
+            finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
     private IOException innerException(String detail, Throwable cause) {
         IOException ie = new IOException(detail);
         ie.initCause(cause);
@@ -137,6 +196,11 @@ public class ClientHTTPConnection {
             conn.setHostnameVerifier(new AllowAllHostnameVerifier());
     }
 
+    /**
+     * Returns a socket factory for HTTP transfers. Factories are cached
+     * (per client certificate and trust settings) so that connections and
+     * TLS sessions can be reused across transfers.
+     */
     public static SSLSocketFactory setupSSLSocketFactory(Context context,
                 PrivateKey privateKey, X509Certificate certificate,
                 boolean acceptAnyCertificate)
@@ -144,56 +208,45 @@ public class ClientHTTPConnection {
                 IOException, KeyManagementException, UnrecoverableKeyException,
                 NoSuchProviderException {
 
-        // in-memory keystore
-        KeyManager[] km = null;
-        if (privateKey != null && certificate != null) {
-            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-            keystore.load(null, null);
-            keystore.setKeyEntry("private", privateKey, null, new Certificate[]{certificate});
-
-            // key managers
-            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmFactory.init(keystore, null);
-            km = kmFactory.getKeyManagers();
+        // client certificate is used only together with its private key
+        FactoryKey key = new FactoryKey((privateKey != null) ? certificate : null,
+            acceptAnyCertificate);
+        synchronized (sSocketFactories) {
+            SSLSocketFactory factory = sSocketFactories.get(key);
+            if (factory == null) {
+                factory = new MeteredSSLSocketFactory(createSSLSocketFactory(context,
+                    privateKey, certificate, acceptAnyCertificate));
+                sSocketFactories.put(key, factory);
+            }
+            return factory;
         }
+    }
 
-        // trust managers
-        TrustManager[] tm;
-
-        if (acceptAnyCertificate) {
-            tm = new TrustManager[] {
-                new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-                }
-            };
+    /**
+     * Discards all cached socket factories. Must be called when the personal
+     * key or the trust settings change.
+     */
+    public static void invalidateSSLSocketFactories() {
+        synchronized (sSocketFactories) {
+            sSocketFactories.clear();
         }
-        else {
-            // load merged truststore (system + internal)
-            KeyStore trustStore = InternalTrustStore.getTrustStore(context);
+        SSLContextCache.invalidate();
+    }
 
-            // builtin keystore
-            TrustManagerFactory tmFactory = TrustManagerFactory
-                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmFactory.init(trustStore);
+    private static SSLSocketFactory createSSLSocketFactory(Context context,
+                PrivateKey privateKey, X509Certificate certificate,
+                boolean acceptAnyCertificate)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException,
+                NoSuchProviderException {
 
-            tm = tmFactory.getTrustManagers();
-        }
+        // load merged truststore (system + internal)
+        KeyStore trustStore = acceptAnyCertificate ? null :
+            InternalTrustStore.getTrustStore(context);
 
-        SSLContext ctx = SSLContext.getInstance("TLSv1");
-        ctx.init(km, tm, null);
+        // long-lived context so TLS sessions can be resumed
+        SSLContext ctx = SSLContextCache.get("TLSv1", privateKey, certificate,
+            acceptAnyCertificate, trustStore);
         return new TlsOnlySocketFactory(ctx.getSocketFactory(), true);
     }
 
@@ -202,16 +255,50 @@ public class ClientHTTPConnection {
      * determining the file name from the Content-Disposition header.
      */
     public void downloadAutofilename(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultBase, timestamp, listener);
+        _download(url, defaultBase, timestamp, null, null, listener);
+    }
+
+    /**
+     * Downloads to a directory represented by a {@link File} object,
+     * determining the file name from the Content-Disposition header.
+     * Data is decrypted on the fly with the given coder; the destination
+     * file will appear only if decryption and integrity check succeeded.
+     * Non-fatal errors (e.g. signature verification) will be added to
+     * <code>errors</code> before the completed event.
+     */
+    public void downloadAutofilename(String url, File defaultBase, Date timestamp, Coder decryptCoder, List<DecryptException> errors, DownloadListener listener) throws IOException {
+        _download(url, defaultBase, timestamp, decryptCoder, errors, listener);
     }
 
-    private void _download(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
+    /**
+     * Downloads the given URL, resuming a previous partial download if
+     * possible. Partial data is kept in a hidden directory inside
+     * <code>defaultBase</code> until the download is completed.
+     */
+    private void _download(String url, File defaultBase, Date timestamp, Coder decryptCoder, List<DecryptException> errors, DownloadListener listener) throws IOException {
+        mAborted = false;
         boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        PartialDownload partial = PartialDownload.get(defaultBase, url);
         currentRequest = prepareURLDownload(url, acceptAnyCertificate);
+        partial.setupRequest(currentRequest);
 
         int code = currentRequest.getResponseCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
+        if (code == HTTP_RANGE_NOT_SATISFIABLE && partial.length() > 0) {
+            // partial data is not valid anymore, start over
+            Log.d(TAG, "partial download not valid, restarting");
+            partial.delete();
+            releaseConnection(currentRequest);
+            currentRequest = prepareURLDownload(url, acceptAnyCertificate);
+            code = currentRequest.getResponseCode();
+        }
+
+        // HTTP/1.1 200 OK or 206 Partial Content -- other codes should throw Exceptions
+        if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
+            // server might have ignored our range request
+            long offset = partial.getResponseOffset(currentRequest);
+            if (offset > 0)
+                Log.d(TAG, "resuming download from byte " + offset);
+
             // use a more suitable filename, taking only the extension
             String contentType = currentRequest.getContentType();
             File destination = null;
@@ -236,17 +323,139 @@ public class ClientHTTPConnection {
             }
 
             // we need to wrap the entity to monitor the download progress
-            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest, url, destination, listener);
-            FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
-            out.close();
+            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest,
+                url, destination, listener, offset);
+            boolean success = false;
+            try {
+                if (decryptCoder != null) {
+                    decryptTo(entity, partial, offset, destination, decryptCoder, errors);
+                }
+                else {
+                    OutputStream out = partial.openOutput(currentRequest, offset);
+                    try {
+                        entity.writeData(out);
+                    }
+                    finally {
+                        out.close();
+                    }
+                    partial.commit(destination);
+                }
+                success = true;
+            }
+            finally {
+                // keep partial data for resuming later, unless aborted by the user
+                if (!success && (mAborted || !partial.isResumable()))
+                    partial.delete();
+            }
+
+            logConnectionStats();
+            listener.completed(url, contentType, destination);
             return;
         }
 
         Log.d(TAG, "invalid response: " + code);
+        releaseConnection(currentRequest);
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
+    /**
+     * Decrypts the download stream (preceded by any partial data) to a
+     * partial file and renames it on success.
+     * Keeping the encrypted data for resuming means having both the
+     * ciphertext and the plaintext on disk until the download completes, so
+     * it is done only for large enough downloads when there is room for both
+     * (or when already resuming). Smaller downloads are just restarted.
+     */
+    private void decryptTo(ProgressOutputStreamEntity entity, PartialDownload partial,
+            long offset, File destination, Coder coder, List<DecryptException> errors) throws IOException {
+        boolean resumable = offset > 0 || isWorthResuming(partial, currentRequest.getContentLength());
+        if (!resumable) {
+            // drop any stale data so nothing is left behind on failure
+            partial.delete();
+        }
+
+        File decrypted = new File(destination.getPath() + PARTIAL_EXTENSION);
+        InputStream previous = offset > 0 ? partial.openInput() : null;
+        OutputStream raw = null;
+        FileOutputStream out = null;
+        boolean success = false;
+        try {
+            if (resumable)
+                raw = partial.openOutput(currentRequest, offset);
+            out = new FileOutputStream(decrypted);
+            entity.decryptTo(out, previous, raw, coder, errors);
+            success = true;
+        }
+        catch (GeneralSecurityException e) {
+            // corrupted data, resuming would fail again
+            // (I/O errors are thrown as they are, keeping partial data)
+            partial.delete();
+            throw innerException("decryption failed", e);
+        }
+        finally {
+            closeQuietly(previous);
+            closeQuietly(raw);
+            closeQuietly(out);
+            if (!success)
+                decrypted.delete();
+        }
+
+        // encrypted data is not needed anymore
+        partial.delete();
+
+        if (!decrypted.renameTo(destination)) {
+            decrypted.delete();
+            throw new IOException("unable to rename decrypted file to " + destination);
+        }
+    }
+
+    /** Returns true if there is room for keeping encrypted data besides the decrypted file. */
+    private static boolean isWorthResuming(PartialDownload partial, long length) {
+        return length >= MIN_RESUMABLE_ENCRYPTED_LENGTH &&
+            partial.getUsableSpace() >= length * 2;
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        try {
+            if (stream != null)
+                stream.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /** Logs statistics about connection reuse. */
+    public static void logConnectionStats() {
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, MeteredSSLSocketFactory.getStats(sRequests.get()));
+    }
+
+    /** Cache key for socket factories. */
+    private static final class FactoryKey {
+        private final X509Certificate mCertificate;
+        private final boolean mAcceptAnyCertificate;
+
+        FactoryKey(X509Certificate certificate, boolean acceptAnyCertificate) {
+            mCertificate = certificate;
+            mAcceptAnyCertificate = acceptAnyCertificate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FactoryKey))
+                return false;
+            FactoryKey other = (FactoryKey) o;
+            return mAcceptAnyCertificate == other.mAcceptAnyCertificate &&
+                (mCertificate != null ? mCertificate.equals(other.mCertificate) : other.mCertificate == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mCertificate != null ? mCertificate.hashCode() : 0) * 31 +
+                (mAcceptAnyCertificate ? 1 : 0);
+        }
+    }
+
     /**
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
@@ -0,0 +1,184 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+
+/**
+ * Races TCP connections to several endpoints ("happy eyeballs"). Endpoints
+ * are tried in order of known latency: a new attempt is started every
+ * {@link #ATTEMPT_DELAY} milliseconds or as soon as the previous one fails,
+ * up to a maximum number of parallel attempts. The first socket to connect
+ * wins, the others are closed.
+ * @author Daniele Ricci
+ */
+public class ConnectRace {
+
+    /** Delay before starting the next attempt. */
+    public static final long ATTEMPT_DELAY = 250;
+
+    private final SocketFactory mFactory;
+    private final int mTimeout;
+    private final int mMaxParallel;
+    private final EndpointLatency mLatency;
+
+    public ConnectRace(SocketFactory factory, int timeout, int maxParallel, EndpointLatency latency) {
+        mFactory = factory;
+        mTimeout = timeout;
+        mMaxParallel = Math.max(1, maxParallel);
+        mLatency = latency;
+    }
+
+    /**
+     * Connects to the fastest of the given endpoints.
+     * @return the connected socket
+     * @throws IOException if all attempts failed
+     */
+    public Socket connect(List<InetSocketAddress> endpoints) throws IOException {
+        if (endpoints.isEmpty())
+            throw new IOException("no endpoints to connect to");
+
+        List<InetSocketAddress> sorted = mLatency.sort(endpoints);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mMaxParallel, sorted.size()));
+        CompletionService<Socket> completion = new ExecutorCompletionService<>(executor);
+        List<Attempt> attempts = new ArrayList<>(sorted.size());
+
+        Socket winner = null;
+        IOException error = null;
+        int next = 0;
+        int running = 0;
+        try {
+            while (winner == null) {
+                if (next < sorted.size() && running < mMaxParallel) {
+                    Attempt attempt = new Attempt(sorted.get(next++));
+                    attempts.add(attempt);
+                    completion.submit(attempt);
+                    running++;
+                }
+                if (running == 0)
+                    break;
+
+                Future<Socket> done;
+                if (next < sorted.size() && running < mMaxParallel)
+                    // wait a little before starting the next attempt
+                    done = completion.poll(ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+                else
+                    done = completion.take();
+
+                if (done != null) {
+                    running--;
+                    try {
+                        winner = done.get();
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        error = (cause instanceof IOException) ?
+                            (IOException) cause : new IOException(cause);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("connection interrupted");
+        }
+        finally {
+            for (Attempt attempt : attempts) {
+                if (attempt.mSocket != winner)
+                    attempt.abort();
+            }
+            executor.shutdown();
+        }
+
+        if (winner == null)
+            throw error;
+        return winner;
+    }
+
+    private final class Attempt implements Callable<Socket> {
+        private final InetSocketAddress mEndpoint;
+        private Socket mSocket;
+        private boolean mAborted;
+
+        Attempt(InetSocketAddress endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public Socket call() throws IOException {
+            Socket socket = mFactory.createSocket();
+            synchronized (this) {
+                if (mAborted) {
+                    close(socket);
+                    throw new IOException("connection aborted");
+                }
+                mSocket = socket;
+            }
+
+            long start = System.nanoTime();
+            try {
+                socket.connect(mEndpoint, mTimeout);
+            }
+            catch (IOException e) {
+                close(socket);
+                synchronized (this) {
+                    if (!mAborted)
+                        mLatency.failed(EndpointLatency.key(mEndpoint));
+                }
+                throw e;
+            }
+
+            mLatency.record(EndpointLatency.key(mEndpoint),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return socket;
+        }
+
+        /** Aborts the attempt, closing the socket if connecting or connected. */
+        synchronized void abort() {
+            mAborted = true;
+            if (mSocket != null)
+                close(mSocket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Remembers connection latency of endpoints, to try the fastest ones first
+ * on the next connection. Endpoints are identified by a string: an address
+ * and port or a host name.
+ * @author Daniele Ricci
+ */
+public class EndpointLatency {
+
+    /** Latency of an endpoint never tried. */
+    public static final long UNKNOWN = -1;
+    /** Latency of an endpoint whose last connection attempt failed. */
+    public static final long FAILED = Long.MAX_VALUE;
+
+    private static final EndpointLatency sInstance = new EndpointLatency();
+
+    private final Map<String, Long> mLatency = new ConcurrentHashMap<>();
+
+    public static EndpointLatency getInstance() {
+        return sInstance;
+    }
+
+    /** Records a successful connection. The latency is smoothed over attempts. */
+    public void record(String endpoint, long latency) {
+        Long previous = mLatency.get(endpoint);
+        if (previous != null && previous != FAILED)
+            latency = (previous * 3 + latency) / 4;
+        mLatency.put(endpoint, latency);
+    }
+
+    /** Records a failed connection. */
+    public void failed(String endpoint) {
+        mLatency.put(endpoint, FAILED);
+    }
+
+    /** Returns the latency of the given endpoint, {@link #UNKNOWN} or {@link #FAILED}. */
+    public long get(String endpoint) {
+        Long latency = mLatency.get(endpoint);
+        return latency != null ? latency : UNKNOWN;
+    }
+
+    public void clear() {
+        mLatency.clear();
+    }
+
+    /**
+     * Returns the given endpoints sorted by latency. Endpoints never tried
+     * come after the known ones, in their original order; failed endpoints
+     * come last.
+     */
+    public List<InetSocketAddress> sort(List<InetSocketAddress> endpoints) {
+        List<InetSocketAddress> sorted = new ArrayList<>(endpoints);
+        // stable sort
+        Collections.sort(sorted, new Comparator<InetSocketAddress>() {
+            @Override
+            public int compare(InetSocketAddress lhs, InetSocketAddress rhs) {
+                long l = rank(lhs), r = rank(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    private long rank(InetSocketAddress endpoint) {
+        long latency = get(key(endpoint));
+        return latency == UNKNOWN ? FAILED - 1 : latency;
+    }
+
+    public static String key(InetSocketAddress endpoint) {
+        return (endpoint.getAddress() != null ?
+            endpoint.getAddress().getHostAddress() : endpoint.getHostName()) +
+            ":" + endpoint.getPort();
+    }
+
+    /**
+     * Returns the key for the latency of a whole server: its host if
+     * configured, otherwise its network (resolved through SRV).
+     */
+    public static String key(EndpointServer server) {
+        return server.getHost() != null ? server.getHost() : server.getNetwork();
+    }
+
+}
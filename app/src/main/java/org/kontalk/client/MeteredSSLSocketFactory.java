@@ -0,0 +1,140 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.util.Log;
+
+
+/**
+ * A socket factory wrapper keeping track of TLS handshakes. Since the
+ * factory is shared by all HTTP transfers, connections and TLS sessions
+ * can be reused: statistics show how many full handshakes were avoided.
+ * @author Daniele Ricci
+ */
+public class MeteredSSLSocketFactory extends SSLSocketFactory {
+    private static final String TAG = MeteredSSLSocketFactory.class.getSimpleName();
+
+    /** New connections (i.e. not reused from the connection pool). */
+    private static final AtomicLong sConnections = new AtomicLong();
+    /** Abbreviated handshakes (resumed TLS sessions). */
+    private static final AtomicLong sResumed = new AtomicLong();
+    /** Total time spent in handshakes. */
+    private static final AtomicLong sHandshakeTime = new AtomicLong();
+
+    private final SSLSocketFactory mDelegate;
+
+    public MeteredSSLSocketFactory(SSLSocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return meter(mDelegate.createSocket(s, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return meter(mDelegate.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return meter(mDelegate.createSocket(host, port, localHost, localPort), host);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return meter(mDelegate.createSocket(host, port), host.getHostAddress());
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return meter(mDelegate.createSocket(address, port, localAddress, localPort), address.getHostAddress());
+    }
+
+    private Socket meter(Socket socket, final String host) {
+        sConnections.incrementAndGet();
+        if (socket instanceof SSLSocket) {
+            // handshake will start soon after socket creation
+            final long start = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    long now = System.currentTimeMillis();
+                    long elapsed = now - start;
+                    // a resumed session was created before this connection
+                    boolean resumed = event.getSession().getCreationTime() < start;
+                    if (resumed)
+                        sResumed.incrementAndGet();
+                    sHandshakeTime.addAndGet(elapsed);
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "TLS handshake with " + host + " in " + elapsed + " ms" +
+                            (resumed ? " (session resumed)" : ""));
+                    }
+                }
+            });
+        }
+        return socket;
+    }
+
+    /** Number of new connections created so far. */
+    public static long getConnectionCount() {
+        return sConnections.get();
+    }
+
+    /** Number of connections that resumed a previous TLS session. */
+    public static long getResumedCount() {
+        return sResumed.get();
+    }
+
+    /** Total time spent in TLS handshakes, in milliseconds. */
+    public static long getHandshakeTime() {
+        return sHandshakeTime.get();
+    }
+
+    /** Returns a summary of the statistics, suitable for logging. */
+    public static String getStats(long requests) {
+        long connections = getConnectionCount();
+        return "requests: " + requests +
+            ", new connections: " + connections +
+            ", resumed sessions: " + getResumedCount() +
+            ", avg handshake: " + (connections > 0 ? getHandshakeTime() / connections : 0) + " ms";
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+
+import android.util.Log;
+
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * A partially downloaded file, kept around for resuming the download later.
+ * Data is stored exactly as received from the server (i.e. still encrypted),
+ * together with the validators needed for a conditional range request.
+ * @author Daniele Ricci
+ */
+public class PartialDownload {
+    private static final String TAG = PartialDownload.class.getSimpleName();
+
+    /** Partial downloads directory name (hidden from media scanner). */
+    private static final String DIRECTORY = ".partial";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+
+    private final File mData;
+    private final File mMeta;
+
+    private String mETag;
+    private String mLastModified;
+
+    private PartialDownload(File data, File meta) {
+        mData = data;
+        mMeta = meta;
+    }
+
+    /** Returns the partial download for the given URL, loading its metadata if present. */
+    public static PartialDownload get(File base, String url) {
+        File dir = new File(base, DIRECTORY);
+        String name = MessageUtils.sha1(url);
+        PartialDownload partial = new PartialDownload(new File(dir, name),
+            new File(dir, name + ".meta"));
+        partial.load();
+        return partial;
+    }
+
+    private void load() {
+        if (!mMeta.isFile())
+            return;
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mMeta);
+            Properties props = new Properties();
+            props.load(in);
+            mETag = props.getProperty(KEY_ETAG);
+            mLastModified = props.getProperty(KEY_LAST_MODIFIED);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to load partial download metadata", e);
+            mETag = mLastModified = null;
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes available for resuming. Data without a
+     * validator can't be safely resumed, so it will be discarded.
+     */
+    public long length() {
+        return isResumable() ? mData.length() : 0;
+    }
+
+    /** Returns true if the data can be used for resuming the download. */
+    public boolean isResumable() {
+        return getValidator() != null;
+    }
+
+    private String getValidator() {
+        // a strong ETag is preferred by If-Range
+        return mETag != null ? mETag : mLastModified;
+    }
+
+    /** Adds the range request headers to the given request if there is data to resume. */
+    public void setupRequest(HttpURLConnection conn) {
+        long length = length();
+        if (length > 0) {
+            conn.setRequestProperty("Range", "bytes=" + length + "-");
+            // server will send the whole entity if it changed meanwhile
+            conn.setRequestProperty("If-Range", getValidator());
+        }
+    }
+
+    /**
+     * Checks if the response is the continuation of our partial data.
+     * @return the offset the response data starts from (0 for a full response)
+     */
+    public long getResponseOffset(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            long start = parseContentRangeStart(conn.getHeaderField("Content-Range"));
+            if (start != length())
+                throw new IOException("unexpected content range: " + conn.getHeaderField("Content-Range"));
+            return start;
+        }
+        return 0;
+    }
+
+    /** Parses the first byte position of a "bytes N-M/L" content range. Returns -1 if not available. */
+    static long parseContentRangeStart(String range) {
+        if (range != null && range.startsWith("bytes ")) {
+            int sep = range.indexOf('-');
+            if (sep > 0) {
+                try {
+                    return Long.parseLong(range.substring("bytes ".length(), sep).trim());
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Opens the partial data file for writing. When starting from scratch,
+     * the validators of the new response will be stored for a later resume.
+     */
+    public OutputStream openOutput(HttpURLConnection conn, long offset) throws IOException {
+        if (offset == 0) {
+            mETag = conn.getHeaderField("ETag");
+            mLastModified = conn.getHeaderField("Last-Modified");
+            // weak validators can't be used with If-Range
+            if (mETag != null && mETag.startsWith("W/"))
+                mETag = null;
+            save();
+        }
+        return new FileOutputStream(mData, offset > 0);
+    }
+
+    /** Returns the space available for storing partial data. */
+    public long getUsableSpace() {
+        File dir = mData.getParentFile();
+        // directory might not have been created yet
+        return (dir.isDirectory() ? dir : dir.getParentFile()).getUsableSpace();
+    }
+
+    /** Opens the already downloaded data for reading. */
+    public InputStream openInput() throws IOException {
+        return new FileInputStream(mData);
+    }
+
+    private void save() throws IOException {
+        File dir = mData.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("unable to create directory " + dir);
+
+        Properties props = new Properties();
+        if (mETag != null)
+            props.setProperty(KEY_ETAG, mETag);
+        if (mLastModified != null)
+            props.setProperty(KEY_LAST_MODIFIED, mLastModified);
+
+        OutputStream out = new FileOutputStream(mMeta);
+        try {
+            props.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Moves the completed data to its final destination, dropping the metadata. */
+    public void commit(File destination) throws IOException {
+        mMeta.delete();
+        if (!mData.renameTo(destination))
+            throw new IOException("unable to rename partial download to " + destination);
+    }
+
+    /** Deletes the partial data and its metadata. */
+    public void delete() {
+        mData.delete();
+        mMeta.delete();
+        mETag = mLastModified = null;
+    }
+
+}
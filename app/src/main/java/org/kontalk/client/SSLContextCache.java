@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+
+/**
+ * Long-lived SSL contexts, used by XMPP connections and HTTP transfers.
+ * Contexts are cached per protocol, client certificate and trust settings;
+ * since each context keeps its own TLS session cache (keyed by server host
+ * and port), reconnecting to a server can resume the previous session
+ * instead of doing a full handshake with client certificate exchange.
+ * @author Daniele Ricci
+ */
+public class SSLContextCache {
+
+    private static final Map<ContextKey, SSLContext> sContexts = new HashMap<>();
+
+    private SSLContextCache() {
+    }
+
+    /**
+     * Returns a SSL context for the given client identity and trust settings.
+     * @param protocol the protocol passed to {@link SSLContext#getInstance(String)}
+     * @param privateKey client private key, null for no client certificate
+     * @param certificate client certificate, used only with its private key
+     * @param trustStore trusted certificates, ignored if accepting any certificate
+     */
+    public static SSLContext get(String protocol, PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException {
+
+        // client certificate is used only together with its private key
+        ContextKey key = new ContextKey(protocol, (privateKey != null) ? certificate : null,
+            acceptAnyCertificate, acceptAnyCertificate ? null : trustStore);
+        synchronized (sContexts) {
+            SSLContext ctx = sContexts.get(key);
+            if (ctx == null) {
+                ctx = create(protocol, privateKey, certificate, acceptAnyCertificate, trustStore);
+                sContexts.put(key, ctx);
+            }
+            return ctx;
+        }
+    }
+
+    /**
+     * Discards all cached contexts and their sessions. Must be called when
+     * the personal key or the trust settings change.
+     */
+    public static void invalidate() {
+        synchronized (sContexts) {
+            sContexts.clear();
+        }
+    }
+
+    private static SSLContext create(String protocol, PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException {
+
+        KeyManager[] km = null;
+        if (privateKey != null && certificate != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keystore.load(null, null);
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+                }
+            };
+        }
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+            tm = tmFactory.getTrustManagers();
+        }
+
+        SSLContext ctx = SSLContext.getInstance(protocol);
+        ctx.init(km, tm, null);
+        return ctx;
+    }
+
+    private static final class ContextKey {
+        private final String mProtocol;
+        private final X509Certificate mCertificate;
+        private final boolean mAcceptAnyCertificate;
+        /** Trust stores are compared by identity (they are long-lived). */
+        private final KeyStore mTrustStore;
+
+        ContextKey(String protocol, X509Certificate certificate,
+                boolean acceptAnyCertificate, KeyStore trustStore) {
+            mProtocol = protocol;
+            mCertificate = certificate;
+            mAcceptAnyCertificate = acceptAnyCertificate;
+            mTrustStore = trustStore;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ContextKey))
+                return false;
+            ContextKey other = (ContextKey) o;
+            return mProtocol.equals(other.mProtocol) &&
+                mAcceptAnyCertificate == other.mAcceptAnyCertificate &&
+                mTrustStore == other.mTrustStore &&
+                (mCertificate != null ? mCertificate.equals(other.mCertificate) : other.mCertificate == null);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mProtocol.hashCode();
+            hash = hash * 31 + (mCertificate != null ? mCertificate.hashCode() : 0);
+            hash = hash * 31 + (mTrustStore != null ? System.identityHashCode(mTrustStore) : 0);
+            return hash * 31 + (mAcceptAnyCertificate ? 1 : 0);
+        }
+    }
+
+}
@@ -35,6 +35,9 @@ public class ServerList extends ArrayList<EndpointServer> {
 
     protected final Date mDate;
 
+    /** Servers slower than the fastest one by up to this many ms are considered as fast. */
+    private static final long LATENCY_TOLERANCE = 50;
+
     private final Random mSeed = new Random();
 
     public ServerList(Date date) {
@@ -57,6 +60,32 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
+    /**
+     * Returns a random entry among the ones with the lowest known connection
+     * latency (within a tolerance, to spread the load), or null.
+     */
+    public EndpointServer fastest() {
+        EndpointLatency latency = EndpointLatency.getInstance();
+        long[] values = new long[size()];
+        long min = EndpointLatency.FAILED;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = latency.get(EndpointLatency.key(get(i)));
+            if (values[i] != EndpointLatency.UNKNOWN && values[i] < min)
+                min = values[i];
+        }
+
+        if (min == EndpointLatency.FAILED)
+            return null;
+
+        List<EndpointServer> fastest = new ArrayList<>();
+        long max = min + Math.max(LATENCY_TOLERANCE, min / 5);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != EndpointLatency.UNKNOWN && values[i] <= max)
+                fastest.add(get(i));
+        }
+        return fastest.get(mSeed.nextInt(fastest.size()));
+    }
+
     /** A simple server provider backed by a server list. */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
@@ -70,7 +99,10 @@ public class ServerList extends ArrayList<EndpointServer> {
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                // prefer the server that connected faster last time
+                EndpointServer s = mList.fastest();
+                if (s == null)
+                    s = mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
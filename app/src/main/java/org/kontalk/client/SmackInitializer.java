@@ -32,7 +32,7 @@ import org.jivesoftware.smackx.xdata.provider.DataFormProvider;
 import android.content.Context;
 
 import org.kontalk.R;
-import org.kontalk.util.NoCacheMiniDnsResolver;
+import org.kontalk.util.CachingMiniDnsResolver;
 
 
 /**
@@ -65,6 +65,9 @@ public class SmackInitializer {
             // we want to manually handle roster stuff
             Roster.setDefaultSubscriptionMode(Roster.SubscriptionMode.manual);
 
+            // persistent DNS cache
+            CachingMiniDnsResolver.getInstance().load(context);
+
             sInitialized = true;
         }
     }
@@ -89,11 +92,10 @@ public class SmackInitializer {
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.extensions.ExtensionsInitializer");
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.experimental.ExperimentalInitializer");
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.ReconnectionManager");
-        if (android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.FROYO) {
-            // java.net.IDN, needed by minidns, is not present on API level 8
-            SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.util.dns.minidns.MiniDnsResolver");
-            NoCacheMiniDnsResolver.setup();
-        }
+        // use our own caching resolver (also because java.net.IDN,
+        // needed by minidns cache, is not present on API level 8)
+        SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.util.dns.minidns.MiniDnsResolver");
+        CachingMiniDnsResolver.setup();
     }
 
 }
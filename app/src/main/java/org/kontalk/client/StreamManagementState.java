@@ -0,0 +1,61 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+
+/**
+ * Snapshot of a XEP-0198 stream management session, used for resuming the
+ * stream with a new connection.
+ * @author Daniele Ricci
+ */
+public class StreamManagementState {
+    /** Stream management session id given by the server. */
+    public final String sessionId;
+    /** Stanzas handled by us (our h value). */
+    public final long clientHandledCount;
+    /** Stanzas handled by the server (the last h value we received). */
+    public final long serverHandledCount;
+    /** Maximum resumption time in seconds. */
+    public final int maxResumptionTime;
+    /** When the stream was interrupted (wall clock time). */
+    public final long timestamp;
+    /** Stanzas sent but not acknowledged by the server yet. */
+    public final List<Stanza> unacknowledgedStanzas;
+
+    public StreamManagementState(String sessionId, long clientHandledCount, long serverHandledCount,
+            int maxResumptionTime, long timestamp, List<Stanza> unacknowledgedStanzas) {
+        this.sessionId = sessionId;
+        this.clientHandledCount = clientHandledCount;
+        this.serverHandledCount = serverHandledCount;
+        this.maxResumptionTime = maxResumptionTime;
+        this.timestamp = timestamp;
+        this.unacknowledgedStanzas = Collections.unmodifiableList(unacknowledgedStanzas);
+    }
+
+    /** Returns true if the server won't accept to resume the stream any more. */
+    public boolean isExpired(long now) {
+        return now < timestamp || now - timestamp > maxResumptionTime * 1000L;
+    }
+
+}
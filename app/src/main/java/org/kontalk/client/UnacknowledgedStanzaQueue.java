@@ -0,0 +1,149 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+
+/**
+ * Queue of stanzas waiting for acknowledgement, indexed by stanza id so
+ * that lookups don't need to scan the whole queue.
+ * @author Daniele Ricci
+ */
+class UnacknowledgedStanzaQueue extends ArrayBlockingQueue<Stanza> {
+    private static final long serialVersionUID = 1L;
+
+    /** Number of queued stanzas for each id. */
+    private final Map<String, Integer> mIds = new HashMap<>();
+
+    public UnacknowledgedStanzaQueue(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean offer(Stanza stanza) {
+        if (super.offer(stanza)) {
+            added(stanza);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(Stanza stanza, long timeout, TimeUnit unit) throws InterruptedException {
+        if (super.offer(stanza, timeout, unit)) {
+            added(stanza);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void put(Stanza stanza) throws InterruptedException {
+        super.put(stanza);
+        added(stanza);
+    }
+
+    @Override
+    public Stanza poll() {
+        return removed(super.poll());
+    }
+
+    @Override
+    public Stanza poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return removed(super.poll(timeout, unit));
+    }
+
+    @Override
+    public Stanza take() throws InterruptedException {
+        return removed(super.take());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (super.remove(o)) {
+            removed((Stanza) o);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Stanza> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Stanza> c, int maxElements) {
+        List<Stanza> drained = new ArrayList<>();
+        int count = super.drainTo(drained, maxElements);
+        for (Stanza stanza : drained)
+            removed(stanza);
+        c.addAll(drained);
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        synchronized (mIds) {
+            mIds.clear();
+        }
+    }
+
+    /** Returns true if a stanza with the given id is in the queue. */
+    public boolean containsId(String stanzaId) {
+        synchronized (mIds) {
+            return mIds.containsKey(stanzaId);
+        }
+    }
+
+    private void added(Stanza stanza) {
+        String id = stanza.getStanzaId();
+        if (id != null) {
+            synchronized (mIds) {
+                Integer count = mIds.get(id);
+                mIds.put(id, count != null ? count + 1 : 1);
+            }
+        }
+    }
+
+    private Stanza removed(Stanza stanza) {
+        String id = stanza != null ? stanza.getStanzaId() : null;
+        if (id != null) {
+            synchronized (mIds) {
+                Integer count = mIds.get(id);
+                if (count != null && count > 1)
+                    mIds.put(id, count - 1);
+                else
+                    mIds.remove(id);
+            }
+        }
+        return stanza;
+    }
+
+}
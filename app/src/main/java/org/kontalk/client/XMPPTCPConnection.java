@@ -116,14 +116,14 @@ import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
@@ -162,6 +162,23 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
     private boolean usingTLS = false;
 
+    /**
+     * Maximum number of parallel connection attempts. 1 means endpoints are tried one at a time.
+     */
+    private int connectRaceSize = 1;
+
+    private String latencyKey;
+
+    /**
+     * Duration of the last TLS handshake in milliseconds, -1 if not using TLS.
+     */
+    private long tlsHandshakeTime = -1;
+
+    /**
+     * True if the last TLS handshake resumed a previous session.
+     */
+    private boolean tlsSessionResumed;
+
     /**
      * Protected access level because of unit test purposes
      */
@@ -236,6 +253,13 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private long clientHandledStanzasCount = 0;
 
+    /**
+     * The last h value actually sent to the server. Because acks are held
+     * back until stanzas are stored (see {@link #suspendSmAck()}), this is
+     * what can be safely saved for resuming the stream from another process.
+     */
+    private long clientAckedStanzasCount = 0;
+
     /**
      * Whether we have a pending ack request waiting for a reply.
      */
@@ -246,7 +270,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private final Object clientHandledStanzasCountLock = new Object();
 
-    private BlockingQueue<Stanza> unacknowledgedStanzas;
+    private UnacknowledgedStanzaQueue unacknowledgedStanzas;
 
     /**
      * Set to true if Stream Management was at least once enabled for this connection.
@@ -387,6 +411,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
 
         if (isSmResumptionPossible()) {
+            clientAckedStanzasCount = clientHandledStanzasCount;
             smResumedSyncPoint.sendAndWaitForResponse(new Resume(clientHandledStanzasCount, smSessionId));
             if (smResumedSyncPoint.wasSuccessful()) {
                 // We successfully resumed the stream, be done here
@@ -567,6 +592,10 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         if (socketFactory == null) {
             socketFactory = SocketFactory.getDefault();
         }
+        if (connectRaceSize > 1) {
+            connectRacing(socketFactory, failedAddresses);
+            return;
+        }
         for (HostAddress hostAddress : hostAddresses) {
             String host = hostAddress.getFQDN();
             int port = hostAddress.getPort();
@@ -609,6 +638,57 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         throw ConnectionException.from(failedAddresses);
     }
 
+    /**
+     * Races connections to all addresses of all host addresses, keeping the first one that connects.
+     */
+    private void connectRacing(SocketFactory socketFactory, List<HostAddress> failedAddresses)
+                    throws ConnectionException {
+        List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+        Map<InetSocketAddress, HostAddress> endpointHosts = new HashMap<InetSocketAddress, HostAddress>();
+        for (HostAddress hostAddress : hostAddresses) {
+            try {
+                for (InetAddress inetAddress : InetAddress.getAllByName(hostAddress.getFQDN())) {
+                    InetSocketAddress endpoint = new InetSocketAddress(inetAddress, hostAddress.getPort());
+                    if (!endpointHosts.containsKey(endpoint)) {
+                        endpoints.add(endpoint);
+                        endpointHosts.put(endpoint, hostAddress);
+                    }
+                }
+            }
+            catch (UnknownHostException e) {
+                hostAddress.setException(e);
+                failedAddresses.add(hostAddress);
+            }
+        }
+
+        if (!endpoints.isEmpty()) {
+            EndpointLatency latency = EndpointLatency.getInstance();
+            try {
+                socket = new ConnectRace(socketFactory, config.getConnectTimeout(),
+                                connectRaceSize, latency).connect(endpoints);
+                InetSocketAddress endpoint = (InetSocketAddress) socket.getRemoteSocketAddress();
+                HostAddress hostAddress = endpointHosts.get(endpoint);
+                if (hostAddress == null) {
+                    hostAddress = endpointHosts.get(endpoints.get(0));
+                }
+                LOGGER.finer("Established TCP connection to " + endpoint);
+                // remember latency of the server too
+                latency.record(getLatencyKey(), latency.get(EndpointLatency.key(endpoint)));
+                this.host = hostAddress.getFQDN();
+                this.port = hostAddress.getPort();
+                return;
+            }
+            catch (IOException e) {
+                latency.failed(getLatencyKey());
+                for (HostAddress hostAddress : new HashSet<HostAddress>(endpointHosts.values())) {
+                    hostAddress.setException(e);
+                    failedAddresses.add(hostAddress);
+                }
+            }
+        }
+        throw ConnectionException.from(failedAddresses);
+    }
+
     /**
      * Initializes the connection by creating a stanza(/packet) reader and writer and opening a
      * XMPP stream to the server.
@@ -762,7 +842,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         initReaderAndWriter();
 
         // Proceed to do the handshake
-        sslSocket.startHandshake();
+        startHandshake(sslSocket);
 
         final HostnameVerifier verifier = getConfiguration().getHostnameVerifier();
         if (verifier == null) {
@@ -775,6 +855,34 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         usingTLS = true;
     }
 
+    private void startHandshake(SSLSocket sslSocket) throws IOException {
+        long start = System.currentTimeMillis();
+        sslSocket.startHandshake();
+        tlsHandshakeTime = System.currentTimeMillis() - start;
+        // a resumed session was created before this handshake
+        tlsSessionResumed = sslSocket.getSession().getCreationTime() < start;
+        LOGGER.fine("TLS handshake completed in " + tlsHandshakeTime + " ms" +
+                        (tlsSessionResumed ? " (session resumed)" : ""));
+    }
+
+    /**
+     * Returns the duration of the last TLS handshake in milliseconds, or -1 if TLS is not being used.
+     *
+     * @return the duration of the last TLS handshake.
+     */
+    public long getTlsHandshakeTime() {
+        return tlsHandshakeTime;
+    }
+
+    /**
+     * Returns true if the last TLS handshake resumed a previous TLS session (abbreviated handshake).
+     *
+     * @return true if the TLS session was resumed.
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsSessionResumed;
+    }
+
     /**
      * Returns the compression handler that can be used for one compression methods offered by the server.
      * 
@@ -844,7 +952,19 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     protected void connectInternal() throws SmackException, IOException, XMPPException {
         // Establishes the TCP connection to the server and does setup the reader and writer. Throws an exception if
         // there is an error establishing the connection
+        tlsHandshakeTime = -1;
+        tlsSessionResumed = false;
         connectUsingConfiguration();
+        if (socket instanceof SSLSocket) {
+            // direct TLS: do the handshake now to measure it
+            try {
+                startHandshake((SSLSocket) socket);
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
 
         // We connected successfully to the servers TCP port
         socketClosed = false;
@@ -1091,6 +1211,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                                 smSessionId = null;
                             }
                             clientHandledStanzasCount = 0;
+                            clientAckedStanzasCount = 0;
                             ackPending = false;
                             smAckSuspend = false;
                             smWasEnabledAtLeastOnce = true;
@@ -1331,7 +1452,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                         // The client needs to add messages to the unacknowledged stanzas queue
                         // right after it sent 'enabled'. Stanza will be added once
                         // unacknowledgedStanzas is not null.
-                        unacknowledgedStanzas = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                        unacknowledgedStanzas = new UnacknowledgedStanzaQueue(QUEUE_SIZE);
                     }
                     // Check if the stream element should be put to the unacknowledgedStanza
                     // queue. Note that we can not do the put() in sendStanzaInternal() and the
@@ -1480,6 +1601,30 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         this.useSmResumption = useSmResumption;
     }
 
+    /**
+     * Set the maximum number of parallel connection attempts. If greater than 1, connections to
+     * all resolved addresses are raced and the first one to connect is used.
+     *
+     * @param size the maximum number of parallel connection attempts.
+     */
+    public void setConnectRaceSize(int size) {
+        connectRaceSize = size;
+    }
+
+    /**
+     * Set the key the connection latency to the server is recorded under in
+     * {@link EndpointLatency}. Defaults to the service name.
+     *
+     * @param key the latency key of the server.
+     */
+    public void setLatencyKey(String key) {
+        latencyKey = key;
+    }
+
+    private String getLatencyKey() {
+        return latencyKey != null ? latencyKey : getServiceName();
+    }
+
     /**
      * Set the preferred resumption time in seconds.
      * @param resumptionTime the preferred resumption time in seconds
@@ -1563,7 +1708,9 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     }
 
     private void sendSmAcknowledgementInternal() throws NotConnectedException {
-        packetWriter.sendStreamElement(new AckAnswer(clientHandledStanzasCount));
+        long handledCount = clientHandledStanzasCount;
+        packetWriter.sendStreamElement(new AckAnswer(handledCount));
+        clientAckedStanzasCount = handledCount;
     }
 
     /**
@@ -1821,4 +1968,53 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
     }
 
+    /**
+     * Returns a snapshot of the stream management state, for resuming the
+     * stream later with a new connection. The connection must have been shut
+     * down with {@link #instantShutdown()}.
+     * The saved h value is the last one sent to the server: stanzas received
+     * after that might not have been stored yet, so the server will send them
+     * again when the stream is resumed.
+     * @return the state or null if the stream can't be resumed
+     */
+    public synchronized StreamManagementState getStreamManagementState() {
+        if (!isDisconnectedButSmResumptionPossible() || unacknowledgedStanzas == null)
+            return null;
+
+        Long shutdownTimestamp = packetWriter.shutdownTimestamp;
+        return new StreamManagementState(smSessionId,
+            clientAckedStanzasCount, serverHandledStanzasCount,
+            getMaxSmResumptionTime(),
+            shutdownTimestamp != null ? shutdownTimestamp : System.currentTimeMillis(),
+            new ArrayList<Stanza>(unacknowledgedStanzas));
+    }
+
+    /**
+     * Restores the state of a previous stream management session, so that
+     * the next login will try to resume it. If resumption fails, a new
+     * session will be established and the unacknowledged stanzas will be
+     * sent again. Must be called before connecting.
+     */
+    public synchronized void restoreStreamManagementState(StreamManagementState state) {
+        if (isConnected())
+            throw new IllegalStateException("connection already established");
+
+        smSessionId = state.sessionId;
+        clientHandledStanzasCount = state.clientHandledCount;
+        clientAckedStanzasCount = state.clientHandledCount;
+        serverHandledStanzasCount = state.serverHandledCount;
+        smServerMaxResumptimTime = state.maxResumptionTime;
+        unacknowledgedStanzas = new UnacknowledgedStanzaQueue(QUEUE_SIZE);
+        for (Stanza stanza : state.unacknowledgedStanzas) {
+            if (!unacknowledgedStanzas.offer(stanza))
+                break;
+        }
+    }
+
+    /** Returns true if a stanza with the given id is waiting for acknowledgement. */
+    public boolean isStanzaUnacknowledged(String stanzaId) {
+        final UnacknowledgedStanzaQueue queue = unacknowledgedStanzas;
+        return queue != null && stanzaId != null && queue.containsId(stanzaId);
+    }
+
 }
@@ -31,9 +31,11 @@ import android.database.Cursor;
  */
 public class SearchItem {
     public static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
+        Messages._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.SNIPPET,
+        Fulltext.RANK,
+        Fulltext.TIMESTAMP,
     };
 
     protected final long mId;
@@ -65,6 +67,10 @@ public class SearchItem {
         return mUserId;
     }
 
+    /**
+     * Returns an excerpt of the message text, with matches enclosed by
+     * {@link Fulltext#SNIPPET_START} and {@link Fulltext#SNIPPET_END}.
+     */
     public String getText() {
         return mText;
     }
@@ -80,10 +86,23 @@ public class SearchItem {
         return new SearchItem(context, id, threadId, text);
     }
 
-    public static Cursor query(Context context, String query) {
+    /** Returns a page of matches of a search, most relevant first. */
+    public static Cursor query(Context context, String query, int offset, int count) {
+        return query(context, query, Fulltext.RELEVANCE_SORT_ORDER, offset, count);
+    }
+
+    /**
+     * Returns a page of matches of a search.
+     * @param sortOrder {@link Fulltext#RELEVANCE_SORT_ORDER} or {@link Fulltext#DATE_SORT_ORDER}
+     */
+    public static Cursor query(Context context, String query, String sortOrder, int offset, int count) {
         // TODO enhanced queries?
         return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
-                SEARCH_PROJECTION, null, null, null);
+                    .buildUpon()
+                    .appendQueryParameter(Fulltext.PATTERN, query + "*")
+                    .appendQueryParameter(Fulltext.OFFSET, String.valueOf(offset))
+                    .appendQueryParameter(Fulltext.COUNT, String.valueOf(count))
+                    .build(),
+                SEARCH_PROJECTION, null, null, sortOrder);
     }
 }
@@ -19,18 +19,26 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 
 import org.kontalk.client.EndpointServer;
@@ -46,6 +54,62 @@ import org.kontalk.crypto.PersonalKey;
  */
 public class Keyring {
 
+    /**
+     * Parsed public keyrings cache.
+     * Entries are keyed by JID, fingerprint and the minimum trust level used
+     * for the lookup, so a new key for the same JID will naturally miss.
+     * @author Daniele Ricci
+     */
+    private final static class PublicKeyCache extends LruCache<String, PGPPublicKeyRing> {
+        private static final int MAX_ENTRIES = 50;
+
+        /** Incremented on every invalidation to discard stale parsing results. */
+        private long mGeneration;
+
+        public PublicKeyCache() {
+            super(MAX_ENTRIES);
+        }
+
+        private static String key(String jid, String fingerprint, int trustLevel) {
+            return jid + '|' + fingerprint + '|' + trustLevel;
+        }
+
+        public PGPPublicKeyRing get(String jid, String fingerprint, int trustLevel) {
+            return get(key(jid, fingerprint, trustLevel));
+        }
+
+        public synchronized long generation() {
+            return mGeneration;
+        }
+
+        /** Caches a parsed keyring only if no invalidation occurred since <code>generation</code>. */
+        public synchronized void put(String jid, String fingerprint, int trustLevel,
+                PGPPublicKeyRing ring, long generation) {
+            if (generation == mGeneration)
+                put(key(jid, fingerprint, trustLevel), ring);
+        }
+
+        /** Removes all cached keyrings for the given JID. */
+        public synchronized void invalidate(String jid) {
+            mGeneration++;
+            String prefix = jid + '|';
+            for (String key : snapshot().keySet()) {
+                if (key.startsWith(prefix))
+                    remove(key);
+            }
+        }
+
+        public synchronized void invalidateAll() {
+            mGeneration++;
+            evictAll();
+        }
+    }
+
+    private final static PublicKeyCache sPublicKeyCache = new PublicKeyCache();
+
+    /** Maximum number of JIDs in a single query. */
+    private static final int MAX_QUERY_PARAMETERS = 500;
+
     private Keyring() {
     }
 
@@ -94,6 +158,7 @@ public class Keyring {
         if (trustLevel >= 0)
             values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sPublicKeyCache.invalidate(jid);
     }
 
     /** Updates the fingerprint and the date (for fingerprint in presence). */
@@ -108,6 +173,63 @@ public class Keyring {
         if (trustLevel >= 0)
             values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sPublicKeyCache.invalidate(jid);
+    }
+
+    /**
+     * Returns an operation updating the fingerprint and the date (for
+     * fingerprint in presence), to be applied in a batch. Call
+     * {@link #invalidate} after applying the batch.
+     */
+    public static ContentProviderOperation setKeyOperation(String jid, String fingerprint, Date date) {
+        return ContentProviderOperation.newInsert(MyUsers.Keys.getUri(jid, fingerprint))
+            .withValue(MyUsers.Keys.TIMESTAMP, date.getTime())
+            .build();
+    }
+
+    /** Discards cached data for the given users after their keys were changed. */
+    public static void invalidate(Collection<String> jids) {
+        for (String jid : jids)
+            sPublicKeyCache.invalidate(jid);
+    }
+
+    /**
+     * Returns the fingerprints of the keys we have actual key data for,
+     * for each of the given users. Fingerprints are uppercase.
+     */
+    public static Map<String, Set<String>> getKeyFingerprints(Context context, Collection<String> jids) {
+        Map<String, Set<String>> fingerprints = new HashMap<>(jids.size());
+        List<String> list = new ArrayList<>(jids);
+
+        // keep under the SQLite host parameters limit
+        for (int start = 0; start < list.size(); start += MAX_QUERY_PARAMETERS) {
+            List<String> chunk = list.subList(start, Math.min(list.size(), start + MAX_QUERY_PARAMETERS));
+            StringBuilder where = new StringBuilder(MyUsers.Keys.PUBLIC_KEY)
+                .append(" IS NOT NULL AND ")
+                .append(MyUsers.Keys.JID)
+                .append(" IN (");
+            for (int i = 0; i < chunk.size(); i++)
+                where.append(i > 0 ? ",?" : "?");
+            where.append(')');
+
+            Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+                new String[] { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT },
+                where.toString(), chunk.toArray(new String[chunk.size()]), null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    String jid = c.getString(0);
+                    Set<String> jidFingerprints = fingerprints.get(jid);
+                    if (jidFingerprints == null) {
+                        jidFingerprints = new HashSet<>();
+                        fingerprints.put(jid, jidFingerprints);
+                    }
+                    jidFingerprints.add(c.getString(1).toUpperCase(Locale.US));
+                }
+                c.close();
+            }
+        }
+
+        return fingerprints;
     }
 
     /** Sets the trust level for the given key. */
@@ -115,6 +237,7 @@ public class Keyring {
         ContentValues values = new ContentValues(1);
         values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sPublicKeyCache.invalidate(jid);
     }
 
     /**
@@ -137,16 +260,36 @@ public class Keyring {
      * @param trustLevel the minimum trust level to consider
      */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, int trustLevel) {
-        TrustedPublicKeyData key = getPublicKeyData(context, jid, trustLevel);
+        // cheap lookup (covered by index) to find out which key we would use
+        String fingerprint = getFingerprint(context, jid, trustLevel);
+        if (fingerprint == null)
+            return null;
 
-        try {
-            return PGP.readPublicKeyring(key.keyData);
+        PGPPublicKeyRing ring = sPublicKeyCache.get(jid, fingerprint, trustLevel);
+        if (ring != null)
+            return ring;
+
+        long generation = sPublicKeyCache.generation();
+        byte[] keydata = null;
+        Cursor c = queryLatestWithMinimumTrustLevel(context, jid, trustLevel,
+            MyUsers.Keys.FINGERPRINT, MyUsers.Keys.PUBLIC_KEY);
+        if (c.moveToFirst()) {
+            fingerprint = c.getString(0);
+            keydata = c.getBlob(1);
         }
-        catch (Exception e) {
-            // ignored
+        c.close();
+
+        if (keydata != null) {
+            try {
+                ring = PGP.readPublicKeyring(keydata);
+                sPublicKeyCache.put(jid, fingerprint, trustLevel, ring, generation);
+            }
+            catch (Exception e) {
+                // ignored
+            }
         }
 
-        return null;
+        return ring;
     }
 
     /**
@@ -187,7 +330,9 @@ public class Keyring {
             values[i].put(MyUsers.Keys.FINGERPRINT, e.getValue().fingerprint);
             values[i].put(MyUsers.Keys.TRUST_LEVEL, e.getValue().trustLevel);
         }
-        return context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI, values);
+        int rows = context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI, values);
+        sPublicKeyCache.invalidateAll();
+        return rows;
     }
 
     /** Returns a JID-fingerprint map of trusted keys. */
@@ -20,15 +20,22 @@ package org.kontalk.provider;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -37,6 +44,7 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -70,6 +78,7 @@ public class MessagesProvider extends ContentProvider {
     private static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_MESSAGES_GROUPS = "messages_groups";
     private static final String TABLE_FULLTEXT = "fulltext";
+    private static final String TABLE_FULLTEXT_BACKFILL = "fulltext_backfill";
     private static final String TABLE_THREADS = "threads";
     private static final String TABLE_GROUPS = "groups";
     private static final String TABLE_GROUP_MEMBERS = "group_members";
@@ -94,16 +103,35 @@ public class MessagesProvider extends ContentProvider {
     private static final int FULLTEXT_ID = 13;
     private static final int REQUESTS = 14;
 
+    /** Range of message IDs indexed by each full text backfill step. */
+    private static final int FULLTEXT_BACKFILL_CHUNK = 500;
+    /** Delay between full text backfill steps. */
+    private static final long FULLTEXT_BACKFILL_DELAY = 200;
+
+    /** Maximum number of rows in bulk inserts between yield points. */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 100;
+
     private DatabaseHelper dbHelper;
+    /** Change notifications deferred until the end of a batch (per calling thread). */
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<>();
+    /** Threads whose metadata will be updated at the end of a batch (per calling thread). */
+    private final ThreadLocal<Set<Long>> mBatchThreads = new ThreadLocal<>();
+    /** Coalesces change notifications. */
+    private NotificationDispatcher mNotifications;
+    /** Dispatcher of the running provider instance, for statistics. */
+    private static NotificationDispatcher sNotifications;
+    /** Serializes transactions on platforms without native transaction locking. */
+    private final ReentrantLock mLegacyTransactionLock = new ReentrantLock();
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
+    private static HashMap<String, String> legacyFulltextProjectionMap;
     private static HashMap<String, String> groupsMembersProjectionMap;
     private static HashMap<String, String> groupsProjectionMap;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 10;
+        private static final int DATABASE_VERSION = 12;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -213,13 +241,93 @@ public class MessagesProvider extends ContentProvider {
             TABLE_THREADS + "." + Threads._ID + "=" +
             TABLE_GROUPS + "." + Groups.THREAD_ID;
 
-        /** This table will contain every text message to speed-up full text searches. */
+        /**
+         * This table will contain every text message to speed-up full text searches.
+         * Used on platforms not supporting {@link #SCHEMA_FULLTEXT_EXTERNAL}.
+         */
         private static final String SCHEMA_FULLTEXT =
             "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
             "thread_id INTEGER NOT NULL, " +
             "content TEXT" +
             ")";
 
+        /**
+         * Full text index of text messages. Text is read from the messages
+         * table and the index is kept up to date by triggers.
+         */
+        private static final String SCHEMA_FULLTEXT_EXTERNAL =
+            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts4 (" +
+            "body_content, " +
+            "content=\"" + TABLE_MESSAGES + "\", " +
+            // prefix indexes for search-as-you-type
+            "prefix=\"2,3\"" +
+            ")";
+
+        /**
+         * Messages with an ID up to next_id are still to be added to the full
+         * text index (see {@link #backfillFulltext}).
+         */
+        private static final String SCHEMA_FULLTEXT_BACKFILL =
+            "CREATE TABLE " + TABLE_FULLTEXT_BACKFILL + " (" +
+            "next_id INTEGER NOT NULL" +
+            ")";
+
+        /** Messages whose text goes into the full text index. */
+        private static final String FULLTEXT_INDEXED_OLD =
+            "old.body_mime = '" + TextComponent.MIME_TYPE + "' AND old.encrypted = 0 AND " +
+            "LENGTH(old.body_content) > 0 AND old._id > " +
+            "IFNULL((SELECT next_id FROM " + TABLE_FULLTEXT_BACKFILL + "), 0)";
+        private static final String FULLTEXT_INDEXED_NEW =
+            "new.body_mime = '" + TextComponent.MIME_TYPE + "' AND new.encrypted = 0 AND " +
+            "LENGTH(new.body_content) > 0 AND new._id > " +
+            "IFNULL((SELECT next_id FROM " + TABLE_FULLTEXT_BACKFILL + "), 0)";
+
+        private static final String FULLTEXT_DELETE_OLD =
+            "DELETE FROM " + TABLE_FULLTEXT + " WHERE docid = old._id";
+        private static final String FULLTEXT_INSERT_NEW =
+            "INSERT INTO " + TABLE_FULLTEXT + " (docid, body_content) VALUES (new._id, new.body_content)";
+
+        /*
+         * Entries of the external content index must be removed before the
+         * message text changes, since the old text is read from the messages
+         * table to remove them.
+         */
+
+        private static final String TRIGGER_FULLTEXT_INSERT =
+            "CREATE TRIGGER fulltext_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " WHEN " + FULLTEXT_INDEXED_NEW +
+            " BEGIN " + FULLTEXT_INSERT_NEW + "; END";
+
+        private static final String TRIGGER_FULLTEXT_BEFORE_UPDATE =
+            "CREATE TRIGGER fulltext_before_update BEFORE UPDATE OF body_mime, body_content, encrypted ON " + TABLE_MESSAGES +
+            " WHEN " + FULLTEXT_INDEXED_OLD +
+            " BEGIN " + FULLTEXT_DELETE_OLD + "; END";
+
+        private static final String TRIGGER_FULLTEXT_AFTER_UPDATE =
+            "CREATE TRIGGER fulltext_after_update AFTER UPDATE OF body_mime, body_content, encrypted ON " + TABLE_MESSAGES +
+            " WHEN " + FULLTEXT_INDEXED_NEW +
+            " BEGIN " + FULLTEXT_INSERT_NEW + "; END";
+
+        private static final String TRIGGER_FULLTEXT_DELETE =
+            "CREATE TRIGGER fulltext_before_delete BEFORE DELETE ON " + TABLE_MESSAGES +
+            " WHEN " + FULLTEXT_INDEXED_OLD +
+            " BEGIN " + FULLTEXT_DELETE_OLD + "; END";
+
+        /** Adds a range of messages to the full text index. */
+        private static final String FULLTEXT_BACKFILL =
+            "INSERT INTO " + TABLE_FULLTEXT + " (docid, body_content) " +
+            "SELECT _id, body_content FROM " + TABLE_MESSAGES + " WHERE _id > ? AND _id <= ? AND " +
+            "body_mime = '" + TextComponent.MIME_TYPE + "' AND encrypted = 0 AND LENGTH(body_content) > 0";
+
+        private static final String[] SCHEMA_FULLTEXT_EXTERNAL_ALL = {
+            SCHEMA_FULLTEXT_EXTERNAL,
+            SCHEMA_FULLTEXT_BACKFILL,
+            TRIGGER_FULLTEXT_INSERT,
+            TRIGGER_FULLTEXT_BEFORE_UPDATE,
+            TRIGGER_FULLTEXT_AFTER_UPDATE,
+            TRIGGER_FULLTEXT_DELETE,
+        };
+
         private static final String SCHEMA_MESSAGES_INDEX =
             "CREATE UNIQUE INDEX IF NOT EXISTS unique_message ON " + TABLE_MESSAGES +
             " (msg_id, direction)";
@@ -228,35 +336,40 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread new count. */
-        private static final String UPDATE_NEW_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_NEW_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = old.thread_id";
+        /** Used for sorting messages within a thread and to find its latest message. */
+        private static final String SCHEMA_MESSAGES_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        /** Adds the new message to the thread counters. */
+        private static final String THREAD_COUNTERS_ADD_NEW =
+            "UPDATE " + TABLE_THREADS + " SET count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+            "WHERE _id = new.thread_id";
+        /** Removes the old message from the thread counters. */
+        private static final String THREAD_COUNTERS_REMOVE_OLD =
+            "UPDATE " + TABLE_THREADS + " SET count = count - 1, " +
+            "unread = unread - (old.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+            "WHERE _id = old.thread_id";
+
+        /** Recalculates all thread counters from the messages table. */
+        private static final String THREAD_COUNTERS_RECOUNT =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+            "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
+        /** Selects threads whose counters don't match the messages table. */
+        private static final String THREAD_COUNTERS_CHECK =
+            "SELECT t._id FROM " + TABLE_THREADS + " t LEFT JOIN " +
+            "(SELECT thread_id, COUNT(_id) AS c, SUM(unread <> 0) AS u, SUM(\"new\" <> 0) AS n " +
+            "FROM " + TABLE_MESSAGES + " GROUP BY thread_id) m ON t._id = m.thread_id " +
+            "WHERE t.count <> IFNULL(m.c, 0) OR t.unread <> IFNULL(m.u, 0) OR t.\"new\" <> IFNULL(m.n, 0)";
 
         /** Updates the thread status reflected by the latest message. */
         /*
@@ -274,19 +387,28 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
+            THREAD_COUNTERS_ADD_NEW   + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
-        /** This trigger will update the threads table counters on UPDATE. */
+        /**
+         * This trigger will update the threads table counters on UPDATE.
+         * It will run only if the message changed thread or flags.
+         */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF thread_id, unread, \"new\" ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id OR " +
+            "(old.unread <> 0) <> (new.unread <> 0) OR " +
+            "(old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
+            " BEGIN " +
+            THREAD_COUNTERS_REMOVE_OLD + ";" +
+            THREAD_COUNTERS_ADD_NEW    + ";" +
+            "END";
+
+        /** This trigger will update the threads table status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_status_on_update AFTER UPDATE OF status, thread_id ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
@@ -298,9 +420,7 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            UPDATE_NEW_COUNT_OLD      + ";" +
+            THREAD_COUNTERS_REMOVE_OLD + ";" +
             // do not call this here -- UPDATE_STATUS_OLD         + ";" +
             "END";
 
@@ -360,11 +480,39 @@ public class MessagesProvider extends ContentProvider {
             SCHEMA_MESSAGES_GROUPS,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V10 = {
+            // replace counting triggers with incremental ones
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            SCHEMA_MESSAGES_THREAD_IDX,
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // start from consistent counters
+            THREAD_COUNTERS_RECOUNT,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V11 = {
+            // old fulltext index will be rebuilt by backfill
+            "DROP TABLE IF EXISTS " + TABLE_FULLTEXT,
+        };
+
         private Context mContext;
+        private volatile boolean mExternalFulltext;
 
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
+            // readers won't be blocked by writers
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN)
+                enableWriteAheadLogging();
+        }
+
+        @TargetApi(android.os.Build.VERSION_CODES.JELLY_BEAN)
+        private void enableWriteAheadLogging() {
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -374,11 +522,20 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_GROUPS);
             db.execSQL(SCHEMA_GROUPS_MEMBERS);
             db.execSQL(SCHEMA_MESSAGES_GROUPS);
-            db.execSQL(SCHEMA_FULLTEXT);
+            if (supportsExternalFulltext()) {
+                for (String sql : SCHEMA_FULLTEXT_EXTERNAL_ALL)
+                    db.execSQL(sql);
+                db.execSQL("INSERT INTO " + TABLE_FULLTEXT_BACKFILL + " VALUES (0)");
+            }
+            else {
+                db.execSQL(SCHEMA_FULLTEXT);
+            }
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_STATUS);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
         }
@@ -422,24 +579,160 @@ public class MessagesProvider extends ContentProvider {
                     db.execSQL(sql);
                 }
             }
+
+            if (oldVersion <= 10) {
+                for (String sql : SCHEMA_UPGRADE_V10) {
+                    db.execSQL(sql);
+                }
+            }
+
+            if (oldVersion <= 11 && supportsExternalFulltext()) {
+                for (String sql : SCHEMA_UPGRADE_V11)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_FULLTEXT_EXTERNAL_ALL)
+                    db.execSQL(sql);
+                // existing messages will be indexed in the background
+                db.execSQL("INSERT INTO " + TABLE_FULLTEXT_BACKFILL +
+                    " SELECT IFNULL(MAX(_id), 0) FROM " + TABLE_MESSAGES);
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            mExternalFulltext = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master " +
+                "WHERE type = 'table' AND name = '" + TABLE_FULLTEXT_BACKFILL + "'", null) > 0;
+        }
+
+        /**
+         * FTS4 external content tables and prefix indexes need SQLite 3.7.9,
+         * available since Jelly Bean.
+         */
+        private static boolean supportsExternalFulltext() {
+            return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
+        }
+
+        /**
+         * Returns true if the fulltext table is an external content index
+         * maintained by triggers.
+         */
+        boolean isExternalFulltext() {
+            // database must be open
+            getReadableDatabase();
+            return mExternalFulltext;
+        }
+
+        /**
+         * Adds the next range of messages to the full text index, starting
+         * from the most recent ones.
+         * @return true if more messages need to be indexed
+         */
+        boolean backfillFulltext(SQLiteDatabase db, int chunk) {
+            if (!mExternalFulltext)
+                return false;
+
+            long nextId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(next_id), 0) FROM " +
+                TABLE_FULLTEXT_BACKFILL, null);
+            if (nextId <= 0)
+                return false;
+
+            long lowId = Math.max(0, nextId - chunk);
+            db.execSQL(FULLTEXT_BACKFILL, new Object[] { lowId, nextId });
+            db.execSQL("UPDATE " + TABLE_FULLTEXT_BACKFILL + " SET next_id = ?", new Object[] { lowId });
+            return lowId > 0;
+        }
+
+        /**
+         * Checks thread counters against the messages table and recalculates
+         * the wrong ones.
+         * @return the number of threads that were repaired
+         */
+        int repairThreadCounters(SQLiteDatabase db) {
+            int count = (int) DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + THREAD_COUNTERS_CHECK + ")", null);
+
+            if (count > 0) {
+                Log.w(TAG, "repairing counters for " + count + " threads");
+                // no bound variables: works with any number of threads
+                db.execSQL(THREAD_COUNTERS_RECOUNT +
+                    " WHERE _id IN (" + THREAD_COUNTERS_CHECK + ")");
+            }
+
+            return count;
         }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+        final ContentResolver resolver = getContext().getContentResolver();
+        mNotifications = new NotificationDispatcher(new NotificationDispatcher.Listener() {
+            @Override
+            public void onChange(String uri) {
+                resolver.notifyChange(Uri.parse(uri), null);
+            }
+        }, NotificationDispatcher.DEFAULT_WINDOW);
+        sNotifications = mNotifications;
+        startFulltextBackfill();
         return true;
     }
 
+    /** Adds messages not indexed yet to the full text index, in the background. */
+    private void startFulltextBackfill() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    boolean more;
+                    do {
+                        more = backfillFulltext();
+                        // leave room for other writers
+                        if (more)
+                            Thread.sleep(FULLTEXT_BACKFILL_DELAY);
+                    } while (more);
+                }
+                catch (InterruptedException ignored) {
+                }
+                catch (RuntimeException e) {
+                    // index will be completed next time
+                    Log.w(TAG, "error indexing messages", e);
+                }
+            }
+        }, "FulltextBackfill");
+        thread.start();
+    }
+
+    private boolean backfillFulltext() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        try {
+            beginTransaction(db);
+            boolean more = dbHelper.backfillFulltext(db, FULLTEXT_BACKFILL_CHUNK);
+            success = setTransactionSuccessful(db);
+            return more;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+    }
+
     @Override
     public void shutdown() {
+        mNotifications.flush();
         dbHelper.close();
     }
 
+    /** Returns statistics about change notifications sent by the provider. */
+    public static String getNotificationStats() {
+        NotificationDispatcher notifications = sNotifications;
+        return notifications != null ? notifications.getStats() : "not running";
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         SQLitePagedQueryBuilder qb = new SQLitePagedQueryBuilder();
+        String limit = null;
 
         switch (sUriMatcher.match(uri)) {
             case MESSAGES:
@@ -503,12 +796,39 @@ public class MessagesProvider extends ContentProvider {
                 qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
                 break;
 
-            case FULLTEXT_ID:
-                qb.setTables(TABLE_FULLTEXT);
-                qb.setProjectionMap(fulltextProjectionMap);
-                qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
-                selectionArgs = new String[] { uri.getQueryParameter("pattern") };
+            case FULLTEXT_ID: {
+                qb.setTables(TABLE_FULLTEXT + " JOIN " + TABLE_MESSAGES + " ON " +
+                    TABLE_MESSAGES + "." + Messages._ID + "=" + TABLE_FULLTEXT + ".docid");
+                if (dbHelper.isExternalFulltext()) {
+                    qb.setProjectionMap(fulltextProjectionMap);
+                    qb.appendWhere(TABLE_FULLTEXT + " MATCH ?");
+                }
+                else {
+                    qb.setProjectionMap(legacyFulltextProjectionMap);
+                    qb.appendWhere(TABLE_FULLTEXT + "." + Fulltext.CONTENT + " MATCH ?");
+                }
+                selectionArgs = new String[] { uri.getQueryParameter(Fulltext.PATTERN) };
+
+                if (sortOrder == null)
+                    sortOrder = Fulltext.RELEVANCE_SORT_ORDER;
+
+                // page of results if requested
+                int pageCount = 0;
+                int pageOffset = 0;
+                try {
+                    pageCount = Integer.parseInt(uri.getQueryParameter(Fulltext.COUNT));
+                }
+                catch (Exception ignored) {
+                }
+                try {
+                    pageOffset = Integer.parseInt(uri.getQueryParameter(Fulltext.OFFSET));
+                }
+                catch (Exception ignored) {
+                }
+                if (pageCount > 0)
+                    limit = Math.max(0, pageOffset) + "," + pageCount;
                 break;
+            }
 
             case GROUPS_ID:
                 qb.setTables(TABLE_GROUPS);
@@ -544,14 +864,14 @@ public class MessagesProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
     @Override
-    public synchronized Uri insert(@NonNull Uri uri, ContentValues initialValues) {
+    public Uri insert(@NonNull Uri uri, ContentValues initialValues) {
         if (initialValues == null)
             throw new IllegalArgumentException("No data");
 
@@ -686,9 +1006,8 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+                notifyChange(nuri);
         }
     }
 
@@ -869,8 +1188,27 @@ public class MessagesProvider extends ContentProvider {
         return threadId;
     }
 
+    private int repairThreadCounters() {
+        int rows = 0;
+        boolean success = false;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        try {
+            beginTransaction(db);
+            rows = dbHelper.repairThreadCounters(db);
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
+        }
+
+        if (rows > 0)
+            notifyChange(Threads.CONTENT_URI);
+        return rows;
+    }
+
     @Override
-    public synchronized int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         String table;
         String where;
         String[] args;
@@ -905,6 +1243,13 @@ public class MessagesProvider extends ContentProvider {
                 break;
             }
 
+            case THREADS: {
+                // only counters repair is supported on the whole table
+                if (uri.getQueryParameter(Threads.REPAIR_COUNTERS) != null)
+                    return repairThreadCounters();
+                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+
             case THREADS_ID: {
                 long _id = ContentUris.parseId(uri);
                 table = TABLE_THREADS;
@@ -1048,7 +1393,12 @@ public class MessagesProvider extends ContentProvider {
 
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
-                            updateThreadInfo(db, threadId, notifications);
+                            // batches update each thread only once
+                            Set<Long> batchThreads = mBatchThreads.get();
+                            if (batchThreads != null)
+                                batchThreads.add(threadId);
+                            else
+                                updateThreadInfo(db, threadId, notifications);
 
                             // update fulltext if necessary
                             if (doUpdateFulltext) {
@@ -1083,9 +1433,8 @@ public class MessagesProvider extends ContentProvider {
         finally {
             endTransaction(db, success);
             if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
                 for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
+                    notifyChange(nuri);
             }
         }
     }
@@ -1096,6 +1445,10 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
+        // external index is kept up to date by triggers
+        if (dbHelper.isExternalFulltext())
+            return;
+
         // use the binary content converted to string
         String text = new String(content);
 
@@ -1107,7 +1460,7 @@ public class MessagesProvider extends ContentProvider {
     }
 
     @Override
-    public synchronized int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         String table;
         String where;
         String[] args;
@@ -1200,12 +1553,11 @@ public class MessagesProvider extends ContentProvider {
                 boolean keepGroup = Boolean.parseBoolean(uri.getQueryParameter(Messages.KEEP_GROUP));
                 int rows = deleteConversation(uri, keepGroup);
                 if (rows > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // first of all, notify conversation
-                    cr.notifyChange(uri, null);
+                    notifyChange(uri);
                     // then notify thread itself
                     long threadId = ContentUris.parseId(uri);
-                    cr.notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), null);
+                    notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
                 }
                 return rows;
                 // END :)
@@ -1224,7 +1576,8 @@ public class MessagesProvider extends ContentProvider {
                     num = db.delete(TABLE_THREADS, null, null);
                     db.delete(TABLE_MESSAGES, null, null);
                     // update fulltext
-                    db.delete(TABLE_FULLTEXT, null, null);
+                    if (!dbHelper.isExternalFulltext())
+                        db.delete(TABLE_FULLTEXT, null, null);
                     if (!keepGroup) {
                         // delete groups (members will cascade)
                         db.delete(TABLE_GROUPS, null, null);
@@ -1238,10 +1591,9 @@ public class MessagesProvider extends ContentProvider {
                 }
 
                 if (num > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // notify conversations and threads
-                    cr.notifyChange(uri, null);
-                    cr.notifyChange(Threads.CONTENT_URI, null);
+                    notifyChange(uri);
+                    notifyChange(Threads.CONTENT_URI);
                 }
 
                 return num;
@@ -1278,7 +1630,8 @@ public class MessagesProvider extends ContentProvider {
                         // update fulltext
                         int direction = c.getInt(2);
                         int encrypted = c.getInt(3);
-                        if (direction != Messages.DIRECTION_IN || encrypted == 0)
+                        if ((direction != Messages.DIRECTION_IN || encrypted == 0) &&
+                                !dbHelper.isExternalFulltext())
                             db.delete(TABLE_FULLTEXT, Fulltext._ID + " = " + c.getLong(1), null);
                     }
 
@@ -1301,9 +1654,8 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+                notifyChange(nuri);
         }
 
         return rows;
@@ -1349,7 +1701,8 @@ public class MessagesProvider extends ContentProvider {
                     num += db.delete(TABLE_GROUPS, Groups.THREAD_ID + " = " + threadId, null);
 
                 // update fulltext
-                db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
+                if (!dbHelper.isExternalFulltext())
+                    db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
 
                 // update thread information
                 updateThreadAfterDelete(db, threadId, null);
@@ -1439,15 +1792,146 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts all rows in a single transaction. Change notifications are sent
+     * only once for each URI, after all rows have been inserted. Other
+     * writers are given a chance to run every {@link #MAX_OPERATIONS_PER_YIELD_POINT}
+     * rows, committing the rows inserted so far.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        // nested transactions are not available on older platforms
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB)
+            return super.bulkInsert(uri, values);
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        beginBatch();
+
+        try {
+            beginTransaction(db);
+
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && (i % MAX_OPERATIONS_PER_YIELD_POINT) == 0)
+                    yieldBatch(db);
+                insert(uri, values[i]);
+            }
+
+            updateBatchThreads(db);
+            success = setTransactionSuccessful(db);
+            return values.length;
+        }
+        finally {
+            endTransaction(db, success);
+            endBatch(success);
+        }
+    }
+
+    /**
+     * Applies all operations in a single transaction. Thread metadata is
+     * updated and change notifications are sent only once for each thread
+     * or URI, after all operations have been applied. Other writers are given
+     * a chance to run before operations allowing it (see
+     * {@link ContentProviderOperation.Builder#withYieldAllowed}).
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // nested transactions are not available on older platforms
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB)
+            return super.applyBatch(operations);
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        beginBatch();
+
+        try {
+            beginTransaction(db);
+
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed())
+                    yieldBatch(db);
+                results[i] = operation.apply(this, results, i);
+            }
+
+            updateBatchThreads(db);
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            endTransaction(db, success);
+            endBatch(success);
+        }
+    }
+
+    private void beginBatch() {
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        mBatchThreads.set(new HashSet<Long>());
+    }
+
+    /** Updates metadata of threads modified by the current batch. */
+    private void updateBatchThreads(SQLiteDatabase db) {
+        Set<Long> batchThreads = mBatchThreads.get();
+        List<Uri> threadNotifications = new ArrayList<>();
+        for (long threadId : batchThreads)
+            updateThreadInfo(db, threadId, threadNotifications);
+        batchThreads.clear();
+        mBatchNotifications.get().addAll(threadNotifications);
+    }
+
+    /**
+     * Lets other writers run if they are waiting for the database. Threads
+     * are updated first since the batch so far might be committed.
+     */
+    private void yieldBatch(SQLiteDatabase db) {
+        updateBatchThreads(db);
+        if (db.yieldIfContendedSafely()) {
+            // the batch so far has been committed
+            Set<Uri> batchNotifications = mBatchNotifications.get();
+            for (Uri nuri : batchNotifications)
+                mNotifications.notifyChange(nuri.toString());
+            batchNotifications.clear();
+        }
+    }
+
+    private void endBatch(boolean success) {
+        Set<Uri> batchNotifications = mBatchNotifications.get();
+        mBatchNotifications.remove();
+        mBatchThreads.remove();
+        if (success) {
+            for (Uri nuri : batchNotifications)
+                notifyChange(nuri);
+        }
+    }
+
+    /**
+     * Notifies observers, or defers the notification if a batch is running.
+     * Notifications are coalesced by the dispatcher before being sent.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchNotifications = mBatchNotifications.get();
+        if (batchNotifications != null)
+            batchNotifications.add(uri);
+        else
+            mNotifications.notifyChange(uri.toString());
+    }
+
     /* Transactions compatibility layer */
 
     @TargetApi(android.os.Build.VERSION_CODES.HONEYCOMB)
     private void beginTransaction(SQLiteDatabase db) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.beginTransactionNonExclusive();
-        else
+        else {
             // this is because API < 11 doesn't have beginTransactionNonExclusive()
+            // the database object doesn't track raw transactions: keep other
+            // threads out until this transaction ends
+            mLegacyTransactionLock.lock();
             db.execSQL("BEGIN IMMEDIATE");
+        }
     }
 
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
@@ -1457,10 +1941,18 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private void endTransaction(SQLiteDatabase db, boolean success) {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
             db.endTransaction();
-        else
-            db.execSQL(success ? "COMMIT" : "ROLLBACK");
+        }
+        else {
+            try {
+                db.execSQL(success ? "COMMIT" : "ROLLBACK");
+            }
+            finally {
+                if (mLegacyTransactionLock.isHeldByCurrentThread())
+                    mLegacyTransactionLock.unlock();
+            }
+        }
     }
 
     public static boolean deleteDatabase(Context ctx) {
@@ -1676,8 +2168,22 @@ public class MessagesProvider extends ContentProvider {
         threadsProjectionMap.put(Groups.MEMBERSHIP, Groups.MEMBERSHIP);
 
         fulltextProjectionMap = new HashMap<>();
-        fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
-        fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+        fulltextProjectionMap.put(Fulltext._ID, TABLE_MESSAGES + "." + Messages._ID + " AS " + Fulltext._ID);
+        fulltextProjectionMap.put(Messages._ID, TABLE_MESSAGES + "." + Messages._ID + " AS " + Messages._ID);
+        fulltextProjectionMap.put(Fulltext.THREAD_ID, TABLE_MESSAGES + "." + Messages.THREAD_ID + " AS " + Fulltext.THREAD_ID);
+        fulltextProjectionMap.put(Fulltext.TIMESTAMP, TABLE_MESSAGES + "." + Messages.TIMESTAMP + " AS " + Fulltext.TIMESTAMP);
+        fulltextProjectionMap.put(Fulltext.SNIPPET, "snippet(" + TABLE_FULLTEXT + ", '" +
+            Fulltext.SNIPPET_START + "', '" + Fulltext.SNIPPET_END + "', '" +
+            Fulltext.SNIPPET_ELLIPSIS + "') AS " + Fulltext.SNIPPET);
+        // number of matching terms: offsets() returns 4 integers for each match
+        fulltextProjectionMap.put(Fulltext.RANK, "(LENGTH(offsets(" + TABLE_FULLTEXT + ")) - " +
+            "LENGTH(REPLACE(offsets(" + TABLE_FULLTEXT + "), ' ', '')) + 1) / 4 AS " + Fulltext.RANK);
+
+        legacyFulltextProjectionMap = new HashMap<>(fulltextProjectionMap);
+        fulltextProjectionMap.put(Fulltext.CONTENT, "CAST(" + TABLE_MESSAGES + "." +
+            Messages.BODY_CONTENT + " AS TEXT) AS " + Fulltext.CONTENT);
+        legacyFulltextProjectionMap.put(Fulltext.CONTENT, TABLE_FULLTEXT + "." +
+            Fulltext.CONTENT + " AS " + Fulltext.CONTENT);
 
         groupsProjectionMap = new HashMap<>();
         groupsProjectionMap.put(Groups.GROUP_JID, Groups.GROUP_JID);
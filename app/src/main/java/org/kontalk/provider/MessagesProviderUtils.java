@@ -34,6 +34,7 @@ import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
+import org.kontalk.upload.UploadJobStore;
 
 
 /**
@@ -139,6 +140,16 @@ public class MessagesProviderUtils {
             values, null, null);
     }
 
+    /**
+     * Checks thread counters against the messages and repairs the wrong ones.
+     * @return the number of threads that were repaired
+     */
+    public static int repairThreadCounters(Context context) {
+        return context.getContentResolver().update(Threads.CONTENT_URI
+            .buildUpon().appendQueryParameter(Threads.REPAIR_COUNTERS, "1")
+            .build(), new ContentValues(), null, null);
+    }
+
     public static int updateMedia(Context context, long id, String previewFile, Uri localUri, long length) {
         ContentValues values = new ContentValues(3);
         values.put(Messages.ATTACHMENT_PREVIEW_PATH, previewFile);
@@ -149,15 +160,21 @@ public class MessagesProviderUtils {
     }
 
     public static int deleteMessage(Context context, long id) {
-        return context.getContentResolver().delete(ContentUris
+        int rows = context.getContentResolver().delete(ContentUris
             .withAppendedId(Messages.CONTENT_URI, id), null, null);
+        // pending upload will never be resumed
+        UploadJobStore.getInstance(context).discard(id);
+        return rows;
     }
 
     public static boolean deleteThread(Context context, long id, boolean keepGroup) {
         ContentResolver c = context.getContentResolver();
-        return (c.delete(ContentUris.withAppendedId(Threads.Conversations.CONTENT_URI, id)
+        boolean deleted = (c.delete(ContentUris.withAppendedId(Threads.Conversations.CONTENT_URI, id)
             .buildUpon().appendQueryParameter(Messages.KEEP_GROUP, String.valueOf(keepGroup))
             .build(), null, null) > 0);
+        if (deleted)
+            UploadJobStore.getInstance(context).purge(context);
+        return deleted;
     }
 
     /** Inserts an empty thread (that is, with no messages). */
@@ -199,26 +216,27 @@ public class MessagesProviderUtils {
         values.remove(Groups.GROUP_TYPE);
 
         // insert group members
-        for (String member : members) {
-            // FIXME turn this into batch operations
-            values.put(Groups.PEER, member);
-            context.getContentResolver()
-                .insert(Groups.getMembersUri(groupJid), values);
+        ContentValues[] membersValues = new ContentValues[members.length];
+        for (int i = 0; i < members.length; i++) {
+            membersValues[i] = new ContentValues(values);
+            membersValues[i].put(Groups.PEER, members[i]);
         }
+        context.getContentResolver()
+            .bulkInsert(Groups.getMembersUri(groupJid), membersValues);
 
         return threadId;
     }
 
     public static void addGroupMembers(Context context, String groupJid, String[] members, boolean pending) {
-        ContentValues values = new ContentValues();
-        values.put(Groups.GROUP_JID, groupJid);
-        for (String member : members) {
-            // FIXME turn this into batch operations
-            values.put(Groups.PEER, member);
-            values.put(Groups.PENDING, pending ? Groups.MEMBER_PENDING_ADDED : 0);
-            context.getContentResolver()
-                .insert(Groups.getMembersUri(groupJid), values);
+        ContentValues[] values = new ContentValues[members.length];
+        for (int i = 0; i < members.length; i++) {
+            values[i] = new ContentValues(3);
+            values[i].put(Groups.GROUP_JID, groupJid);
+            values[i].put(Groups.PEER, members[i]);
+            values[i].put(Groups.PENDING, pending ? Groups.MEMBER_PENDING_ADDED : 0);
         }
+        context.getContentResolver()
+            .bulkInsert(Groups.getMembersUri(groupJid), values);
     }
 
     public static void removeGroupMembers(Context context, String groupJid, String[] members, boolean pending) {
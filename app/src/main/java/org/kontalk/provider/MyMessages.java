@@ -91,6 +91,24 @@ public final class MyMessages {
             public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
             public static final String CONTENT = "content";
+            public static final String TIMESTAMP = "timestamp";
+            /** Excerpt of the text with matches between {@link #SNIPPET_START} and {@link #SNIPPET_END}. */
+            public static final String SNIPPET = "snippet";
+            /** Relevance of the match (number of matching terms). */
+            public static final String RANK = "rank";
+
+            public static final String SNIPPET_START = "\u0002";
+            public static final String SNIPPET_END = "\u0003";
+            public static final String SNIPPET_ELLIPSIS = "\u2026";
+
+            // rank and timestamp must be in the projection
+            public static final String RELEVANCE_SORT_ORDER = RANK + " DESC, " + TIMESTAMP + " DESC";
+            public static final String DATE_SORT_ORDER = TIMESTAMP + " DESC";
+
+            // used as query parameters
+            public static final String PATTERN = "pattern";
+            public static final String COUNT = "count";
+            public static final String OFFSET = "offset";
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -145,6 +163,9 @@ public final class MyMessages {
         /** Unblock request is waiting to be sent. */
         public static final int REQUEST_REPLY_PENDING_UNBLOCK = 4;
 
+        // used as query parameters
+        public static final String REPAIR_COUNTERS = "repair_counters";
+
         /** Conversation represents a message group for a given thread. */
         public static final class Conversations implements BaseColumns {
             public static final Uri CONTENT_URI = Uri
@@ -0,0 +1,197 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * Coalesces content change notifications. URIs are collected for a short
+ * window (aligned to display frames) and then notified once each. Child URIs
+ * are dropped if their parent is being notified too (observers of the parent
+ * will be notified anyway) and many children of the same parent are collapsed
+ * into the parent itself.
+ * @author Daniele Ricci
+ */
+class NotificationDispatcher {
+    private static final String TAG = NotificationDispatcher.class.getSimpleName();
+
+    /** Display frame interval. */
+    static final long FRAME_INTERVAL = 16;
+    /** Minimum time notifications are held for coalescing. */
+    static final long DEFAULT_WINDOW = 2 * FRAME_INTERVAL;
+    /** Children of the same parent above this number are collapsed into the parent. */
+    static final int MAX_CHILDREN = 8;
+
+    /** Idle timer thread will be stopped after this time. */
+    private static final long KEEP_ALIVE = 10;
+
+    public interface Listener {
+        /** Called for each URI to be actually notified. */
+        void onChange(String uri);
+    }
+
+    private final Listener mListener;
+    private final long mWindow;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    private Set<String> mPending = new LinkedHashSet<>();
+    private boolean mScheduled;
+
+    private final AtomicLong mRequested = new AtomicLong();
+    private final AtomicLong mFired = new AtomicLong();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationDispatcher(Listener listener, long window) {
+        mListener = listener;
+        mWindow = window;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "NotificationDispatcher");
+            }
+        });
+        mTimer.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queues a change notification for the given URI. */
+    public void notifyChange(String uri) {
+        mRequested.incrementAndGet();
+        synchronized (this) {
+            mPending.add(uri);
+            if (!mScheduled) {
+                mScheduled = true;
+                long now = System.currentTimeMillis();
+                mTimer.schedule(mFlushTask, nextFrame(now + mWindow) - now,
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Sends all pending notifications now. */
+    public void flush() {
+        Set<String> pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new LinkedHashSet<>();
+            mScheduled = false;
+        }
+
+        for (String uri : collapse(pending)) {
+            mFired.incrementAndGet();
+            try {
+                mListener.onChange(uri);
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "error notifying change for " + uri, e);
+            }
+        }
+    }
+
+    /** Number of notifications actually sent. */
+    public long getFiredCount() {
+        return mFired.get();
+    }
+
+    /** Number of notifications merged into others or collapsed. */
+    public long getCoalescedCount() {
+        // pending notifications are not counted yet
+        long coalesced = mRequested.get() - mFired.get();
+        synchronized (this) {
+            coalesced -= mPending.size();
+        }
+        return Math.max(0, coalesced);
+    }
+
+    public String getStats() {
+        long fired = getFiredCount();
+        long coalesced = getCoalescedCount();
+        long total = fired + coalesced;
+        return fired + " fired, " + coalesced + " coalesced" +
+            (total > 0 ? " (" + (coalesced * 100 / total) + "%)" : "");
+    }
+
+    /** Returns the first frame boundary at or after the given time. */
+    static long nextFrame(long time) {
+        return (time + FRAME_INTERVAL - 1) / FRAME_INTERVAL * FRAME_INTERVAL;
+    }
+
+    /** Removes URIs covered by a parent and collapses many children into their parent. */
+    static List<String> collapse(Collection<String> uris) {
+        Map<String, Integer> children = new HashMap<>();
+        for (String uri : uris) {
+            String parent = getParent(uri);
+            if (parent != null) {
+                Integer count = children.get(parent);
+                children.put(parent, count != null ? count + 1 : 1);
+            }
+        }
+
+        Set<String> pending = new LinkedHashSet<>(uris.size());
+        for (String uri : uris) {
+            String parent = getParent(uri);
+            Integer count = (parent != null) ? children.get(parent) : null;
+            pending.add(count != null && count > MAX_CHILDREN ? parent : uri);
+        }
+
+        List<String> result = new ArrayList<>(pending.size());
+        for (String uri : pending) {
+            boolean covered = false;
+            for (String parent = getParent(uri); parent != null && !covered; parent = getParent(parent))
+                covered = pending.contains(parent);
+            if (!covered)
+                result.add(uri);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the parent of the given URI, or null if it has no parent below
+     * the authority.
+     */
+    static String getParent(String uri) {
+        int scheme = uri.indexOf("://");
+        if (scheme < 0 || uri.indexOf('?') >= 0 || uri.indexOf('#') >= 0)
+            return null;
+
+        int authorityEnd = uri.indexOf('/', scheme + 3);
+        int last = uri.lastIndexOf('/');
+        return (authorityEnd >= 0 && last > authorityEnd) ? uri.substring(0, last) : null;
+    }
+
+}
@@ -18,6 +18,7 @@
 
 package org.kontalk.provider;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,10 +30,13 @@ import com.android.providers.contacts.FastScrollingIndexCache;
 import android.annotation.TargetApi;
 import android.annotation.SuppressLint;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -73,7 +77,7 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 11;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
@@ -129,6 +133,11 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_KEYS =
             "CREATE TABLE " + TABLE_KEYS + " " + CREATE_TABLE_KEYS;
 
+        /** Covering index for the "latest key with minimum trust level" lookup. */
+        private static final String SCHEMA_KEYS_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_jid_timestamp ON " + TABLE_KEYS +
+                " (jid, timestamp, trust_level, fingerprint)";
+
         private static final String[] SCHEMA_UPGRADE_V7 = {
             SCHEMA_KEYS,
             "INSERT INTO " + TABLE_KEYS + " SELECT jid, public_key, fingerprint FROM " + TABLE_USERS,
@@ -165,6 +174,10 @@ public class UsersProvider extends ContentProvider {
             "ALTER TABLE keys_backup RENAME TO " + TABLE_KEYS,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V10 = {
+            SCHEMA_KEYS_INDEX,
+        };
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -190,6 +203,7 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
             db.execSQL(SCHEMA_KEYS);
+            db.execSQL(SCHEMA_KEYS_INDEX);
             mNew = true;
         }
 
@@ -209,6 +223,11 @@ public class UsersProvider extends ContentProvider {
                     // new keys management
                     for (String sql : SCHEMA_UPGRADE_V9)
                         db.execSQL(sql);
+                    // go on with next version
+                case 10:
+                    // keys lookup index
+                    for (String sql : SCHEMA_UPGRADE_V10)
+                        db.execSQL(sql);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -1100,6 +1119,33 @@ public class UsersProvider extends ContentProvider {
         return context.getContentResolver().update(uri, new ContentValues(), null, null);
     }
 
+    /** Applies all operations in a single transaction. */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // nested transactions are not available on older platforms
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB)
+            return super.applyBatch(operations);
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+
+        try {
+            beginTransaction(db);
+
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++)
+                results[i] = operations.get(i).apply(this, results, i);
+
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+    }
+
     /* Transactions compatibility layer */
 
     @TargetApi(android.os.Build.VERSION_CODES.HONEYCOMB)
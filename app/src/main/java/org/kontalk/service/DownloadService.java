@@ -18,31 +18,26 @@
 
 package org.kontalk.service;
 
-/*
- * TODO instead of using a notification ID per type, use a notification ID per
- * download.
- */
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import android.app.IntentService;
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
@@ -62,312 +57,329 @@ import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.MessagingNotification;
-import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
-import org.kontalk.util.StepTimer;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERROR;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_OK;
-import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are processed concurrently by a {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends TransferService {
     private static final String TAG = MessageCenterService.TAG;
 
     /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<>();
+    private static final Map<String, Long> sQueue = Collections.synchronizedMap(new HashMap<String, Long>());
+
+    /** Maximum number of concurrent downloads. */
+    private static final int MAX_DOWNLOADS = 3;
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
 
     private static final String EXTRA_NOTIFY = "org.kontalk.download.notify";
-
-    private ProgressNotificationBuilder mNotificationBuilder;
-    private NotificationManager mNotificationManager;
-
-    // data about the download currently being processed
-    private Notification mCurrentNotification;
-    private long mTotalBytes;
-    /** Step timer for notification updates. */
-    private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
-
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
-    private boolean mNotify;
-
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    private static final String EXTRA_MIME = "org.kontalk.download.mime";
+    private static final String EXTRA_LENGTH = "org.kontalk.download.length";
 
     public DownloadService() {
-        super(DownloadService.class.getSimpleName());
-    }
-
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        // crappy firmware - as per docs, intent can't be null in this case
-        if (intent != null) {
-            if (mNotificationManager == null)
-                mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-            if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-                final Uri uri = intent.getData();
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onDownloadAbort(uri);
-                    }
-                }).start();
-            }
-        }
-
-        return super.onStartCommand(intent, flags, startId);
+        super(DownloadService.class.getSimpleName(), MAX_DOWNLOADS, NOTIFICATION_ID_DOWNLOADING,
+            R.string.downloading_attachment, R.string.attachment_download, R.string.downloading_attachment);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        // crappy firmware - as per docs, intent can't be null in this case
-        if (intent == null)
-            return;
-
         String action = intent.getAction();
 
         if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
+            DownloadTask task = new DownloadTask(intent.getData(), intent.getExtras());
+            // check if download has already been queued; the entry must be
+            // added before submitting, since the task removes it when done
+            synchronized (sQueue) {
+                if (sQueue.containsKey(task.getKey()))
+                    return;
+                sQueue.put(task.getKey(), task.mMessageId);
+            }
+            if (!submit(task))
+                sQueue.remove(task.getKey());
         }
-    }
 
-    private void onDownloadURL(Uri uri, Bundle args) {
-        String url = uri.toString();
-
-        // check if download has already been queued
-        if (sQueue.get(url) != null) return;
-
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
-
-        mNotify = args.getBoolean(EXTRA_NOTIFY, true);
-
-        if (mDownloadClient == null) {
-            mDownloadClient = new ClientHTTPConnection(this);
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+            // interrupt worker if running, remove from queue otherwise
+            cancel(intent.getData().toString());
         }
+    }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
-            }
-
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
-
+    /** A single download. */
+    private final class DownloadTask extends TransferScheduler.Transfer implements DownloadListener {
+        final String mUrl;
+        final long mMessageId;
+        final String mPeer;
+        final boolean mEncrypted;
+        final boolean mNotify;
+        final Date mDate;
+        /** True if the download is being decrypted while downloading. */
+        private boolean mDecryptOnTheFly;
+        /** Non-fatal errors found while decrypting on the fly. */
+        private final List<DecryptException> mErrors = new LinkedList<>();
+
+        private final ClientHTTPConnection mDownloadClient;
+
+        DownloadTask(Uri uri, Bundle args) {
+            super(uri.toString(), uri.toString(), TransferScheduler.getPriority(
+                args.getString(EXTRA_MIME), args.getLong(EXTRA_LENGTH, -1)));
+            mUrl = uri.toString();
+            mNotify = args.getBoolean(EXTRA_NOTIFY, true);
             mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
             mPeer = args.getString(CompositeMessage.MSG_SENDER);
             mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
 
-            Date date = null;
             long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
-            if (timestamp > 0)
-                date = new Date(timestamp);
+            mDate = timestamp > 0 ? new Date(timestamp) : null;
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, date, this);
-        }
-        catch (Exception e) {
-            error(url, null, e);
+            mDownloadClient = new ClientHTTPConnection(DownloadService.this);
         }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
-        }
-    }
 
-    private void onDownloadAbort(Uri uri) {
-        String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
+        @Override
+        public void run() {
+            try {
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                        getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                // decrypt while downloading if possible
+                Coder coder = mEncrypted ? getDecryptCoder(mPeer) : null;
+                mDecryptOnTheFly = (coder != null);
+
+                // download content
+                mDownloadClient.downloadAutofilename(mUrl, MediaStorage.MEDIA_ROOT, mDate, coder, mErrors, this);
+            }
+            catch (Exception e) {
+                error(mUrl, null, e);
+            }
+            finally {
+                sQueue.remove(mUrl);
+                transferFinished(mUrl);
             }
-            // remove from queue - will never be processed
-            else
-                sQueue.remove(url);
         }
-    }
 
-    public void startForeground(long totalBytes) {
-        Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
+        @Override
+        protected void abort() {
+            mDownloadClient.abort();
+        }
 
-        Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
-        // FIXME this intent should actually open the ComposeMessage activity
-        PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_DOWNLOADING, ni, 0);
-
-        if (mNotificationBuilder == null) {
-            mNotificationBuilder = new ProgressNotificationBuilder(getApplicationContext(),
-                R.layout.progress_notification,
-                getString(R.string.downloading_attachment),
-                R.drawable.ic_stat_notify,
-                pi);
+        @Override
+        protected void onCanceled() {
+            sQueue.remove(mUrl);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
-        startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-    }
+        @Override
+        public void start(String url, File destination, long length) {
+            transferStarted(url, length);
+        }
 
-    private void foregroundNotification(int progress) {
-        mCurrentNotification = mNotificationBuilder
-            .progress(progress,
-                R.string.attachment_download,
-                R.string.downloading_attachment)
-            .build();
-    }
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            transferProgress(url, bytes);
+        }
 
-    public void stopForeground() {
-        stopForeground(true);
-        mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
+        @Override
+        public void completed(String url, String mime, File destination) {
+            Uri uri = Uri.fromFile(destination);
 
-    @Override
-    public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
-    }
+            ContentValues values = null;
 
-    @Override
-    public void completed(String url, String mime, File destination) {
-        Uri uri = Uri.fromFile(destination);
-
-        ContentValues values = null;
-
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Preferences.getEndpointServer(this);
-                PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = Keyring.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
-
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<>();
-                    coder.decryptFile(in, true, out, errors);
-
-                    // TODO process errors
-
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
-
-                    // save this for later
-                    values = new ContentValues(3);
-                    values.put(Messages.ATTACHMENT_ENCRYPTED, false);
-                    values.put(Messages.ATTACHMENT_LENGTH, destination.length());
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    // TODO i18n
-                    "Decryption failed.");
-                return;
+            // already decrypted while downloading
+            if (mDecryptOnTheFly) {
+                values = new ContentValues(4);
+                values.put(Messages.ATTACHMENT_ENCRYPTED, false);
+                values.put(Messages.ATTACHMENT_LENGTH, destination.length());
+                values.put(Messages.ATTACHMENT_SECURITY_FLAGS, getSecurityFlags(mErrors));
             }
-            finally {
+
+            // encrypted file?
+            else if (mEncrypted) {
+                InputStream in = null;
+                OutputStream out = null;
                 try {
-                    if (in != null)
-                        in.close();
-                }
-                catch (IOException e) {
-                    // ignored
+                    EndpointServer server = Preferences.getEndpointServer(DownloadService.this);
+                    PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
+                    Coder coder = Keyring.getDecryptCoder(DownloadService.this, server, key, mPeer);
+                    if (coder != null) {
+                        in = new FileInputStream(destination);
+
+                        File outFile = new File(destination + ".new");
+                        out = new FileOutputStream(outFile);
+                        List<DecryptException> errors = new LinkedList<>();
+                        coder.decryptFile(in, true, out, errors);
+
+                        // delete old file and rename the decrypted one
+                        destination.delete();
+                        outFile.renameTo(destination);
+
+                        // save this for later
+                        values = new ContentValues(4);
+                        values.put(Messages.ATTACHMENT_ENCRYPTED, false);
+                        values.put(Messages.ATTACHMENT_LENGTH, destination.length());
+                        values.put(Messages.ATTACHMENT_SECURITY_FLAGS, getSecurityFlags(errors));
+                    }
                 }
-                try {
-                    if (out != null)
-                        out.close();
+                catch (Exception e) {
+                    Log.e(TAG, "decryption failed!", e);
+                    errorNotification(getString(R.string.notify_ticker_download_error),
+                        getString(e instanceof GeneralSecurityException ?
+                            R.string.notify_text_download_decrypt_error :
+                            R.string.notify_text_download_error));
+                    return;
                 }
-                catch (IOException e) {
-                    // ignored
+                finally {
+                    try {
+                        if (in != null)
+                            in.close();
+                    }
+                    catch (IOException e) {
+                        // ignored
+                    }
+                    try {
+                        if (out != null)
+                            out.close();
+                    }
+                    catch (IOException e) {
+                        // ignored
+                    }
                 }
             }
+
+            // update messages.localUri
+            if (values == null)
+                values = new ContentValues(1);
+            values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+
+            // signature problems must be visible on the message
+            Integer attSecurityFlags = values.getAsInteger(Messages.ATTACHMENT_SECURITY_FLAGS);
+            if (attSecurityFlags != null && Coder.isError(attSecurityFlags))
+                values.put(Messages.SECURITY_FLAGS, getMessageSecurityFlags() | attSecurityFlags);
+
+            getContentResolver().update(ContentUris
+                .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+
+            // update media store
+            MediaStorage.scanFile(DownloadService.this, destination, mime);
+
+            // notify only if conversation is not open
+            if (!MessagingNotification.isPaused(mPeer) && mNotify) {
+
+                // detect mime type if not available
+                if (mime == null)
+                    mime = getContentResolver().getType(uri);
+
+                // create intent for download complete notification
+                Intent i = new Intent(Intent.ACTION_VIEW);
+                i.setDataAndType(uri, mime);
+                i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                    NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
+
+                // create notification
+                NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
+                    .setSmallIcon(R.drawable.ic_stat_notify)
+                    .setContentTitle(getString(R.string.notify_title_download_completed))
+                    .setContentText(getString(R.string.notify_text_download_completed))
+                    .setTicker(getString(R.string.notify_ticker_download_completed))
+                    .setContentIntent(pi)
+                    .setPriority(NotificationCompat.PRIORITY_LOW)
+                    .setAutoCancel(true);
+
+                // notify!!
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            }
         }
 
-        // update messages.localUri
-        if (values == null)
-            values = new ContentValues(1);
-        values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
-        getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
-
-        // update media store
-        MediaStorage.scanFile(this, destination, mime);
-
-        // stop foreground
-        stopForeground();
-
-        // notify only if conversation is not open
-        if (!MessagingNotification.isPaused(mPeer) && mNotify) {
-
-            // detect mime type if not available
-            if (mime == null)
-                mime = getContentResolver().getType(uri);
-
-            // create intent for download complete notification
-            Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setDataAndType(uri, mime);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
-
-            // create notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
-                .setSmallIcon(R.drawable.ic_stat_notify)
-                .setContentTitle(getString(R.string.notify_title_download_completed))
-                .setContentText(getString(R.string.notify_text_download_completed))
-                .setTicker(getString(R.string.notify_ticker_download_completed))
-                .setContentIntent(pi)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .setAutoCancel(true);
-
-            // notify!!
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+        private int getMessageSecurityFlags() {
+            Cursor c = getContentResolver().query(ContentUris
+                    .withAppendedId(Messages.CONTENT_URI, mMessageId),
+                new String[] { Messages.SECURITY_FLAGS }, null, null, null);
+            try {
+                return (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
+            }
+            finally {
+                if (c != null)
+                    c.close();
+            }
+        }
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+            if (!isCanceled()) {
+                ReportingManager.logException(exc);
+                // network errors are reported as such, even while decrypting
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(isDecryptError(exc) ?
+                        R.string.notify_text_download_decrypt_error :
+                        R.string.notify_text_download_error));
+            }
         }
     }
 
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled) {
-            ReportingManager.logException(exc);
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
+    /** Returns true if the given download error was caused by a decryption failure. */
+    static boolean isDecryptError(Throwable exc) {
+        return exc instanceof GeneralSecurityException ||
+            (exc != null && exc.getCause() instanceof GeneralSecurityException);
+    }
+
+    /**
+     * Converts non-fatal decryption errors to attachment security flags,
+     * the same way they are applied to decrypted messages.
+     */
+    static int getSecurityFlags(List<DecryptException> errors) {
+        int securityFlags = Coder.SECURITY_BASIC;
+        for (DecryptException err : errors) {
+            Log.w(TAG, "attachment decryption warning", err);
+            switch (err.getCode()) {
+                case DecryptException.DECRYPT_EXCEPTION_INTEGRITY_CHECK:
+                    securityFlags |= Coder.SECURITY_ERROR_INTEGRITY_CHECK;
+                    break;
+                case DecryptException.DECRYPT_EXCEPTION_VERIFICATION_FAILED:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_SIGNATURE;
+                    break;
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_DATA:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_DATA;
+                    break;
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_SENDER:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_SENDER;
+                    break;
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_RECIPIENT:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_RECIPIENT;
+                    break;
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_TIMESTAMP;
+                    break;
+            }
+        }
+        return securityFlags;
+    }
+
+    /** Returns a decrypt coder for a download, null if not available. */
+    Coder getDecryptCoder(String peer) {
+        try {
+            EndpointServer server = Preferences.getEndpointServer(this);
+            PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
+            return Keyring.getDecryptCoder(this, server, key, peer);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to decrypt on the fly, will decrypt after download", e);
+            return null;
         }
     }
 
@@ -393,16 +405,6 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-        }
-    }
-
     public static boolean isQueued(String url) {
         return sQueue.containsKey(url);
     }
@@ -412,6 +414,15 @@ public class DownloadService extends IntentService implements DownloadListener {
     }
 
     public static void start(Context context, long databaseId, String sender, long timestamp, boolean encrypted, String url, boolean notify) {
+        start(context, databaseId, sender, timestamp, encrypted, url, null, -1, notify);
+    }
+
+    /**
+     * Starts a download.
+     * @param mime MIME type of the attachment, if known
+     * @param length attachment length, or -1 if not known
+     */
+    public static void start(Context context, long databaseId, String sender, long timestamp, boolean encrypted, String url, String mime, long length, boolean notify) {
         Intent i = new Intent(context, DownloadService.class);
         i.setAction(DownloadService.ACTION_DOWNLOAD_URL);
         i.putExtra(CompositeMessage.MSG_ID, databaseId);
@@ -419,6 +430,8 @@ public class DownloadService extends IntentService implements DownloadListener {
         i.putExtra(CompositeMessage.MSG_TIMESTAMP, timestamp);
         i.putExtra(CompositeMessage.MSG_ENCRYPTED, encrypted);
         i.putExtra(EXTRA_NOTIFY, notify);
+        i.putExtra(EXTRA_MIME, mime);
+        i.putExtra(EXTRA_LENGTH, length);
         i.setData(Uri.parse(url));
         context.startService(i);
     }
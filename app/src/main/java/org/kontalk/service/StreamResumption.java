@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.StreamManagementState;
+import org.kontalk.service.msgcenter.MessageCenterService;
+
+
+/**
+ * Persists the stream management state of an interrupted connection, so
+ * that the next connection can resume the stream (XEP-0198) instead of
+ * establishing a new session.
+ * @author Daniele Ricci
+ */
+public class StreamResumption {
+    private static final String TAG = MessageCenterService.TAG;
+
+    private static final String PREFS_NAME = "stream_resumption";
+
+    private static final String KEY_NETWORK = "network";
+    private static final String KEY_SESSION_ID = "session_id";
+    private static final String KEY_CLIENT_HANDLED = "client_handled";
+    private static final String KEY_SERVER_HANDLED = "server_handled";
+    private static final String KEY_MAX_RESUMPTION_TIME = "max_resumption_time";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_STANZA_COUNT = "stanza_count";
+    private static final String KEY_STANZA = "stanza.";
+
+    /** Max time to wait for a connection being suspended. */
+    private static final long SUSPEND_TIMEOUT = 5000;
+
+    /** Number of connections being suspended. */
+    private static int sSuspending;
+
+    private StreamResumption() {
+    }
+
+    /**
+     * Signals that a connection is going to be suspended. Must be called
+     * before starting the thread calling {@link #suspend}, so that the next
+     * connection will wait for the state to be saved.
+     */
+    public static synchronized void beginSuspend() {
+        sSuspending++;
+    }
+
+    private static synchronized void endSuspend() {
+        sSuspending--;
+        StreamResumption.class.notifyAll();
+    }
+
+    /**
+     * Interrupts the connection without closing the stream and saves its
+     * stream management state. Falls back to a clean disconnection if the
+     * stream can't be resumed. Does network I/O: not to be called on the main
+     * thread.
+     */
+    public static void suspend(Context context, KontalkConnection conn, String network) {
+        try {
+            conn.instantShutdown();
+            StreamManagementState state = conn.getStreamManagementState();
+            if (state != null) {
+                save(context, network, state);
+                Log.v(TAG, "stream suspended (" + state.unacknowledgedStanzas.size() + " unacked stanzas)");
+            }
+            else {
+                clear(context);
+            }
+        }
+        finally {
+            endSuspend();
+        }
+    }
+
+    /**
+     * Returns the saved state for the given network and removes it from
+     * storage, waiting for any connection being suspended.
+     * @return the state or null if there is no resumable stream
+     */
+    public static StreamManagementState take(Context context, String network) {
+        synchronized (StreamResumption.class) {
+            long deadline = System.currentTimeMillis() + SUSPEND_TIMEOUT;
+            long wait;
+            while (sSuspending > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    StreamResumption.class.wait(wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        SharedPreferences prefs = getPreferences(context);
+        try {
+            String sessionId = prefs.getString(KEY_SESSION_ID, null);
+            if (sessionId == null || !network.equals(prefs.getString(KEY_NETWORK, null)))
+                return null;
+
+            int count = prefs.getInt(KEY_STANZA_COUNT, 0);
+            List<Stanza> stanzas = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String xml = prefs.getString(KEY_STANZA + i, null);
+                if (xml != null)
+                    stanzas.add(PacketParserUtils.parseStanza(xml));
+            }
+
+            StreamManagementState state = new StreamManagementState(sessionId,
+                prefs.getLong(KEY_CLIENT_HANDLED, 0),
+                prefs.getLong(KEY_SERVER_HANDLED, 0),
+                prefs.getInt(KEY_MAX_RESUMPTION_TIME, 0),
+                prefs.getLong(KEY_TIMESTAMP, 0),
+                stanzas);
+            return state.isExpired(System.currentTimeMillis()) ? null : state;
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to restore stream state", e);
+            return null;
+        }
+        finally {
+            clear(context);
+        }
+    }
+
+    private static void save(Context context, String network, StreamManagementState state) {
+        SharedPreferences.Editor editor = getPreferences(context).edit()
+            .clear()
+            .putString(KEY_NETWORK, network)
+            .putString(KEY_SESSION_ID, state.sessionId)
+            .putLong(KEY_CLIENT_HANDLED, state.clientHandledCount)
+            .putLong(KEY_SERVER_HANDLED, state.serverHandledCount)
+            .putInt(KEY_MAX_RESUMPTION_TIME, state.maxResumptionTime)
+            .putLong(KEY_TIMESTAMP, state.timestamp)
+            .putInt(KEY_STANZA_COUNT, state.unacknowledgedStanzas.size());
+
+        int i = 0;
+        for (Stanza stanza : state.unacknowledgedStanzas)
+            editor.putString(KEY_STANZA + (i++), stanza.toXML().toString());
+
+        // we might be killed soon, write synchronously
+        editor.commit();
+    }
+
+    /** Forgets any saved state. */
+    public static void clear(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+
+/**
+ * Schedules transfers on a bounded pool of workers.
+ * Pending transfers are started by priority (then in order of submission),
+ * with a limit on the number of concurrent transfers to the same host.
+ * @author Daniele Ricci
+ */
+public class TransferScheduler {
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    /** Voice messages and small files. */
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    /** Big files (e.g. videos). */
+    public static final int PRIORITY_LOW = 2;
+
+    /** Transfers up to this size will be given high priority. */
+    private static final long SMALL_TRANSFER_SIZE = 256 * 1024;
+    /** Transfers bigger than this will be given low priority. */
+    private static final long LARGE_TRANSFER_SIZE = 5 * 1024 * 1024;
+
+    /** Listener for scheduler events. Methods are called from worker threads. */
+    public interface Listener {
+        /** Called when all transfers have been completed. */
+        void onIdle();
+    }
+
+    /** A transfer task. Transfers are identified by a key (e.g. the URL). */
+    public static abstract class Transfer implements Runnable {
+        private final String mKey;
+        private final String mHost;
+        private final int mPriority;
+        private long mSequence;
+        private volatile boolean mCanceled;
+
+        protected Transfer(String key, String url, int priority) {
+            mKey = key;
+            mHost = parseHost(url);
+            mPriority = priority;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        void cancel() {
+            mCanceled = true;
+            abort();
+        }
+
+        /** Interrupts the transfer while it's running. */
+        protected abstract void abort();
+
+        /** Called if the transfer is canceled before being started. */
+        protected void onCanceled() {
+        }
+
+        boolean isBefore(Transfer other) {
+            return mPriority < other.mPriority ||
+                (mPriority == other.mPriority && mSequence < other.mSequence);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mMaxWorkers;
+    private final int mMaxPerHost;
+    private final Listener mListener;
+
+    /** Pending transfers, in order of execution. */
+    private final LinkedList<Transfer> mPending = new LinkedList<>();
+    private final Map<String, Transfer> mRunning = new HashMap<>();
+    /** Number of running transfers per host. */
+    private final Map<String, Integer> mHostCount = new HashMap<>();
+    private long mSequence;
+    private boolean mShutdown;
+
+    public TransferScheduler(final String name, int maxWorkers, int maxPerHost, Listener listener) {
+        mMaxWorkers = maxWorkers;
+        mMaxPerHost = maxPerHost;
+        mListener = listener;
+        mExecutor = Executors.newFixedThreadPool(maxWorkers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+                // transfers should not slow down the UI
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a transfer.
+     * @return false if a transfer with the same key is already queued
+     */
+    public synchronized boolean submit(Transfer transfer) {
+        if (mShutdown || isQueued(transfer.getKey()))
+            return false;
+
+        transfer.mSequence = mSequence++;
+        ListIterator<Transfer> iter = mPending.listIterator();
+        while (iter.hasNext()) {
+            if (transfer.isBefore(iter.next())) {
+                iter.previous();
+                break;
+            }
+        }
+        iter.add(transfer);
+
+        schedule();
+        return true;
+    }
+
+    /** Returns true if the transfer is pending or running. */
+    public synchronized boolean isQueued(String key) {
+        if (mRunning.containsKey(key))
+            return true;
+        for (Transfer t : mPending) {
+            if (t.getKey().equals(key))
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns true if there are no pending or running transfers. */
+    public synchronized boolean isIdle() {
+        return mPending.isEmpty() && mRunning.isEmpty();
+    }
+
+    /**
+     * Cancels a transfer. A pending transfer is removed from the queue,
+     * a running transfer is aborted.
+     * @return true if the transfer was found
+     */
+    public boolean cancel(String key) {
+        Transfer pending = null;
+        synchronized (this) {
+            Transfer running = mRunning.get(key);
+            if (running != null) {
+                running.cancel();
+                return true;
+            }
+
+            Iterator<Transfer> iter = mPending.iterator();
+            while (iter.hasNext()) {
+                Transfer t = iter.next();
+                if (t.getKey().equals(key)) {
+                    iter.remove();
+                    pending = t;
+                    break;
+                }
+            }
+        }
+
+        if (pending != null) {
+            pending.onCanceled();
+            return true;
+        }
+        return false;
+    }
+
+    /** Aborts all transfers and stops the workers. */
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+            mPending.clear();
+            for (Transfer t : mRunning.values())
+                t.cancel();
+        }
+        mExecutor.shutdown();
+    }
+
+    /** Starts as many pending transfers as allowed. Must hold the lock. */
+    private void schedule() {
+        Iterator<Transfer> iter = mPending.iterator();
+        while (mRunning.size() < mMaxWorkers && iter.hasNext()) {
+            final Transfer t = iter.next();
+            Integer count = mHostCount.get(t.getHost());
+            if (count == null)
+                count = 0;
+
+            if (count < mMaxPerHost) {
+                iter.remove();
+                mRunning.put(t.getKey(), t);
+                mHostCount.put(t.getHost(), count + 1);
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            t.run();
+                        }
+                        catch (RuntimeException e) {
+                            Log.e(TAG, "transfer failed", e);
+                        }
+                        finally {
+                            finished(t);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void finished(Transfer t) {
+        boolean idle;
+        synchronized (this) {
+            mRunning.remove(t.getKey());
+            int count = mHostCount.get(t.getHost()) - 1;
+            if (count > 0)
+                mHostCount.put(t.getHost(), count);
+            else
+                mHostCount.remove(t.getHost());
+
+            if (!mShutdown)
+                schedule();
+            idle = isIdle();
+        }
+
+        if (idle && mListener != null)
+            mListener.onIdle();
+    }
+
+    /**
+     * Returns a priority for a transfer.
+     * @param mime MIME type of the content, if known
+     * @param size content length, or 0 or less if not known
+     */
+    public static int getPriority(String mime, long size) {
+        // voice messages first
+        if ((mime != null && mime.startsWith("audio/")) ||
+                (size > 0 && size <= SMALL_TRANSFER_SIZE))
+            return PRIORITY_HIGH;
+        if (size > LARGE_TRANSFER_SIZE || (mime != null && mime.startsWith("video/")))
+            return PRIORITY_LOW;
+        return PRIORITY_NORMAL;
+    }
+
+    static String parseHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null)
+                return host;
+        }
+        catch (URISyntaxException ignored) {
+        }
+        // local files and such
+        return "";
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import org.kontalk.R;
+import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.ui.ConversationsActivity;
+import org.kontalk.ui.ProgressNotificationBuilder;
+import org.kontalk.util.StepTimer;
+
+import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
+
+
+/**
+ * Base class for services running concurrent transfers through a
+ * {@link TransferScheduler}. A single foreground notification shows the
+ * aggregate progress of all running transfers. The service will stop itself
+ * when there are no more transfers to process.
+ * @author Daniele Ricci
+ */
+public abstract class TransferService extends Service implements TransferScheduler.Listener {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Maximum number of concurrent transfers to the same host. */
+    private static final int MAX_TRANSFERS_PER_HOST = 2;
+
+    private final String mName;
+    private final int mMaxTransfers;
+    private final int mNotificationId;
+    private final int mTickerText;
+    private final int mContentTitle;
+    private final int mContentText;
+
+    protected NotificationManager mNotificationManager;
+    private ProgressNotificationBuilder mNotificationBuilder;
+    private TransferScheduler mScheduler;
+    private Handler mHandler;
+
+    /** Bytes transferred and total length of running transfers. */
+    private final Map<String, long[]> mProgress = new HashMap<>();
+    private boolean mForeground;
+    /** Step timer for notification updates. */
+    private final StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
+
+    private int mLastStartId;
+
+    protected TransferService(String name, int maxTransfers, int notificationId,
+            int tickerText, int contentTitle, int contentText) {
+        mName = name;
+        mMaxTransfers = maxTransfers;
+        mNotificationId = notificationId;
+        mTickerText = tickerText;
+        mContentTitle = contentTitle;
+        mContentText = contentText;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler(Looper.getMainLooper());
+        mScheduler = new TransferScheduler(mName, mMaxTransfers, MAX_TRANSFERS_PER_HOST, this);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScheduler.shutdown();
+        stopForeground(true);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // crappy firmware - as per docs, intent can't be null in this case
+        if (intent != null)
+            onHandleIntent(intent);
+
+        mLastStartId = startId;
+        if (mScheduler.isIdle())
+            stopSelf(startId);
+
+        return START_NOT_STICKY;
+    }
+
+    /** Processes an intent. Called on the main thread. */
+    protected abstract void onHandleIntent(Intent intent);
+
+    /**
+     * Queues a transfer.
+     * @return false if the transfer was already queued
+     */
+    protected boolean submit(TransferScheduler.Transfer transfer) {
+        return mScheduler.submit(transfer);
+    }
+
+    /** Cancels a pending or running transfer. */
+    protected boolean cancel(String key) {
+        return mScheduler.cancel(key);
+    }
+
+    @Override
+    public void onIdle() {
+        // stop from the main thread to avoid racing with new intents
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mScheduler.isIdle()) {
+                    Log.v(TAG, mName + " idle, stopping");
+                    stopSelf(mLastStartId);
+                }
+            }
+        });
+    }
+
+    /** Called by transfers when they start sending data. */
+    protected void transferStarted(String key, long length) {
+        synchronized (mProgress) {
+            mProgress.put(key, new long[] { 0, length });
+            mUpdateTimer.reset();
+            Notification notification = buildNotification();
+            if (!mForeground) {
+                Log.d(TAG, "starting foreground progress notification");
+                startForeground(mNotificationId, notification);
+                mForeground = true;
+            }
+            else {
+                mNotificationManager.notify(mNotificationId, notification);
+            }
+        }
+    }
+
+    /** Called by transfers now and then while transferring data. */
+    protected void transferProgress(String key, long bytes) {
+        synchronized (mProgress) {
+            long[] progress = mProgress.get(key);
+            if (progress != null) {
+                progress[0] = bytes;
+                if (mForeground && mUpdateTimer.isStep())
+                    mNotificationManager.notify(mNotificationId, buildNotification());
+            }
+        }
+    }
+
+    /** Called by transfers when they are finished (successfully or not). */
+    protected void transferFinished(String key) {
+        synchronized (mProgress) {
+            if (mProgress.remove(key) != null && mForeground) {
+                if (mProgress.isEmpty()) {
+                    stopForeground(true);
+                    mForeground = false;
+                }
+                else {
+                    mNotificationManager.notify(mNotificationId, buildNotification());
+                }
+            }
+        }
+    }
+
+    /** Builds the progress notification. Must hold the progress lock. */
+    private Notification buildNotification() {
+        if (mNotificationBuilder == null) {
+            Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
+            ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            // FIXME this intent should actually open the ComposeMessage activity
+            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                mNotificationId, ni, 0);
+
+            mNotificationBuilder = new ProgressNotificationBuilder(getApplicationContext(),
+                R.layout.progress_notification,
+                getString(mTickerText),
+                R.drawable.ic_stat_notify,
+                pi);
+        }
+
+        return mNotificationBuilder
+            .progress(getAggregateProgress(mProgress.values()), mContentTitle, mContentText)
+            .build();
+    }
+
+    /**
+     * Returns the overall progress percentage of the given transfers,
+     * or -1 if the length of all of them is unknown.
+     */
+    static int getAggregateProgress(Iterable<long[]> transfers) {
+        long bytes = 0;
+        long total = 0;
+        for (long[] t : transfers) {
+            if (t[1] > 0) {
+                // encrypted data might be a little longer than the original file
+                bytes += Math.min(t[0], t[1]);
+                total += t[1];
+            }
+        }
+        return total > 0 ? (int) ((100 * bytes) / total) : -1;
+    }
+
+}
@@ -18,16 +18,13 @@
 
 package org.kontalk.service;
 
-/*
- * TODO instead of using a notification ID per type, use a notification ID per
- * upload.
- */
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
-import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 import java.io.File;
-import java.util.LinkedHashMap;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.kontalk.R;
@@ -36,14 +33,11 @@ import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.ui.ConversationsActivity;
-import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
 import org.kontalk.upload.UploadConnection;
+import org.kontalk.upload.UploadJobStore;
 import org.kontalk.util.MediaStorage;
-import org.kontalk.util.StepTimer;
 
-import android.app.IntentService;
-import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
@@ -55,14 +49,17 @@ import android.util.Log;
 
 /**
  * Attachment upload service.
- * TODO implement multiple concurrent uploads
+ * Uploads are processed concurrently by a {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class UploadService extends IntentService implements ProgressListener {
+public class UploadService extends TransferService {
     private static final String TAG = MessageCenterService.TAG;
 
     /** A map to avoid duplicate uploads. */
-    private static final Map<String, Long> queue = new LinkedHashMap<>();
+    private static final Map<String, Long> queue = Collections.synchronizedMap(new HashMap<String, Long>());
+
+    /** Maximum number of concurrent uploads. */
+    private static final int MAX_UPLOADS = 2;
 
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
@@ -75,12 +72,16 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_POST_URL = "org.kontalk.upload.POST_URL";
     /** URL to fetch from. Use with ACTION_UPLOAD. */
     public static final String EXTRA_GET_URL = "org.kontalk.upload.GET_URL";
+    /** True if the upload service supports resuming uploads. Use with ACTION_UPLOAD. */
+    public static final String EXTRA_RESUME = "org.kontalk.upload.RESUME";
     /** User(s) to send to. */
     public static final String EXTRA_USER = "org.kontalk.upload.USER";
     /** Group JID. */
     public static final String EXTRA_GROUP = "org.kontalk.upload.GROUP";
     /** Media MIME type. */
     public static final String EXTRA_MIME = "org.kontalk.upload.MIME";
+    /** Length of the data to upload, used for scheduling only. */
+    public static final String EXTRA_LENGTH = "org.kontalk.upload.LENGTH";
     /** Preview file path. */
     public static final String EXTRA_PREVIEW_PATH = "org.kontalk.upload.PREVIEW_PATH";
     /** Encryption flag. */
@@ -89,201 +90,213 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_DELETE_ORIGINAL = "org.kontalk.upload.DELETE_ORIGINAL";
     // Intent data is the local file Uri
 
-    private ProgressNotificationBuilder mNotificationBuilder;
-    private NotificationManager mNotificationManager;
-
-    // data about the upload currently being processed
-    private Notification mCurrentNotification;
-    private long mTotalBytes;
-    /** Step timer for notification updates. */
-    private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
-
-    private long mMessageId;
-    private UploadConnection mConn;
-    private boolean mCanceled;
-
     public UploadService() {
-        super(UploadService.class.getSimpleName());
+        super(UploadService.class.getSimpleName(), MAX_UPLOADS, NOTIFICATION_ID_UPLOADING,
+            R.string.sending_message, R.string.attachment_upload, R.string.sending_message);
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        // crappy firmware - as per docs, intent can't be null in this case
-        if (intent != null) {
-            if (mNotificationManager == null)
-                mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-            if (ACTION_UPLOAD_ABORT.equals(intent.getAction())) {
-                String filename = intent.getData().toString();
-                // TODO check for race conditions on queue
-                Long msgId = queue.get(filename);
-                if (msgId != null) {
-                    // interrupt worker if running
-                    if (msgId == mMessageId) {
-                        mConn.abort();
-                        mCanceled = true;
-                    }
-                    // remove from queue - will never be processed
-                    else
-                        queue.remove(filename);
-                }
-                return START_NOT_STICKY;
-            }
+    protected void onHandleIntent(Intent intent) {
+        String action = intent.getAction();
+
+        if (ACTION_UPLOAD_ABORT.equals(action)) {
+            // interrupt worker if running, remove from queue otherwise
+            cancel(intent.getData().toString());
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        else if (ACTION_UPLOAD.equals(action)) {
+            UploadTask task = new UploadTask(intent);
+            // check if upload has already been queued; the entry must be
+            // added before submitting, since the task removes it when done
+            synchronized (queue) {
+                if (queue.containsKey(task.getKey()))
+                    return;
+                queue.put(task.getKey(), task.databaseId);
+            }
+            if (!submit(task))
+                queue.remove(task.getKey());
+        }
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // crappy firmware - as per docs, intent can't be null in this case
-        if (intent == null)
-            return;
-        // check for unknown action
-        if (!ACTION_UPLOAD.equals(intent.getAction()))
-            return;
-
+    /** A single upload. */
+    private final class UploadTask extends TransferScheduler.Transfer implements ProgressListener {
         // local file to upload
-        Uri file = intent.getData();
-        String filename = file.toString();
+        final Uri file;
         // message database id
-        long databaseId = intent.getLongExtra(EXTRA_DATABASE_ID, 0);
+        final long databaseId;
         // message id
-        String msgId = intent.getStringExtra(EXTRA_MESSAGE_ID);
+        final String msgId;
         // url to post to
-        String url = intent.getStringExtra(EXTRA_POST_URL);
+        final String url;
         // url to fetch from (will be requested to the connection if null)
-        String fetchUrl = intent.getStringExtra(EXTRA_GET_URL);
+        final String fetchUrl;
+        // upload service supports resuming
+        final boolean resume;
         // group JID
-        String groupJid = intent.getStringExtra(EXTRA_GROUP);
+        final String groupJid;
         // user(s) to send message to
-        String[] to;
-        if (groupJid != null) {
-            to = intent.getStringArrayExtra(EXTRA_USER);
-        }
-        else {
-            to = new String[] { intent.getStringExtra(EXTRA_USER) };
-        }
+        final String[] to;
         // media mime type
-        String mime = intent.getStringExtra(EXTRA_MIME);
+        final String mime;
         // preview file path
-        String previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
+        final String previewPath;
         // encryption flag
-        boolean encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
+        final boolean encrypt;
         // delete original
-        boolean deleteOriginal = intent.getBooleanExtra(EXTRA_DELETE_ORIGINAL, false);
-
-        // check if upload has already been queued
-        if (queue.get(filename) != null) return;
-
-        try {
-            // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
-
-            mTotalBytes = length;
-            startForeground(0);
-
-            mCanceled = false;
-
-            // TODO used class here should be decided by the caller
-            mConn = new HTPPFileUploadConnection(this, url);
-
-            mMessageId = databaseId;
-            queue.put(filename, mMessageId);
-
-            // upload content
-            String mediaUrl = mConn.upload(file, length, mime, encrypt, to, this);
-            if (mediaUrl == null)
-                mediaUrl = fetchUrl;
-            Log.d(TAG, "uploaded with media URL: " + mediaUrl);
-
-            // update message fetch_url
-            MessagesProvider.uploaded(this, databaseId, mediaUrl);
-
-            // send message with fetch url to server
+        final boolean deleteOriginal;
+
+        private volatile UploadConnection mConn;
+        private long mTotalBytes;
+
+        UploadTask(Intent intent) {
+            super(intent.getData().toString(), intent.getStringExtra(EXTRA_POST_URL),
+                TransferScheduler.getPriority(intent.getStringExtra(EXTRA_MIME),
+                    intent.getLongExtra(EXTRA_LENGTH, -1)));
+            file = intent.getData();
+            databaseId = intent.getLongExtra(EXTRA_DATABASE_ID, 0);
+            msgId = intent.getStringExtra(EXTRA_MESSAGE_ID);
+            url = intent.getStringExtra(EXTRA_POST_URL);
+            fetchUrl = intent.getStringExtra(EXTRA_GET_URL);
+            resume = intent.getBooleanExtra(EXTRA_RESUME, false);
+            groupJid = intent.getStringExtra(EXTRA_GROUP);
             if (groupJid != null) {
-                MessageCenterService.sendGroupUploadedMedia(this, groupJid, to,
-                    mime, file, length, previewPath, mediaUrl, encrypt, databaseId, msgId);
+                to = intent.getStringArrayExtra(EXTRA_USER);
             }
             else {
-                MessageCenterService.sendUploadedMedia(this, to[0], mime, file, length,
-                    previewPath, mediaUrl, encrypt, databaseId, msgId);
+                to = new String[] { intent.getStringExtra(EXTRA_USER) };
             }
-
-            // end operations
-            completed();
+            mime = intent.getStringExtra(EXTRA_MIME);
+            previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
+            encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
+            deleteOriginal = intent.getBooleanExtra(EXTRA_DELETE_ORIGINAL, false);
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        @Override
+        public void run() {
+            UploadJobStore jobs = UploadJobStore.getInstance(UploadService.this);
+            boolean completed = false;
+            boolean renewSlot = false;
+
+            try {
+                long length = MediaStorage.getLength(UploadService.this, file);
+                Log.v(TAG, "file size is " + length + " bytes");
+                mTotalBytes = length;
+
+                // TODO used class here should be decided by the caller
+                HTPPFileUploadConnection conn = new HTPPFileUploadConnection(UploadService.this, url);
+                // persist the job so it can be resumed later
+                UploadJobStore.Job job = jobs.begin(databaseId, file, url, fetchUrl, length, deleteOriginal);
+                // slot was already used by a previous attempt
+                boolean reused = job != null && url.equals(job.putUrl);
+                // probe for data already sent only if the server supports it
+                conn.setResume(resume && reused);
+                mConn = conn;
+
+                // canceled while setting up
+                if (isCanceled())
+                    return;
+
+                // upload content
+                String mediaUrl;
+                try {
+                    mediaUrl = mConn.upload(file, length, mime, encrypt, to, this);
+                }
+                catch (IOException e) {
+                    if (conn.needsNewSlot()) {
+                        if (reused) {
+                            // slot expired meanwhile: request a new one right away
+                            Log.d(TAG, "upload slot rejected, requesting a new one", e);
+                            jobs.renewSlot(databaseId);
+                            renewSlot = true;
+                            return;
+                        }
+                        // the file will be uploaded again to a new slot
+                        jobs.invalidateSlot(databaseId);
+                    }
+                    throw e;
+                }
+                completed = true;
+                if (mediaUrl == null)
+                    mediaUrl = fetchUrl;
+                Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+
+                // update message fetch_url
+                MessagesProvider.uploaded(UploadService.this, databaseId, mediaUrl);
+
+                // send message with fetch url to server
+                if (groupJid != null) {
+                    MessageCenterService.sendGroupUploadedMedia(UploadService.this, groupJid, to,
+                        mime, file, length, previewPath, mediaUrl, encrypt, databaseId, msgId);
+                }
+                else {
+                    MessageCenterService.sendUploadedMedia(UploadService.this, to[0], mime, file, length,
+                        previewPath, mediaUrl, encrypt, databaseId, msgId);
+                }
+
+                // upload completed - no need for notification
+                // TODO broadcast upload completed intent
+            }
+            catch (Exception e) {
+                error(e);
+            }
+            finally {
+                // keep the job (and its file) around for resuming unless we are done
+                if (completed || isCanceled()) {
+                    jobs.remove(databaseId);
+                    deleteOriginal();
+                }
+
+                queue.remove(getKey());
+                transferFinished(getKey());
+
+                // the new upload must not be dropped as a duplicate of this one
+                if (renewSlot)
+                    MessageCenterService.sendMedia(UploadService.this, databaseId);
+            }
         }
-        finally {
+
+        private void deleteOriginal() {
             // only file uri are supported for delete
             if (deleteOriginal && "file".equals(file.getScheme()))
                 new File(file.getPath()).delete();
-
-            queue.remove(filename);
-            mMessageId = 0;
         }
-    }
 
-    public void startForeground(long totalBytes) {
-        Log.d(TAG, "starting foreground progress notification");
-
-        Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
-        ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        // FIXME this intent should actually open the ComposeMessage activity
-        PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_UPLOADING, ni, 0);
-
-        if (mNotificationBuilder == null) {
-            mNotificationBuilder = new ProgressNotificationBuilder(getApplicationContext(),
-                R.layout.progress_notification,
-                getString(R.string.sending_message),
-                R.drawable.ic_stat_notify,
-                pi);
+        @Override
+        protected void abort() {
+            UploadConnection conn = mConn;
+            if (conn != null)
+                conn.abort();
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
-        startForeground(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
-    }
-
-    private void foregroundNotification(int progress) {
-        mCurrentNotification = mNotificationBuilder
-            .progress(progress,
-                R.string.attachment_upload,
-                R.string.sending_message)
-            .build();
-    }
-
-    public void stopForeground() {
-        stopForeground(true);
-        mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
-
-    @Override
-    public void start(UploadConnection conn) {
-        mUpdateTimer.reset();
-        startForeground(mTotalBytes);
-    }
+        @Override
+        protected void onCanceled() {
+            queue.remove(getKey());
+            UploadJobStore.getInstance(UploadService.this).remove(databaseId);
+            deleteOriginal();
+        }
 
-    public void completed() {
-        stopForeground();
+        @Override
+        public void start(UploadConnection conn) {
+            transferStarted(getKey(), mTotalBytes);
+        }
 
-        // upload completed - no need for notification
+        @Override
+        public void progress(UploadConnection conn, long bytes) {
+            if (!isCanceled() && !MessagesProviderUtils.exists(UploadService.this, databaseId)) {
+                Log.v(TAG, "message deleted - aborting upload");
+                UploadService.this.cancel(getKey());
+            }
 
-        // TODO broadcast upload completed intent
-    }
+            transferProgress(getKey(), bytes);
+        }
 
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "upload error", exc);
-        stopForeground();
-        if (!mCanceled) {
-            ReportingManager.logException(exc);
-            errorNotification(getString(R.string.notify_ticker_upload_error),
-                getString(R.string.notify_text_upload_error));
+        private void error(Throwable exc) {
+            Log.e(TAG, "upload error", exc);
+            if (!isCanceled()) {
+                ReportingManager.logException(exc);
+                errorNotification(getString(R.string.notify_ticker_upload_error),
+                    getString(R.string.notify_text_upload_error));
+            }
         }
     }
 
@@ -321,22 +334,6 @@ public class UploadService extends IntentService implements ProgressListener {
             .notify(NOTIFICATION_ID_UPLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(UploadConnection conn, long bytes) {
-        if (mCanceled || !MessagesProviderUtils.exists(this, mMessageId)) {
-            Log.v(TAG, "upload canceled or message deleted - aborting");
-            mConn.abort();
-            mCanceled = true;
-        }
-
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
-        }
-    }
-
     public static boolean isQueued(String url) {
         return queue.containsKey(url);
     }
@@ -41,6 +41,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.authenticator.LegacyAuthentication;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.StreamManagementState;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -51,6 +52,7 @@ import org.kontalk.util.Preferences;
 import org.spongycastle.openpgp.PGPException;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -98,6 +100,18 @@ public class XMPPConnectionHelper extends Thread {
     /** Connecting flag. */
     protected volatile boolean mConnecting;
 
+    // login latency statistics
+    private static int sResumedCount;
+    private static long sResumedTime;
+    private static int sFullLoginCount;
+    private static long sFullLoginTime;
+
+    // TLS handshake statistics
+    private static int sTlsResumedCount;
+    private static long sTlsResumedTime;
+    private static int sTlsFullCount;
+    private static long sTlsFullTime;
+
     /**
      * Creates a new instance.
      * @param context
@@ -150,6 +164,10 @@ public class XMPPConnectionHelper extends Thread {
 
         Log.d(TAG, "using server " + mServer.toString());
 
+        long startTime = SystemClock.elapsedRealtime();
+        boolean login = (!mLimited || forceLogin) && (key != null || token != null);
+        boolean resuming = false;
+
         if (mServerDirty) {
             // reset dirty server status
             mServerDirty = false;
@@ -187,6 +205,15 @@ public class XMPPConnectionHelper extends Thread {
             // apply packet timeout based on retry count
             mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
 
+            // try to resume the previous stream (if any)
+            if (login) {
+                StreamManagementState state = StreamResumption.take(mContext, mServer.getNetwork());
+                if (state != null) {
+                    mConn.restoreStreamManagementState(state);
+                    resuming = true;
+                }
+            }
+
             if (mListener != null)
                 mListener.created(mConn);
         }
@@ -194,15 +221,65 @@ public class XMPPConnectionHelper extends Thread {
         // connect
         mConn.connect();
 
+        long handshakeTime = mConn.getTlsHandshakeTime();
+        if (handshakeTime >= 0)
+            handshakeCompleted(mConn.isTlsSessionResumed(), handshakeTime);
+
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
             mListener.connected(mConn);
         }
 
         // login
-        if ((!mLimited || forceLogin) && (key != null || token != null))
+        if (login) {
             mConn.login();
 
+            boolean resumed = mConn.streamWasResumed();
+            if (resuming && !resumed)
+                Log.d(TAG, "stream resumption failed, new session established");
+            loginCompleted(resumed, SystemClock.elapsedRealtime() - startTime);
+        }
+
+    }
+
+    private static synchronized void loginCompleted(boolean resumed, long time) {
+        if (resumed) {
+            sResumedCount++;
+            sResumedTime += time;
+        }
+        else {
+            sFullLoginCount++;
+            sFullLoginTime += time;
+        }
+        Log.d(TAG, (resumed ? "stream resumed" : "logged in") + " in " + time + " ms");
+    }
+
+    private static synchronized void handshakeCompleted(boolean resumed, long time) {
+        if (resumed) {
+            sTlsResumedCount++;
+            sTlsResumedTime += time;
+        }
+        else {
+            sTlsFullCount++;
+            sTlsFullTime += time;
+        }
+        Log.d(TAG, "TLS handshake " + (resumed ? "(session resumed) " : "") + "in " + time + " ms");
+    }
+
+    /** Returns average TLS handshake times, for full and resumed sessions. */
+    public static synchronized String getHandshakeStats() {
+        return "resumed=" + sTlsResumedCount +
+            " (avg " + (sTlsResumedCount > 0 ? sTlsResumedTime / sTlsResumedCount : 0) + " ms)" +
+            " full=" + sTlsFullCount +
+            " (avg " + (sTlsFullCount > 0 ? sTlsFullTime / sTlsFullCount : 0) + " ms)";
+    }
+
+    /** Returns average connection and login times, with and without stream resumption. */
+    public static synchronized String getLoginStats() {
+        return "resumed=" + sResumedCount +
+            " (avg " + (sResumedCount > 0 ? sResumedTime / sResumedCount : 0) + " ms)" +
+            " full=" + sFullLoginCount +
+            " (avg " + (sFullLoginCount > 0 ? sFullLoginTime / sFullLoginCount : 0) + " ms)";
     }
 
     public void connect() {
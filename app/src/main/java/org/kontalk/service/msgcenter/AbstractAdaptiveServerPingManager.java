@@ -57,6 +57,11 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
      * will be made.
      */
     protected long mPingStreak;
+    /**
+     * Largest interval known to keep the connection alive on the current
+     * network, 0 if unknown.
+     */
+    protected long mSafeInterval;
 
     protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
         super(connection);
@@ -94,6 +99,12 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
             // half interval
             interval = mInterval / 2;
         }
+
+        // the failed interval is not safe anymore
+        if (mSafeInterval >= mInterval)
+            setSafeInterval(interval);
+
+        onPingResult(false);
         setupPing(interval);
     }
 
@@ -131,11 +142,23 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
         // remember last success
         mLastSuccess = now;
 
+        if (mInterval > mSafeInterval)
+            setSafeInterval(mInterval);
+
+        onPingResult(true);
         setupPing(nextAlarm);
     }
 
     protected abstract void setupPing(long intervalMillis);
 
+    /** Called after a ping, before the next one is scheduled. */
+    protected void onPingResult(boolean success) {
+    }
+
+    protected void setSafeInterval(long interval) {
+        mSafeInterval = interval;
+    }
+
     protected abstract long getElapsedRealtime();
 
     protected void setNextIncreaseInterval(long interval) {
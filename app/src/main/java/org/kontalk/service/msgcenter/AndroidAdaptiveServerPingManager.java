@@ -84,6 +84,7 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         public void onReceive(Context context, Intent intent) {
             LOGGER.fine("Ping Alarm broadcast received");
             if (isEnabled()) {
+                getStatistics(context).onWakeup(mNetwork);
                 MessageCenterService.ping(context);
             }
         }
@@ -91,15 +92,30 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
 
     private static final int MIN_ALARM_INTERVAL = 90 * 1000;
 
+    private static PingStatistics sStatistics;
+
     private Context mContext;
     private PendingIntent mPendingIntent;
 
+    /** Identity of the network the interval values refer to. */
+    private String mNetwork;
+
+    static synchronized PingStatistics getStatistics(Context context) {
+        if (sStatistics == null)
+            sStatistics = new PingStatistics(context.getApplicationContext());
+        return sStatistics;
+    }
+
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
+            mNetwork = SystemUtils.getCurrentNetworkIdentity(mContext);
+            mSafeInterval = Preferences.getPingSafeInterval(mContext, mNetwork);
+            // start from the largest safe interval learned for this network
+            // or from the last used value if we don't know it yet
+            setupPing(mSafeInterval > 0 ? mSafeInterval :
+                Preferences.getPingAlarmInterval(mContext, mNetwork, AlarmManager.INTERVAL_HALF_HOUR));
             // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
+            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mNetwork, mInterval);
             // reset internal variables
             mLastSuccess = 0;
             mLastSuccessInterval = 0;
@@ -179,7 +195,7 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
             }
 
             // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
+            Preferences.setPingAlarmInterval(mContext, mNetwork, mInterval);
 
             // remove difference from last received stanza
             long interval = mInterval;
@@ -217,7 +233,18 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     @Override
     protected void setNextIncreaseInterval(long interval) {
         super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+        Preferences.setPingAlarmBackoff(mContext, mNetwork, mNextIncrease);
+    }
+
+    @Override
+    protected void setSafeInterval(long interval) {
+        super.setSafeInterval(interval);
+        Preferences.setPingSafeInterval(mContext, mNetwork, mSafeInterval);
+    }
+
+    @Override
+    protected void onPingResult(boolean success) {
+        getStatistics(mContext).onResult(mNetwork, success, mInterval);
     }
 
     public static void onConnected() {
@@ -0,0 +1,109 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * State of the catch-up mode, active while we are receiving the backlog of
+ * stanzas queued by the server while we were offline. Catch-up ends when the
+ * server signals the end of the backlog, after a quiet period or after a
+ * maximum duration, whichever comes first.
+ * @author Daniele Ricci
+ */
+class CatchUpMode {
+
+    /** Catch-up ends if no stanza is received for this time. */
+    static final long QUIET_PERIOD = 2000;
+    /** Catch-up can't last longer than this. */
+    static final long MAX_DURATION = 60000;
+
+    private volatile boolean mActive;
+    private long mStarted;
+    private volatile long mLastActivity;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /** Time to idle of the last catch-up. */
+    private long mLastDuration = -1;
+    /** Stanzas received during the last catch-up. */
+    private int mLastCount;
+
+    public synchronized void begin(long now) {
+        mActive = true;
+        mStarted = now;
+        mLastActivity = now;
+        mCount.set(0);
+    }
+
+    /**
+     * Records a stanza received.
+     * @return true if catch-up mode is active
+     */
+    public boolean onActivity(long now) {
+        if (mActive) {
+            mLastActivity = now;
+            mCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /** Returns true if catch-up should be ended because of inactivity or duration. */
+    public synchronized boolean shouldEnd(long now) {
+        return mActive && (now - mLastActivity >= QUIET_PERIOD || now - mStarted >= MAX_DURATION);
+    }
+
+    /**
+     * Ends catch-up mode.
+     * @return true if catch-up was active
+     */
+    public synchronized boolean end() {
+        if (!mActive)
+            return false;
+
+        mActive = false;
+        mLastDuration = mLastActivity - mStarted;
+        mLastCount = mCount.get();
+        return true;
+    }
+
+    /** Time between the start of the last catch-up and its last stanza. */
+    public synchronized long getLastDuration() {
+        return mLastDuration;
+    }
+
+    public synchronized int getLastCount() {
+        return mLastCount;
+    }
+
+    public synchronized String getStats() {
+        if (mActive)
+            return "active (" + mCount.get() + " stanzas)";
+        else if (mLastDuration < 0)
+            return "never run";
+        else
+            return mLastCount + " stanzas, idle after " + mLastDuration + " ms";
+    }
+
+}
@@ -84,7 +84,8 @@ class DiscoverInfoListener extends MessageCenterPacketListener {
              */
             else if (HTTPFileUpload.NAMESPACE.equals(feat.getVar())) {
                 Log.d(MessageCenterService.TAG, "got upload service: " + packet.getFrom());
-                addUploadService(new HTTPFileUploadService(conn, packet.getFrom()), 0);
+                addUploadService(new HTTPFileUploadService(conn, packet.getFrom(),
+                    query.containsFeature(HTTPFileUploadService.FEATURE_RESUME)), 0);
                 // resend pending messages
                 resendPendingMessages(true, false);
             }
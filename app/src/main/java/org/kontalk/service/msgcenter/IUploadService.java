@@ -27,6 +27,9 @@ public interface IUploadService {
 
     boolean requiresCertificate();
 
+    /** Returns true if the service lets interrupted uploads be resumed. */
+    boolean supportsResume();
+
     void getPostUrl(String filename, long size, String mime, UrlCallback callback);
 
     interface UrlCallback {
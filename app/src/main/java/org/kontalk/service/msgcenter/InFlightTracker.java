@@ -0,0 +1,192 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ * Tracks stanzas waiting for an ack or receipt from the server, indexed both
+ * by stanza id and by message storage id. Entries not acknowledged within the
+ * timeout are expired, so that a lost ack doesn't block the message forever.
+ * @author Daniele Ricci
+ */
+class InFlightTracker {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Default time to wait for an ack. */
+    static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    private static final String PREFS_NAME = "in_flight";
+
+    static final class Entry {
+        final String stanzaId;
+        final long msgId;
+        final long timestamp;
+        /** True if the message center is being held for this entry. */
+        final boolean held;
+
+        Entry(String stanzaId, long msgId, long timestamp, boolean held) {
+            this.stanzaId = stanzaId;
+            this.msgId = msgId;
+            this.timestamp = timestamp;
+            this.held = held;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mByStanza = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Entry> mByMessage = new ConcurrentHashMap<>();
+    /** Entries in insertion order, for expiration. Might contain removed entries. */
+    private final ConcurrentLinkedQueue<Entry> mQueue = new ConcurrentLinkedQueue<>();
+
+    private final long mTimeout;
+
+    InFlightTracker(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Starts tracking a stanza.
+     * @param held true if the message center is being held until the ack
+     */
+    public void put(String stanzaId, long msgId, boolean held) {
+        put(new Entry(stanzaId, msgId, System.currentTimeMillis(), held));
+    }
+
+    private void put(Entry entry) {
+        Entry old = mByStanza.put(entry.stanzaId, entry);
+        if (old != null)
+            mByMessage.remove(old.msgId, old);
+        old = mByMessage.put(entry.msgId, entry);
+        if (old != null)
+            mByStanza.remove(old.stanzaId, old);
+        mQueue.offer(entry);
+    }
+
+    /** Returns the storage id of the given stanza, or 0 if not tracked. */
+    public long getMessageId(String stanzaId) {
+        Entry entry = (stanzaId != null) ? mByStanza.get(stanzaId) : null;
+        return (entry != null) ? entry.msgId : 0;
+    }
+
+    /**
+     * Stops tracking a stanza.
+     * @return the removed entry, or null if not tracked
+     */
+    public Entry remove(String stanzaId) {
+        Entry entry = (stanzaId != null) ? mByStanza.remove(stanzaId) : null;
+        if (entry != null)
+            mByMessage.remove(entry.msgId, entry);
+        return entry;
+    }
+
+    /** Returns true if a stanza for the given message is waiting for ack. */
+    public boolean containsMessage(long msgId) {
+        return mByMessage.containsKey(msgId);
+    }
+
+    public int size() {
+        return mByStanza.size();
+    }
+
+    public void clear() {
+        synchronized (mQueue) {
+            mByStanza.clear();
+            mByMessage.clear();
+            mQueue.clear();
+        }
+    }
+
+    /**
+     * Stops tracking stanzas waiting for ack for longer than the timeout.
+     * @return the number of expired entries holding the message center
+     */
+    public int expire(long now) {
+        int held = 0;
+        synchronized (mQueue) {
+            Entry entry;
+            while ((entry = mQueue.peek()) != null) {
+                boolean live = mByStanza.get(entry.stanzaId) == entry;
+                if (live && now - entry.timestamp <= mTimeout)
+                    break;
+
+                mQueue.poll();
+                if (live && mByStanza.remove(entry.stanzaId, entry)) {
+                    mByMessage.remove(entry.msgId, entry);
+                    Log.d(TAG, "no ack received for stanza " + entry.stanzaId);
+                    if (entry.held)
+                        held++;
+                }
+            }
+        }
+        return held;
+    }
+
+    /** Saves the tracked stanzas, to be restored by the next service instance. */
+    public void save(Context context) {
+        SharedPreferences.Editor editor = getPreferences(context).edit().clear();
+        for (Entry entry : mByStanza.values())
+            editor.putString(entry.stanzaId, entry.msgId + ":" + entry.timestamp);
+        editor.commit();
+    }
+
+    /** Restores tracked stanzas saved by a previous service instance. */
+    public void restore(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, ?> saved : prefs.getAll().entrySet()) {
+            try {
+                String[] value = saved.getValue().toString().split(":");
+                // message center holds don't survive the service
+                entries.add(new Entry(saved.getKey(), Long.parseLong(value[0]),
+                    Long.parseLong(value[1]), false));
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "invalid in-flight entry: " + saved.getKey());
+            }
+        }
+        prefs.edit().clear().commit();
+
+        // keep expiration order
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.timestamp < rhs.timestamp ? -1 : (lhs.timestamp == rhs.timestamp ? 0 : 1);
+            }
+        });
+        for (Entry entry : entries)
+            put(entry);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Groups consecutive items (e.g. incoming messages) so they can be committed
+ * together. A batch is committed when it reaches the maximum size, when the
+ * maximum delay since its first item has passed or when explicitly flushed.
+ * Batches are committed one at a time, in order.
+ * @author Daniele Ricci
+ */
+class InboundBatch<T> {
+    private static final String TAG = InboundBatch.class.getSimpleName();
+
+    /** Maximum number of items in a batch. */
+    static final int DEFAULT_MAX_SIZE = 50;
+    /** Maximum time an item can wait for its batch to be committed. */
+    static final long DEFAULT_MAX_DELAY = 200;
+
+    /** Idle timer thread will be stopped after this time. */
+    private static final long KEEP_ALIVE = 10;
+
+    public interface Committer<T> {
+        /** Commits the given items. Called with the batch lock held. */
+        void commit(List<T> items);
+    }
+
+    private final Committer<T> mCommitter;
+    private int mMaxSize;
+    private long mMaxDelay;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    private List<T> mItems;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    InboundBatch(Committer<T> committer, int maxSize, long maxDelay) {
+        mCommitter = committer;
+        mMaxSize = maxSize;
+        mMaxDelay = maxDelay;
+        mItems = new ArrayList<>(maxSize);
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "InboundBatch");
+            }
+        });
+        mTimer.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /** Adds an item to the current batch, committing it if it's full. */
+    public synchronized void add(T item) {
+        mItems.add(item);
+
+        if (mItems.size() >= mMaxSize) {
+            flush();
+        }
+        else if (mScheduledFlush == null) {
+            mScheduledFlush = mTimer.schedule(mFlushTask, mMaxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Commits the current batch now (if not empty). */
+    public synchronized void flush() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+
+        if (mItems.isEmpty())
+            return;
+
+        List<T> items = mItems;
+        mItems = new ArrayList<>(mMaxSize);
+        try {
+            mCommitter.commit(items);
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "error committing batch", e);
+        }
+    }
+
+    /**
+     * Changes batch limits. If the current batch is already full, it will be
+     * committed in the background.
+     */
+    public synchronized void setLimits(int maxSize, long maxDelay) {
+        mMaxSize = maxSize;
+        mMaxDelay = maxDelay;
+        if (mItems.size() >= maxSize) {
+            if (mScheduledFlush != null)
+                mScheduledFlush.cancel(false);
+            mScheduledFlush = mTimer.schedule(mFlushTask, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns the number of items waiting to be committed. */
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+}
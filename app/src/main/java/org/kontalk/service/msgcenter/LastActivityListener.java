@@ -47,7 +47,16 @@ class LastActivityListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) {
-        LastActivity p = (LastActivity) packet;
+        final LastActivity p = (LastActivity) packet;
+        queueTask(new Runnable() {
+            @Override
+            public void run() {
+                handleLastActivity(p);
+            }
+        }, PriorityTaskExecutor.PRIORITY_INFO);
+    }
+
+    private void handleLastActivity(LastActivity p) {
         Intent i = new Intent(ACTION_LAST_ACTIVITY);
         i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
 
@@ -56,7 +65,7 @@ class LastActivityListener extends MessageCenterPacketListener {
         i.putExtra(EXTRA_TO, p.getTo());
         i.putExtra(EXTRA_SECONDS, p.getIdleTime());
 
-        XMPPError.Condition errCondition = XMPPUtils.getErrorCondition(packet);
+        XMPPError.Condition errCondition = XMPPUtils.getErrorCondition(p);
         if (errCondition != null)
             i.putExtra(EXTRA_ERROR_CONDITION, errCondition.toString());
 
@@ -19,7 +19,7 @@
 package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
-import java.util.Map;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
@@ -84,10 +84,11 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return (instance != null) ? instance.getRosterEntry(jid) : null;
     }
 
-    protected void queueTask(Runnable task) {
+    /** Queues a task in one of the {@link PriorityTaskExecutor} lanes. */
+    protected void queueTask(Runnable task, int priority) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            instance.queueTask(task);
+            instance.queueTask(task, priority);
     }
 
     protected void sendBroadcast(Intent intent) {
@@ -171,9 +172,9 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.pushRegister();
     }
 
-    protected Map<String, Long> getWaitingReceiptList() {
+    protected InFlightTracker getInFlightTracker() {
         MessageCenterService instance = mInstance.get();
-        return (instance != null) ? instance.mWaitingReceipt : null;
+        return (instance != null) ? instance.mInFlight : null;
     }
 
     protected Uri incoming(CompositeMessage msg) {
@@ -182,6 +183,12 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             .getMessagesController(context).incoming(msg) : null;
     }
 
+    protected Uri[] incoming(List<CompositeMessage> msgs) {
+        Context context = getContext();
+        return (context != null) ? Kontalk
+            .getMessagesController(context).incoming(msgs) : null;
+    }
+
     protected IdleConnectionHandler getIdleHandler() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mIdleHandler: null;
@@ -217,6 +224,15 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.endKeyPairImport();
     }
 
+    /**
+     * Records a stanza received for catch-up mode.
+     * @return true if we are catching up with the offline backlog
+     */
+    protected boolean trackCatchUp() {
+        MessageCenterService instance = mInstance.get();
+        return instance != null && instance.mCatchUp.onActivity(System.currentTimeMillis());
+    }
+
     protected void resumeSmAck() {
         MessageCenterService instance = mInstance.get();
         if (instance != null && instance.mConnection != null) {
@@ -19,8 +19,10 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -29,12 +31,9 @@ import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.zip.ZipInputStream;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
@@ -65,6 +64,7 @@ import org.jivesoftware.smackx.iqversion.VersionManager;
 import org.jivesoftware.smackx.iqversion.packet.Version;
 import org.jivesoftware.smackx.ping.PingFailedListener;
 import org.jivesoftware.smackx.ping.PingManager;
+import org.jivesoftware.smackx.ping.packet.Ping;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 import org.jxmpp.util.XmppStringUtils;
@@ -121,6 +121,7 @@ import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.Keyring;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Groups;
@@ -130,6 +131,7 @@ import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.MyUsers;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.KeyPairGeneratorService;
+import org.kontalk.service.StreamResumption;
 import org.kontalk.service.UploadService;
 import org.kontalk.service.XMPPConnectionHelper;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
@@ -141,7 +143,9 @@ import org.kontalk.service.msgcenter.group.GroupControllerFactory;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.service.msgcenter.group.PartCommand;
 import org.kontalk.service.msgcenter.group.SetSubjectCommand;
+import org.kontalk.sync.SyncAdapter;
 import org.kontalk.ui.MessagingNotification;
+import org.kontalk.upload.UploadJobStore;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
@@ -373,7 +377,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Service handler. */
     Handler mHandler;
     /** Task execution pool. Generally used by packet listeners. */
-    private ExecutorService mThreadPool;
+    private PriorityTaskExecutor mTaskExecutor;
 
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
@@ -386,8 +390,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     private boolean mFirstStart = true;
 
-    /** Messages waiting for server receipt (packetId: internalStorageId). */
-    Map<String, Long> mWaitingReceipt = new HashMap<>();
+    /** Outbound message pipeline. */
+    private OutboundQueue mOutboundQueue;
+
+    /** Catch-up mode for the offline backlog. */
+    final CatchUpMode mCatchUp = new CatchUpMode();
+    /** Listener for message stanzas (needed for catch-up mode). */
+    private MessageListener mMessageListener;
+
+    /** Stanzas waiting for server receipt (packetId: internalStorageId). */
+    final InFlightTracker mInFlight = new InFlightTracker(InFlightTracker.DEFAULT_TIMEOUT);
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -405,8 +417,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         /** A reference to the message center. */
         private WeakReference<MessageCenterService> s;
-        /** Reference counter. */
-        private int mRefCount;
+        /** Reference counter. Modified only by the handler thread. */
+        private volatile int mRefCount;
 
         public IdleConnectionHandler(MessageCenterService service, int refCount, Looper looper) {
             super(looper);
@@ -485,9 +497,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         /** Resets the idle timer. */
-        public void reset(int refCount) {
-            mRefCount = refCount;
-            reset();
+        public void reset(final int refCount) {
+            post(new Runnable() {
+                public void run() {
+                    mRefCount = refCount;
+                    reset();
+                }
+            });
         }
 
         /** Resets the idle timer. */
@@ -505,27 +521,29 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             sendMessage(obtainMessage(MSG_IDLE));
         }
 
-        public void hold(boolean activate) {
-            mRefCount++;
-            if (mRefCount > 0) {
-                MessageCenterService service = s.get();
-                if (service != null && service.isInactive() && service.isConnected()) {
-                    service.active(activate);
-                }
-            }
+        /** Can be called from any thread: the counter is updated by the handler thread. */
+        public void hold(final boolean activate) {
             post(new Runnable() {
                 public void run() {
+                    mRefCount++;
+                    if (mRefCount > 0) {
+                        MessageCenterService service = s.get();
+                        if (service != null && service.isInactive() && service.isConnected()) {
+                            service.active(activate);
+                        }
+                    }
                     abortIdle();
                 }
             });
         }
 
+        /** Can be called from any thread: the counter is updated by the handler thread. */
         public void release() {
-            mRefCount--;
-            if (mRefCount <= 0) {
-                mRefCount = 0;
-                post(new Runnable() {
-                    public void run() {
+            post(new Runnable() {
+                public void run() {
+                    mRefCount--;
+                    if (mRefCount <= 0) {
+                        mRefCount = 0;
                         removeMessages(MSG_IDLE);
                         removeMessages(MSG_INACTIVE);
                         Looper.myQueue().addIdleHandler(IdleConnectionHandler.this);
@@ -537,8 +555,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                             queueInactive();
                         }
                     }
-                });
-            }
+                }
+            });
         }
 
         public void quit() {
@@ -619,6 +637,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create the roster store
         mRosterStore = new SQLiteRosterStore(this);
 
+        // stanzas sent by the previous instance
+        mInFlight.restore(this);
+
         // create the global wake lock
         PowerManager pwr = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = pwr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Kontalk.TAG);
@@ -639,13 +660,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        // outgoing messages will be processed in background
+        mOutboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_WORKERS);
+
         // register screen off listener for manual inactivation
         registerInactivity();
     }
 
-    void queueTask(Runnable task) {
-        if (mThreadPool != null) {
-            mThreadPool.execute(task);
+    /**
+     * Queues a task for background execution.
+     * @param priority one of the {@link PriorityTaskExecutor} lanes
+     */
+    void queueTask(Runnable task, int priority) {
+        PriorityTaskExecutor executor = mTaskExecutor;
+        if (executor != null) {
+            executor.execute(task, priority);
         }
     }
 
@@ -706,10 +735,26 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PriorityTaskExecutor executor = mTaskExecutor;
+        writer.println("Task executor: " + (executor != null ? executor.getStats() : "not running"));
+        writer.println("Login times: " + XMPPConnectionHelper.getLoginStats());
+        writer.println("TLS handshakes: " + XMPPConnectionHelper.getHandshakeStats());
+        writer.println("Stanzas waiting for ack: " + mInFlight.size());
+        writer.println("Catch-up: " + mCatchUp.getStats());
+        writer.println("Ping statistics: " + AndroidAdaptiveServerPingManager.getStatistics(this).getStats());
+        writer.println("Provider notifications: " + MessagesProvider.getNotificationStats());
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
+        // discard outgoing messages still being processed (they will be sent again later)
+        mOutboundQueue.shutdown();
         quit(false);
+        // keep track of stanzas still waiting for ack (the stream might be resumed)
+        mInFlight.save(this);
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
         // destroy roster store
@@ -750,10 +795,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mIdleHandler.reset(refCount);
         }
 
+        // release anything held by catch-up mode
+        endCatchUp();
+
         // stop all running tasks
-        if (mThreadPool != null) {
-            mThreadPool.shutdownNow();
-            mThreadPool = null;
+        if (mTaskExecutor != null) {
+            Log.d(TAG, "task executor stats: " + mTaskExecutor.getStats());
+            mTaskExecutor.shutdown();
+            mTaskExecutor = null;
         }
 
         // disable listeners
@@ -778,7 +827,15 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             PingManager.getInstanceFor(mConnection)
                 .unregisterPingFailedListener(mPingFailedListener);
             // this is because of NetworkOnMainThreadException
-            new DisconnectThread(mConnection).start();
+            if ((restarting || !SystemUtils.isNetworkConnectionAvailable(this)) &&
+                    Authenticator.getDefaultAccount(this) != null) {
+                // we will reconnect soon, keep the stream resumable
+                StreamResumption.beginSuspend();
+                new SuspendThread(getApplicationContext(), mConnection).start();
+            }
+            else {
+                new DisconnectThread(getApplicationContext(), mConnection).start();
+            }
             mConnection = null;
         }
 
@@ -812,9 +869,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private static final class DisconnectThread extends Thread {
+        private final Context mContext;
         private final AbstractXMPPConnection mConn;
 
-        public DisconnectThread(AbstractXMPPConnection conn) {
+        public DisconnectThread(Context context, AbstractXMPPConnection conn) {
+            mContext = context;
             mConn = conn;
         }
 
@@ -826,6 +885,28 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             catch (Exception e) {
                 // ignored
             }
+            // stream won't be resumed, forget any state saved earlier
+            StreamResumption.clear(mContext);
+        }
+    }
+
+    private static final class SuspendThread extends Thread {
+        private final Context mContext;
+        private final KontalkConnection mConn;
+
+        public SuspendThread(Context context, KontalkConnection conn) {
+            mContext = context;
+            mConn = conn;
+        }
+
+        @Override
+        public void run() {
+            try {
+                StreamResumption.suspend(mContext, mConn, mConn.getServiceName());
+            }
+            catch (Exception e) {
+                // ignored
+            }
         }
     }
 
@@ -1111,7 +1192,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @CommandHandler(name = ACTION_MESSAGE)
     private boolean handleMessage(Intent intent, boolean canConnect) {
         if (canConnect && isConnected())
-            sendMessage(intent.getExtras());
+            queueMessage(intent.getExtras());
         return false;
     }
 
@@ -1176,7 +1257,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         public void run() {
                             broadcastPresence(roster, to, id);
                         }
-                    });
+                    }, PriorityTaskExecutor.PRIORITY_PRESENCE);
                 }
             }
             else {
@@ -1353,11 +1434,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // reset push notification variable
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService.isServiceAvailable();
-            // reset waiting messages
-            mWaitingReceipt.clear();
-
             // setup task execution pool
-            mThreadPool = Executors.newCachedThreadPool();
+            mTaskExecutor = new PriorityTaskExecutor(PriorityTaskExecutor.DEFAULT_THREADS,
+                PriorityTaskExecutor.DEFAULT_CAPACITY);
 
             mInactive = false;
 
@@ -1473,7 +1552,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
 
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
+        mMessageListener = new MessageListener(this);
+        connection.addSyncStanzaListener(mMessageListener, filter);
 
         filter = new StanzaTypeFilter(LastActivity.class);
         connection.addAsyncStanzaListener(new LastActivityListener(this), filter);
@@ -1502,13 +1582,32 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.w(TAG, "stream management not available - disabling delivery receipts");
         }
 
-        // send presence
-        sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
-        // clear upload service
-        if (mUploadServices != null)
-            mUploadServices.clear();
-        // discovery
-        discovery();
+        if (resumed) {
+            // the server kept our presence, just reload the roster for the new connection
+            try {
+                getRoster().reload();
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to reload roster", e);
+            }
+            // discovery is needed only if we don't have the info already
+            if (mUploadServices == null || mUploadServices.isEmpty())
+                discovery();
+        }
+        else {
+            // stanzas sent with the previous stream will never be acked
+            mInFlight.clear();
+            // the server will now flood us with the offline backlog
+            beginCatchUp();
+            // send presence
+            sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
+            sendCatchUpMarker();
+            // clear upload service
+            if (mUploadServices != null)
+                mUploadServices.clear();
+            // discovery
+            discovery();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1578,7 +1677,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void active(boolean available) {
-        final XMPPConnection connection = mConnection;
+        final KontalkConnection connection = mConnection;
         if (connection != null) {
             cancelIdleAlarm();
 
@@ -1602,7 +1701,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void inactive() {
-        final XMPPConnection connection = mConnection;
+        final KontalkConnection connection = mConnection;
         if (connection != null) {
             if (!mInactive) {
                 if (ClientStateIndicationManager.isSupported(connection)) {
@@ -1643,6 +1742,77 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return mConnection != null ? mConnection.getLastStanzaReceived() : 0;
     }
 
+    private final Runnable mCatchUpCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mCatchUp.shouldEnd(System.currentTimeMillis())) {
+                endCatchUp();
+            }
+            else if (mCatchUp.isActive() && mHandler != null) {
+                mHandler.postDelayed(this, CatchUpMode.QUIET_PERIOD);
+            }
+        }
+    };
+
+    /**
+     * Enters catch-up mode: message notifications and typing broadcasts are
+     * suppressed and incoming messages are stored in larger batches.
+     */
+    private void beginCatchUp() {
+        mCatchUp.begin(System.currentTimeMillis());
+        MessagingNotification.holdUpdates();
+        if (mMessageListener != null)
+            mMessageListener.setCatchUp(true);
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mCatchUpCheck);
+            mHandler.postDelayed(mCatchUpCheck, CatchUpMode.QUIET_PERIOD);
+        }
+    }
+
+    /** Leaves catch-up mode, firing a single notification update and sync. */
+    void endCatchUp() {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mCatchUpCheck);
+
+        if (mCatchUp.end()) {
+            Log.d(TAG, "catch-up completed: " + mCatchUp.getStats());
+            MessageListener listener = mMessageListener;
+            if (listener != null)
+                listener.setCatchUp(false);
+            MessagingNotification.releaseUpdates(getApplicationContext());
+            // contacts might have changed while we were away (sync is throttled)
+            SyncAdapter.requestSync(getApplicationContext(), false);
+        }
+    }
+
+    /**
+     * Sends a ping right after our initial presence. The server delivers the
+     * offline backlog upon receiving the presence, so the reply signals the
+     * end of the backlog.
+     */
+    private void sendCatchUpMarker() {
+        Ping ping = new Ping(mServer.getNetwork());
+        try {
+            mConnection.sendIqWithResponseCallback(ping, new StanzaListener() {
+                @Override
+                public void processPacket(Stanza packet) {
+                    Handler handler = mHandler;
+                    if (handler != null) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                endCatchUp();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        catch (NotConnectedException e) {
+            // catch-up will end after the quiet period
+        }
+    }
+
     /** Sends our initial presence. */
     private void sendPresence(Presence.Mode mode) {
         sendPacket(createPresence(mode));
@@ -1703,6 +1873,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     void resendPendingMessages(boolean retrying, boolean forcePending, String to) {
         String[] filterArgs = null;
 
+        // drop upload jobs of messages deleted in the meantime
+        if (!retrying)
+            UploadJobStore.getInstance(this).purge(this);
+
         StringBuilder filter = new StringBuilder()
             .append(Messages.DIRECTION)
             .append('=')
@@ -1805,6 +1979,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 groupMembers = MessagesProviderUtils.getGroupMembers(this, groupJid, -1);
             }
 
+            // message is being resent by stream management
+            final KontalkConnection connection = mConnection;
+            if (connection != null && connection.isStanzaUnacknowledged(msgId)) {
+                continue;
+            }
+
             // media message encountered and no upload service available - delay message
             if (attFileUri != null && attFetchUrl == null && getUploadService() == null && !retrying) {
                 Log.w(TAG, "no upload info received yet, delaying media message");
@@ -1881,7 +2061,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
 
             Log.v(TAG, "resending pending message " + id);
-            sendMessage(b);
+            queueMessage(b);
         }
     }
 
@@ -1909,7 +2089,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             b.putString("org.kontalk.message.ack", msgId);
 
             Log.v(TAG, "resending pending receipt for message " + id);
-            sendMessage(b);
+            queueMessage(b);
         }
 
         c.close();
@@ -1972,6 +2152,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private boolean isAuthorized(String jid) {
         if (Authenticator.isSelfJID(this, jid))
             return true;
+        if (!isRosterLoaded()) {
+            // roster not loaded yet, use the stored one
+            return mRosterStore.isSubscribed(XmppStringUtils.parseBareJid(jid));
+        }
         RosterEntry entry = getRosterEntry(jid);
         return entry != null && isAuthorized(entry);
     }
@@ -2149,7 +2333,47 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         sendPacket(p);
     }
 
+    /**
+     * Queues a message to the outbound pipeline. Encryption, preview
+     * generation and everything else involved in sending the message will
+     * happen in background, in order with other messages of the same
+     * conversation.
+     */
+    private void queueMessage(final Bundle data) {
+        String groupJid = data.getString("org.kontalk.message.group.jid");
+        String key = groupJid != null ? groupJid : data.getString("org.kontalk.message.to");
+        mOutboundQueue.execute(key != null ? key : "", new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(data);
+            }
+        });
+    }
+
+    /** Shows a toast from any thread. */
+    private void showToast(final int textId) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(getApplicationContext(), textId,
+                        Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    }
+
+    /** Processes and sends a message. Called by the outbound pipeline. */
     private void sendMessage(Bundle data) {
+        // connection might go away while we are processing
+        final KontalkConnection connection = mConnection;
+        final IdleConnectionHandler idleHandler = mIdleHandler;
+        if (connection == null || idleHandler == null) {
+            Log.d(TAG, "not connected, not sending message");
+            return;
+        }
+
         if (!isRosterLoaded()) {
             Log.d(TAG, "roster not loaded yet, not sending message");
             return;
@@ -2167,7 +2391,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         if (isGroupMsg) {
             toGroup = data.getStringArray("org.kontalk.message.to");
             // TODO this should be discovered first
-            to = mConnection.getServiceName();
+            to = connection.getServiceName();
             convJid = groupJid;
         }
         else {
@@ -2180,8 +2404,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.i(TAG, "not subscribed to " + to + ", not sending message");
             // warn user: message will not be sent
             if (!retrying && MessagingNotification.isPaused(to)) {
-                Toast.makeText(this, R.string.warn_not_subscribed,
-                    Toast.LENGTH_LONG).show();
+                showToast(R.string.warn_not_subscribed);
             }
             return;
         }
@@ -2194,15 +2417,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.w(TAG, "no personal key available - not allowed to send messages");
             // warn user: message will not be sent
             if (MessagingNotification.isPaused(convJid)) {
-                Toast.makeText(this, R.string.warn_no_personal_key,
-                    Toast.LENGTH_LONG).show();
+                showToast(R.string.warn_no_personal_key);
             }
             return;
         }
 
+        // forget stanzas whose ack got lost
+        for (int i = mInFlight.expire(System.currentTimeMillis()); i > 0; i--)
+            idleHandler.release();
+
         // check if message is already pending
         final long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
+        if (mInFlight.containsMessage(msgId)) {
             Log.v(TAG, "message already queued and waiting - dropping");
             return;
         }
@@ -2213,16 +2439,42 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         final String mime = data.getString("org.kontalk.message.mime");
         String _mediaUri = data.getString("org.kontalk.message.media.uri");
         if (_mediaUri != null) {
+            final String previewPath = data.getString("org.kontalk.message.preview.path");
+
             // take the first available upload service :)
             IUploadService uploadService = getUploadService();
+            final boolean resume = uploadService != null && uploadService.supportsResume();
+
+            // resume a previous upload attempt if possible
+            UploadJobStore jobs = UploadJobStore.getInstance(this);
+            UploadJobStore.Job job = jobs.get(msgId);
+            if (job != null) {
+                if (!job.isResumable()) {
+                    // delete the encrypted temp file too
+                    jobs.discard(job);
+                    job = null;
+                }
+                else if (job.hasSlot()) {
+                    Log.v(TAG, "resuming upload for message " + msgId);
+                    startUpload(job.fileUri, job.length, job.putUrl, job.getUrl, resume,
+                        msgId, id, mime, encrypt, previewPath, to, toGroup, groupJid);
+                    return;
+                }
+            }
+
             if (uploadService != null) {
                 Uri preMediaUri = Uri.parse(_mediaUri);
-                final String previewPath = data.getString("org.kontalk.message.preview.path");
                 long fileLength;
 
                 try {
+                    if (job != null) {
+                        // upload slot was rejected - upload the same file to a new slot
+                        Log.v(TAG, "requesting new upload slot for message " + msgId);
+                        fileLength = job.length;
+                        preMediaUri = job.fileUri;
+                    }
                     // encrypt the file if necessary
-                    if (encrypt) {
+                    else if (encrypt) {
                         InputStream in = getContentResolver().openInputStream(preMediaUri);
                         File encrypted = MessageUtils.encryptFile(this, in, toGroup);
                         fileLength = encrypted.length();
@@ -2242,6 +2494,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
 
                 final Uri mediaUri = preMediaUri;
+                final long mediaLength = fileLength;
 
                 // build a filename
                 String filename = CompositeMessage.getFilename(mime, new Date());
@@ -2254,24 +2507,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
                     @Override
                     public void callback(String putUrl, String getUrl) {
-                        // start upload intent service
-                        Intent i = new Intent(MessageCenterService.this, UploadService.class);
-                        i.setData(mediaUri);
-                        i.setAction(UploadService.ACTION_UPLOAD);
-                        i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
-                        i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
-                        i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
-                        i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
-                        i.putExtra(UploadService.EXTRA_MIME, mime);
-                        // this will be used only for out of band data
-                        i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
-                        i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
-                        // delete original (actually it's the encrypted temp file) if we already encrypted it
-                        i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, encrypt);
-                        i.putExtra(UploadService.EXTRA_USER, groupJid != null ? uploadGroupTo : uploadTo);
-                        if (groupJid != null)
-                            i.putExtra(UploadService.EXTRA_GROUP, groupJid);
-                        startService(i);
+                        startUpload(mediaUri, mediaLength, putUrl, getUrl, resume,
+                            msgId, id, mime, encrypt, previewPath, uploadTo, uploadGroupTo, groupJid);
                     }
                 });
 
@@ -2284,7 +2521,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         else {
             // hold on to message center while we send the message
-            mIdleHandler.hold(false);
+            idleHandler.hold(false);
 
             Stanza m, originalStanza;
 
@@ -2294,7 +2531,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             if (isGroupMsg) {
                 // TODO take type from data
                 group = GroupControllerFactory
-                    .createController(KontalkGroupController.GROUP_TYPE, mConnection, this);
+                    .createController(KontalkGroupController.GROUP_TYPE, connection, this);
 
                 int groupCommandId = data.getInt("org.kontalk.message.group.command", 0);
                 switch (groupCommandId) {
@@ -2355,13 +2592,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             // set message id
             m.setStanzaId(id);
-            if (msgId > 0)
-                mWaitingReceipt.put(id, msgId);
 
             // message server id
             String serverId = isMessage ? data.getString("org.kontalk.message.ack") : null;
             boolean ackRequest = isMessage && !data.getBoolean("org.kontalk.message.standalone", false) && !isGroupMsg;
 
+            if (msgId > 0)
+                mInFlight.put(id, msgId, ackRequest);
+
             if (isMessage) {
                 org.jivesoftware.smack.packet.Message msg = (org.jivesoftware.smack.packet.Message) m;
                 msg.setType(org.jivesoftware.smack.packet.Message.Type.chat);
@@ -2432,16 +2670,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     catch (IllegalArgumentException noPublicKey) {
                         // warn user: message will be not sent
                         if (MessagingNotification.isPaused(convJid)) {
-                            Toast.makeText(this, R.string.warn_no_public_key,
-                                Toast.LENGTH_LONG).show();
+                            showToast(R.string.warn_no_public_key);
                         }
                     }
 
                     catch (GeneralSecurityException e) {
                         // warn user: message will not be sent
                         if (MessagingNotification.isPaused(convJid)) {
-                            Toast.makeText(this, R.string.warn_encryption_failed,
-                                Toast.LENGTH_LONG).show();
+                            showToast(R.string.warn_encryption_failed);
                         }
                     }
 
@@ -2454,8 +2690,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
                         // do not send the message
                         if (msgId > 0)
-                            mWaitingReceipt.remove(id);
-                        mIdleHandler.release();
+                            mInFlight.remove(id);
+                        idleHandler.release();
                         return;
                     }
                 }
@@ -2492,13 +2728,41 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             // no ack request, release message center immediately
             if (!ackRequest)
-                mIdleHandler.release();
+                idleHandler.release();
         }
     }
 
+    /**
+     * Starts the upload service for the given media.
+     * @param resume true if the upload service supports resuming uploads
+     */
+    private void startUpload(Uri mediaUri, long length, String putUrl, String getUrl,
+            boolean resume, long msgId, String id, String mime, boolean encrypt, String previewPath,
+            String to, String[] toGroup, String groupJid) {
+        Intent i = new Intent(this, UploadService.class);
+        i.setData(mediaUri);
+        i.setAction(UploadService.ACTION_UPLOAD);
+        i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
+        i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
+        i.putExtra(UploadService.EXTRA_RESUME, resume);
+        i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
+        i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
+        i.putExtra(UploadService.EXTRA_MIME, mime);
+        i.putExtra(UploadService.EXTRA_LENGTH, length);
+        // this will be used only for out of band data
+        i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
+        i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
+        // delete original (actually it's the encrypted temp file) if we already encrypted it
+        i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, encrypt);
+        i.putExtra(UploadService.EXTRA_USER, groupJid != null ? toGroup : to);
+        if (groupJid != null)
+            i.putExtra(UploadService.EXTRA_GROUP, groupJid);
+        startService(i);
+    }
+
     private void ensureUploadServices() {
         if (mUploadServices == null)
-            mUploadServices = new ArrayList<>(2);
+            mUploadServices = Collections.synchronizedList(new ArrayList<IUploadService>(2));
     }
 
     void addUploadService(IUploadService service) {
@@ -2513,8 +2777,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     /** Returns the first available upload service post URL. */
     private IUploadService getUploadService() {
-        return (mUploadServices != null && mUploadServices.size() > 0) ?
-            mUploadServices.get(0) : null;
+        List<IUploadService> services = mUploadServices;
+        if (services != null) {
+            // also called by the outbound pipeline
+            synchronized (services) {
+                return services.size() > 0 ? services.get(0) : null;
+            }
+        }
+        return null;
     }
 
     private void beginKeyPairRegeneration() {
@@ -20,8 +20,9 @@ package org.kontalk.service.msgcenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Map;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -33,6 +34,7 @@ import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 import org.jxmpp.util.XmppStringUtils;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -66,6 +68,7 @@ import org.kontalk.message.RawComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.message.VCardComponent;
 import org.kontalk.provider.Keyring;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.provider.MyMessages.Messages;
@@ -90,8 +93,32 @@ class MessageListener extends MessageCenterPacketListener {
     private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
     private static final String selectionIngoing = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
 
+    /** Batch limits while catching up with the offline backlog. */
+    private static final int CATCH_UP_BATCH_SIZE = 500;
+    private static final long CATCH_UP_BATCH_DELAY = 1000;
+
+    /** Incoming messages and status updates waiting to be stored together. */
+    private final InboundBatch<PendingStanza> mBatch;
+
     public MessageListener(MessageCenterService instance) {
         super(instance);
+        mBatch = new InboundBatch<>(new InboundBatch.Committer<PendingStanza>() {
+            @Override
+            public void commit(List<PendingStanza> items) {
+                commitPending(items);
+            }
+        }, InboundBatch.DEFAULT_MAX_SIZE, InboundBatch.DEFAULT_MAX_DELAY);
+    }
+
+    /** Uses larger batches while catching up with the offline backlog. */
+    public void setCatchUp(boolean active) {
+        if (active) {
+            mBatch.setLimits(CATCH_UP_BATCH_SIZE, CATCH_UP_BATCH_DELAY);
+        }
+        else {
+            // pending items will be committed by the scheduled flush
+            mBatch.setLimits(InboundBatch.DEFAULT_MAX_SIZE, InboundBatch.DEFAULT_MAX_DELAY);
+        }
     }
 
     public boolean processGroupMessage(KontalkGroupManager.KontalkGroup group, Stanza packet, CompositeMessage msg)
@@ -156,9 +183,13 @@ class MessageListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) throws SmackException.NotConnectedException {
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
+        InFlightTracker inFlight = getInFlightTracker();
 
         org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
+        // true if this stanza will be committed with the current batch
+        boolean batched = false;
+
+        boolean catchUp = trackCatchUp();
 
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
             Intent i = new Intent(ACTION_MESSAGE);
@@ -169,14 +200,18 @@ class MessageListener extends MessageCenterPacketListener {
             ChatStateExtension chatstate = null;
             if (_chatstate != null) {
                 chatstate = (ChatStateExtension) _chatstate;
-                Contact.setTyping(from, chatstate.getChatState() == ChatState.composing);
+                // chat states from the offline backlog are stale
+                if (!catchUp)
+                    Contact.setTyping(from, chatstate.getChatState() == ChatState.composing);
 
                 i.putExtra("org.kontalk.message.chatState", chatstate.getElementName());
             }
 
-            i.putExtra(EXTRA_FROM, from);
-            i.putExtra(EXTRA_TO, m.getTo());
-            sendBroadcast(i);
+            if (!catchUp) {
+                i.putExtra(EXTRA_FROM, from);
+                i.putExtra(EXTRA_TO, m.getTo());
+                sendBroadcast(i);
+            }
 
             // non-active chat states are not to be processed as messages
             if (chatstate == null || chatstate.getElementName().equals(ChatState.active.name())) {
@@ -195,32 +230,23 @@ class MessageListener extends MessageCenterPacketListener {
 
                 // delivery receipt
                 if (deliveryReceipt != null) {
-                    synchronized (waitingReceipt) {
-                        String id = m.getStanzaId();
-                        Long _msgId = waitingReceipt.get(id);
-                        long msgId = (_msgId != null) ? _msgId : 0;
-                        ContentResolver cr = getContext().getContentResolver();
-
-                        // message has been delivered: check if we have previously stored the server id
-                        if (msgId > 0) {
-                            ContentValues values = new ContentValues(3);
-                            values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
-                            values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                            values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                            cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                                values, selectionOutgoing, null);
-
-                            waitingReceipt.remove(id);
-                        }
-                        else {
-                            // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                            Uri msg = Messages.getUri(deliveryReceipt.getId());
-                            ContentValues values = new ContentValues(2);
-                            values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                            values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                            cr.update(msg, values, selectionOutgoing, null);
-                        }
+                    InFlightTracker.Entry entry = inFlight.remove(m.getStanzaId());
+                    long msgId = (entry != null) ? entry.msgId : 0;
+
+                    // message has been delivered: check if we have previously stored the server id
+                    if (msgId > 0) {
+                        mBatch.add(new StatusUpdate(msgId, deliveryReceipt.getId(),
+                            Messages.STATUS_RECEIVED, serverTimestamp));
+                        // receipt came before the ack
+                        if (entry.held)
+                            release();
+                    }
+                    else {
+                        // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                        mBatch.add(new StatusUpdate(0, deliveryReceipt.getId(),
+                            Messages.STATUS_RECEIVED, serverTimestamp));
                     }
+                    batched = true;
                 }
 
                 // incoming message
@@ -405,11 +431,20 @@ class MessageListener extends MessageCenterPacketListener {
 
                     msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
 
-                    Uri msgUri = incoming(msg);
+                    if (msg.getComponent(GroupCommandComponent.class) == null) {
+                        // will be stored together with the following messages
+                        mBatch.add(new IncomingMessage(msg, msgId, from, needAck));
+                        batched = true;
+                    }
+                    else {
+                        // group commands are stored on their own, after any pending message
+                        mBatch.flush();
+                        Uri msgUri = incoming(msg);
 
-                    if (needAck) {
-                        // send ack :)
-                        sendReceipt(msgUri, msgId, from, waitingReceipt);
+                        if (needAck) {
+                            // send ack :)
+                            sendReceipt(msgUri, msgId, from, inFlight);
+                        }
                     }
 
                 }
@@ -431,45 +466,108 @@ class MessageListener extends MessageCenterPacketListener {
                     .update(msg, values, selectionIngoing, null);
 
                 // send receipt again
-                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
+                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), inFlight);
             }
 
-            synchronized (waitingReceipt) {
-                String id = m.getStanzaId();
-                Long _msgId = waitingReceipt.get(id);
-                long msgId = (_msgId != null) ? _msgId : 0;
-                ContentResolver cr = getContext().getContentResolver();
-
-                // message has been rejected: mark as error
-                if (msgId > 0) {
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                        values, selectionOutgoing, null);
+            String id = m.getStanzaId();
+            InFlightTracker.Entry entry = inFlight.remove(id);
+            long msgId = (entry != null) ? entry.msgId : 0;
 
-                    waitingReceipt.remove(id);
+            // message has been rejected: mark as error
+            if (msgId > 0) {
+                mBatch.add(new StatusUpdate(msgId, null,
+                    Messages.STATUS_NOTDELIVERED, System.currentTimeMillis()));
+                batched = true;
 
-                    // we can now release the message center. Hopefully
-                    // there will be one hold and one matching release.
+                // we can now release the message center, if it was held for this stanza
+                if (entry.held)
                     release();
-                }
-                else if (id != null) {
-                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                    Uri msg = Messages.getUri(id);
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(msg, values, selectionOutgoing, null);
-                }
             }
+            else if (id != null) {
+                // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                mBatch.add(new StatusUpdate(0, id,
+                    Messages.STATUS_NOTDELIVERED, System.currentTimeMillis()));
+                batched = true;
+            }
+        }
+
+        // SM ack will be resumed after the batch is committed
+        if (!batched) {
+            // store anything pending before acking this stanza
+            mBatch.flush();
+
+            // we saved the message, restore SM ack
+            resumeSmAck();
+        }
+    }
+
+    /** Commits a batch of pending stanzas. */
+    void commitPending(List<PendingStanza> items) {
+        List<IncomingMessage> messages = new ArrayList<>(items.size());
+        List<StatusUpdate> updates = new ArrayList<>(items.size());
+        for (PendingStanza item : items) {
+            if (item instanceof IncomingMessage)
+                messages.add((IncomingMessage) item);
+            else
+                updates.add((StatusUpdate) item);
         }
 
-        // we saved the message, restore SM ack
+        if (messages.size() > 0)
+            commitIncoming(messages);
+        if (updates.size() > 0)
+            commitStatusUpdates(updates);
+
+        // we saved everything, restore SM ack
         resumeSmAck();
     }
 
-    private void sendReceipt(Uri msgUri, String msgId, String from, Map<String, Long> waitingReceipt) {
+    /** Applies a batch of message status updates in a single transaction. */
+    private void commitStatusUpdates(List<StatusUpdate> updates) {
+        Context context = getContext();
+        if (context == null)
+            return;
+
+        ContentResolver cr = context.getContentResolver();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(updates.size());
+        for (StatusUpdate update : updates) {
+            ops.add(ContentProviderOperation.newUpdate(update.getUri())
+                .withValues(update.getValues())
+                .withSelection(selectionOutgoing, null)
+                .build());
+        }
+
+        try {
+            cr.applyBatch(MessagesProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            // update messages one by one
+            Log.w(TAG, "batch update failed, falling back to single updates", e);
+            for (StatusUpdate update : updates)
+                cr.update(update.getUri(), update.getValues(), selectionOutgoing, null);
+        }
+    }
+
+    /** Stores a batch of incoming messages and sends the requested receipts. */
+    private void commitIncoming(List<IncomingMessage> items) {
+        List<CompositeMessage> msgs = new ArrayList<>(items.size());
+        for (IncomingMessage item : items)
+            msgs.add(item.message);
+
+        Uri[] uris = incoming(msgs);
+
+        InFlightTracker inFlight = getInFlightTracker();
+        if (inFlight != null) {
+            for (int i = 0; i < items.size(); i++) {
+                IncomingMessage item = items.get(i);
+                if (item.needAck) {
+                    // send ack :)
+                    sendReceipt(uris != null ? uris[i] : null, item.msgId, item.from, inFlight);
+                }
+            }
+        }
+    }
+
+    private void sendReceipt(Uri msgUri, String msgId, String from, InFlightTracker inFlight) {
         DeliveryReceipt receipt = new DeliveryReceipt(msgId);
         org.jivesoftware.smack.packet.Message ack =
             new org.jivesoftware.smack.packet.Message(from,
@@ -481,7 +579,7 @@ class MessageListener extends MessageCenterPacketListener {
             hold(false);
             // will mark this message as confirmed
             long storageId = ContentUris.parseId(msgUri);
-            waitingReceipt.put(ack.getStanzaId(), storageId);
+            inFlight.put(ack.getStanzaId(), storageId, true);
         }
         sendPacket(ack);
     }
@@ -682,4 +780,54 @@ class MessageListener extends MessageCenterPacketListener {
         return true;
     }
 
+    /** A stanza waiting to be committed with the current batch. */
+    static abstract class PendingStanza {
+    }
+
+    /** An incoming message waiting to be stored. */
+    static final class IncomingMessage extends PendingStanza {
+        final CompositeMessage message;
+        final String msgId;
+        final String from;
+        final boolean needAck;
+
+        IncomingMessage(CompositeMessage message, String msgId, String from, boolean needAck) {
+            this.message = message;
+            this.msgId = msgId;
+            this.from = from;
+            this.needAck = needAck;
+        }
+    }
+
+    /** A status change of an outgoing message waiting to be applied. */
+    static final class StatusUpdate extends PendingStanza {
+        /** Storage id, 0 if the message is to be looked up by id. */
+        final long storageId;
+        /** Message id, stored as the new id if storage id is given. */
+        final String messageId;
+        final int status;
+        final long timestamp;
+
+        StatusUpdate(long storageId, String messageId, int status, long timestamp) {
+            this.storageId = storageId;
+            this.messageId = messageId;
+            this.status = status;
+            this.timestamp = timestamp;
+        }
+
+        Uri getUri() {
+            return (storageId > 0) ? ContentUris.withAppendedId(Messages.CONTENT_URI, storageId) :
+                Messages.getUri(messageId);
+        }
+
+        ContentValues getValues() {
+            ContentValues values = new ContentValues(3);
+            if (storageId > 0 && messageId != null)
+                values.put(Messages.MESSAGE_ID, messageId);
+            values.put(Messages.STATUS, status);
+            values.put(Messages.STATUS_CHANGED, timestamp);
+            return values;
+        }
+    }
+
 }
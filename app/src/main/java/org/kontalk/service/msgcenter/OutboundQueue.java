@@ -0,0 +1,150 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Executor for the outbound message pipeline. Tasks are run on a small pool
+ * of background threads, keeping FIFO order among tasks with the same key
+ * (i.e. messages in the same conversation). Tasks with different keys may
+ * run concurrently if more than one worker is used.
+ * @author Daniele Ricci
+ */
+class OutboundQueue {
+    private static final String TAG = OutboundQueue.class.getSimpleName();
+
+    /**
+     * Number of worker threads. A single worker keeps one writer for the
+     * connection and the in-flight tracker; conversations are still taken
+     * in turns, so a big message won't hold the others back for long.
+     */
+    static final int DEFAULT_WORKERS = 1;
+
+    private final ExecutorService mExecutor;
+    /** Tasks waiting for their turn, by key. A key is present if a task with that key is queued or running. */
+    private final Map<String, ArrayDeque<Runnable>> mQueues = new HashMap<>();
+
+    OutboundQueue(int workers) {
+        mExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "OutboundQueue-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Queues a task. It will be run after all other tasks with the same key.
+     * Never blocks the caller.
+     */
+    public void execute(String key, Runnable task) {
+        synchronized (mQueues) {
+            ArrayDeque<Runnable> queue = mQueues.get(key);
+            if (queue != null) {
+                // a task for this key is already queued or running
+                queue.add(task);
+                return;
+            }
+            mQueues.put(key, new ArrayDeque<Runnable>());
+        }
+
+        submit(key, task);
+    }
+
+    private void submit(final String key, final Runnable task) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e) {
+                        Log.e(TAG, "error processing outbound task", e);
+                    }
+                    finally {
+                        next(key);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            // executor shut down
+            synchronized (mQueues) {
+                mQueues.remove(key);
+            }
+        }
+    }
+
+    /** Schedules the next task for the given key, if any. */
+    private void next(String key) {
+        Runnable task;
+        synchronized (mQueues) {
+            ArrayDeque<Runnable> queue = mQueues.get(key);
+            task = (queue != null) ? queue.poll() : null;
+            if (task == null)
+                mQueues.remove(key);
+        }
+
+        // resubmit instead of looping so other conversations get their turn
+        if (task != null)
+            submit(key, task);
+    }
+
+    /** Returns true if there are no queued or running tasks. */
+    public boolean isIdle() {
+        synchronized (mQueues) {
+            return mQueues.isEmpty();
+        }
+    }
+
+    /** Discards all queued tasks and stops the workers. */
+    public void shutdown() {
+        synchronized (mQueues) {
+            mQueues.clear();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /** Waits for running tasks to complete after {@link #shutdown()}. */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Ping statistics per network: alarm wakeups, successful and failed pings and
+ * the largest interval that succeeded. Used for comparing wakeups per hour of
+ * different ping strategies. Only the most recently used networks are kept,
+ * together with the ping intervals learned for them.
+ * @author Daniele Ricci
+ */
+class PingStatistics {
+    private static final String TAG = MessageCenterService.TAG;
+
+    private static final String PREFS_NAME = "ping_stats";
+
+    /** Used when the network is not known. */
+    static final String UNKNOWN_NETWORK = "unknown";
+
+    /** Maximum number of networks to keep statistics for. */
+    static final int MAX_NETWORKS = 20;
+    /** Statistics of networks not seen for this long are discarded. */
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    static final class Record {
+        /** Start of data collection. */
+        final long since;
+        int wakeups;
+        int success;
+        int failure;
+        long maxInterval;
+        /** Last time data was collected. */
+        long lastUpdate;
+
+        Record(long since) {
+            this.since = since;
+            this.lastUpdate = since;
+        }
+
+        /** Alarm wakeups per hour since data collection started. */
+        double getWakeupsPerHour(long now) {
+            long elapsed = now - since;
+            return elapsed > 0 ? wakeups * (double) TimeUnit.HOURS.toMillis(1) / elapsed : 0;
+        }
+
+        static Record parse(String value) {
+            String[] fields = value.split(":");
+            Record r = new Record(Long.parseLong(fields[0]));
+            r.wakeups = Integer.parseInt(fields[1]);
+            r.success = Integer.parseInt(fields[2]);
+            r.failure = Integer.parseInt(fields[3]);
+            r.maxInterval = Long.parseLong(fields[4]);
+            // not available in older records
+            if (fields.length > 5)
+                r.lastUpdate = Long.parseLong(fields[5]);
+            return r;
+        }
+
+        @Override
+        public String toString() {
+            return since + ":" + wakeups + ":" + success + ":" + failure + ":" +
+                maxInterval + ":" + lastUpdate;
+        }
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    PingStatistics(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private Record get(String network, long now) {
+        String value = mPrefs.getString(network, null);
+        if (value != null) {
+            try {
+                return Record.parse(value);
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "invalid ping statistics for " + network);
+            }
+        }
+        return new Record(now);
+    }
+
+    private void put(String network, Record record, long now) {
+        boolean added = !mPrefs.contains(network);
+        record.lastUpdate = now;
+        SharedPreferences.Editor editor = mPrefs.edit()
+            .putString(network, record.toString());
+        if (added) {
+            // new network: make room for it
+            Map<String, Record> records = getRecords();
+            records.put(network, record);
+            List<String> expired = expired(records, now);
+            for (String name : expired)
+                editor.remove(name);
+            if (expired.size() > 0)
+                Preferences.clearPingIntervals(mContext, expired);
+        }
+        editor.apply();
+    }
+
+    private Map<String, Record> getRecords() {
+        Map<String, Record> records = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            try {
+                records.put(entry.getKey(), Record.parse(entry.getValue().toString()));
+            }
+            catch (RuntimeException e) {
+                // invalid record, will be discarded
+                records.put(entry.getKey(), new Record(0));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the networks whose statistics should be discarded: the ones
+     * not seen for {@link #MAX_AGE} and the least recently seen ones beyond
+     * {@link #MAX_NETWORKS}.
+     */
+    static List<String> expired(Map<String, Record> records, long now) {
+        List<Map.Entry<String, Record>> entries = new ArrayList<>(records.entrySet());
+        // most recently updated first
+        Collections.sort(entries, new Comparator<Map.Entry<String, Record>>() {
+            @Override
+            public int compare(Map.Entry<String, Record> lhs, Map.Entry<String, Record> rhs) {
+                long l = lhs.getValue().lastUpdate, r = rhs.getValue().lastUpdate;
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        List<String> expired = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Map.Entry<String, Record> entry = entries.get(i);
+            if (i >= MAX_NETWORKS || now - entry.getValue().lastUpdate > MAX_AGE)
+                expired.add(entry.getKey());
+        }
+        return expired;
+    }
+
+    /** Records a ping alarm wakeup. */
+    public synchronized void onWakeup(String network) {
+        if (network == null)
+            network = UNKNOWN_NETWORK;
+        long now = System.currentTimeMillis();
+        Record r = get(network, now);
+        r.wakeups++;
+        put(network, r, now);
+    }
+
+    /** Records the result of a ping sent after the given interval. */
+    public synchronized void onResult(String network, boolean success, long interval) {
+        if (network == null)
+            network = UNKNOWN_NETWORK;
+        long now = System.currentTimeMillis();
+        Record r = get(network, now);
+        if (success) {
+            r.success++;
+            if (interval > r.maxInterval)
+                r.maxInterval = interval;
+        }
+        else {
+            r.failure++;
+        }
+        put(network, r, now);
+    }
+
+    /** Clears all statistics, e.g. before testing a different ping strategy. */
+    public synchronized void reset() {
+        mPrefs.edit().clear().apply();
+    }
+
+    public synchronized String getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, ?> all = new TreeMap<>(mPrefs.getAll());
+        if (all.isEmpty())
+            return "no data";
+
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            try {
+                Record r = Record.parse(entry.getValue().toString());
+                out.append('\n').append("  ").append(entry.getKey())
+                    .append(": ").append(String.format(Locale.US, "%.2f", r.getWakeupsPerHour(now)))
+                    .append(" wakeups/h, ").append(r.success).append(" ok, ")
+                    .append(r.failure).append(" failed, max interval ")
+                    .append(r.maxInterval / 1000).append(" s");
+            }
+            catch (RuntimeException e) {
+                // invalid record, skip
+            }
+        }
+        return out.toString();
+    }
+
+}
@@ -19,7 +19,16 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -33,6 +42,7 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -75,8 +85,22 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBE
  */
 class PresenceListener extends MessageCenterPacketListener {
 
+    /** Presences waiting to be processed together. */
+    private final InboundBatch<Presence> mBatch;
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
+        mBatch = new InboundBatch<>(new InboundBatch.Committer<Presence>() {
+            @Override
+            public void commit(final List<Presence> items) {
+                queueTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        processPresences(items);
+                    }
+                }, PriorityTaskExecutor.PRIORITY_PRESENCE);
+            }
+        }, InboundBatch.DEFAULT_MAX_SIZE, InboundBatch.DEFAULT_MAX_DELAY);
     }
 
     private Stanza createSubscribed(Presence p) {
@@ -111,6 +135,8 @@ class PresenceListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) {
+        trackCatchUp();
+
         try {
             Presence p = (Presence) packet;
 
@@ -271,39 +297,75 @@ class PresenceListener extends MessageCenterPacketListener {
         resendPending(false, true, from);
     }
 
-    private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
-            @Override
-            public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    boolean requestKey = false;
-                    String jid = XmppStringUtils.parseBareJid(p.getFrom());
-                    PGPPublicKeyRing pubRing = Keyring.getPublicKey(getContext(),
-                        jid, MyUsers.Keys.TRUST_UNKNOWN);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            // key has changed, request new one
-                            requestKey = true;
-                        }
-                    }
-                    else {
-                        // no key available, request one
-                        requestKey = true;
-                    }
+    private void handlePresence(Presence p) {
+        mBatch.add(p);
+    }
 
-                    if (requestKey)
-                        MessageCenterService.requestPublicKey(getContext(), jid);
-                }
+    /** Keeps only the latest presence from each JID, in order of arrival. */
+    static Collection<Presence> coalesce(List<Presence> presences) {
+        Map<String, Presence> latest = new LinkedHashMap<>(presences.size());
+        for (Presence p : presences) {
+            // move to the end
+            latest.remove(p.getFrom());
+            latest.put(p.getFrom(), p);
+        }
+        return latest.values();
+    }
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
-            }
-        });
+    @SuppressWarnings("WeakerAccess")
+    void processPresences(List<Presence> presences) {
+        Context context = getContext();
+        if (context == null)
+            return;
+
+        Collection<Presence> latest = coalesce(presences);
+
+        // fingerprints announced in presence
+        Map<String, String> fingerprints = new HashMap<>();
+        for (Presence p : latest) {
+            String fingerprint = PublicKeyPresence.getFingerprint(p);
+            if (fingerprint != null)
+                fingerprints.put(XmppStringUtils.parseBareJid(p.getFrom()),
+                    fingerprint.toUpperCase(Locale.US));
+        }
+
+        // keys we already have (must be read before the new fingerprints are stored)
+        Map<String, Set<String>> knownKeys = fingerprints.isEmpty() ?
+            Collections.<String, Set<String>>emptyMap() :
+            Keyring.getKeyFingerprints(context, fingerprints.keySet());
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(latest.size() + fingerprints.size());
+        for (Presence p : latest) {
+            ops.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+                .withValues(createUserValues(p))
+                .withSelection(Users.JID + "=?", new String[] { XmppStringUtils.parseBareJid(p.getFrom()) })
+                .build());
+        }
+        Date now = new Date();
+        for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+            // insert new key with empty key data
+            ops.add(Keyring.setKeyOperation(e.getKey(), e.getValue(), now));
+        }
+
+        try {
+            context.getContentResolver().applyBatch(UsersProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            Log.w(MessageCenterService.TAG, "unable to update users database", e);
+        }
+        Keyring.invalidate(fingerprints.keySet());
+
+        // request the new key if we don't have it
+        for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+            Set<String> known = knownKeys.get(e.getKey());
+            if (known == null || !known.contains(e.getValue()))
+                MessageCenterService.requestPublicKey(context, e.getKey());
+        }
+
+        for (Presence p : latest) {
+            Intent i = createIntent(context, p, getRosterEntry(p.getFrom()));
+            sendBroadcast(i);
+        }
     }
 
     public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
@@ -357,10 +419,7 @@ class PresenceListener extends MessageCenterPacketListener {
         return i;
     }
 
-    @SuppressWarnings("WeakerAccess")
-    int updateUsersDatabase(Presence p) {
-        String jid = XmppStringUtils.parseBareJid(p.getFrom());
-
+    private static ContentValues createUserValues(Presence p) {
         ContentValues values = new ContentValues(4);
         values.put(Users.REGISTERED, 1);
 
@@ -386,18 +445,7 @@ class PresenceListener extends MessageCenterPacketListener {
         if (timestamp > 0)
             values.put(Users.LAST_SEEN, timestamp);
 
-        // public key extension (for fingerprint)
-        PublicKeyPresence pkey = p.getExtension(PublicKeyPresence.ELEMENT_NAME, PublicKeyPresence.NAMESPACE);
-        if (pkey != null) {
-            String fingerprint = pkey.getFingerprint();
-            if (fingerprint != null) {
-                // insert new key with empty key data
-                Keyring.setKey(getContext(), jid, fingerprint, new Date());
-            }
-        }
-
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        return values;
     }
 
 }
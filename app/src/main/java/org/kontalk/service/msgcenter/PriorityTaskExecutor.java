@@ -0,0 +1,273 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Bounded executor for tasks coming from packet listeners. Tasks are run on a
+ * fixed number of background threads, by priority lane first and then in
+ * submission order.
+ *
+ * Incoming messages and receipts don't go through this executor: they are
+ * batched by {@link MessageListener} in arrival order, together with stream
+ * management acks.
+ *
+ * When the queue is full: key tasks are run on the caller thread (slowing
+ * down the connection reader instead of losing data); presence and info
+ * tasks evict a queued task of a lower lane if there is one, otherwise they
+ * are dropped.
+ * @author Daniele Ricci
+ */
+class PriorityTaskExecutor {
+    private static final String TAG = PriorityTaskExecutor.class.getSimpleName();
+
+    /** Public key requests. */
+    public static final int PRIORITY_KEY = 0;
+    /** Presence updates. */
+    public static final int PRIORITY_PRESENCE = 1;
+    /** Version, last activity and similar queries. */
+    public static final int PRIORITY_INFO = 2;
+
+    private static final int LANES = PRIORITY_INFO + 1;
+    private static final String[] LANE_NAMES = { "key", "presence", "info" };
+
+    /** Number of worker threads. */
+    static final int DEFAULT_THREADS = 2;
+    /** Maximum number of queued tasks. */
+    static final int DEFAULT_CAPACITY = 200;
+
+    /** Idle worker threads will be stopped after this time. */
+    private static final long KEEP_ALIVE = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int mCapacity;
+    private long mSequence;
+
+    // statistics
+    private int mMaxDepth;
+    private final AtomicLongArray mCompleted = new AtomicLongArray(LANES);
+    private final AtomicLongArray mCallerRuns = new AtomicLongArray(LANES);
+    private final AtomicLongArray mDropped = new AtomicLongArray(LANES);
+    private final AtomicLongArray mWaitTime = new AtomicLongArray(LANES);
+    private final AtomicLongArray mMaxWaitTime = new AtomicLongArray(LANES);
+
+    PriorityTaskExecutor(int threads, int capacity) {
+        mCapacity = capacity;
+        mQueue = new PriorityBlockingQueue<>(capacity);
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+            KEEP_ALIVE, TimeUnit.SECONDS, mQueue, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "PriorityTaskExecutor-" + mCount.incrementAndGet());
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task in the given lane. The caller is blocked only when the
+     * queue is full and the task is a key task.
+     * @return false if the task was dropped
+     */
+    public boolean execute(Runnable task, int priority) {
+        if (priority < PRIORITY_KEY || priority > PRIORITY_INFO)
+            throw new IllegalArgumentException("invalid priority: " + priority);
+
+        Task wrapped = new Task(task, priority);
+        synchronized (this) {
+            if (mExecutor.isShutdown())
+                return false;
+
+            boolean queue = true;
+            if (mQueue.size() >= mCapacity) {
+                if (priority == PRIORITY_KEY) {
+                    // backpressure: run on the caller thread
+                    mCallerRuns.incrementAndGet(priority);
+                    queue = false;
+                }
+                else if (!evict(priority)) {
+                    mDropped.incrementAndGet(priority);
+                    Log.w(TAG, "queue full, dropping " + LANE_NAMES[priority] + " task");
+                    return false;
+                }
+            }
+
+            if (queue) {
+                wrapped.sequence = mSequence++;
+                try {
+                    mExecutor.execute(wrapped);
+                }
+                catch (RuntimeException e) {
+                    // executor shut down
+                    return false;
+                }
+
+                int depth = mQueue.size();
+                if (depth > mMaxDepth)
+                    mMaxDepth = depth;
+                return true;
+            }
+        }
+
+        wrapped.run();
+        return true;
+    }
+
+    /** Removes the newest queued task of the lowest lane below the given priority. */
+    private boolean evict(int priority) {
+        Task victim = null;
+        for (Iterator<Runnable> it = mQueue.iterator(); it.hasNext(); ) {
+            Task t = (Task) it.next();
+            if (t.priority > priority && (victim == null || victim.compareTo(t) < 0))
+                victim = t;
+        }
+
+        if (victim != null && mQueue.remove(victim)) {
+            mDropped.incrementAndGet(victim.priority);
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of tasks waiting to be run. */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns the maximum number of tasks that were waiting at the same time. */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public long getCompletedCount(int priority) {
+        return mCompleted.get(priority);
+    }
+
+    /** Returns the number of tasks run on the caller thread because the queue was full. */
+    public long getCallerRunsCount(int priority) {
+        return mCallerRuns.get(priority);
+    }
+
+    /** Returns the number of tasks dropped or evicted because the queue was full. */
+    public long getDroppedCount(int priority) {
+        return mDropped.get(priority);
+    }
+
+    /** Returns the average time tasks waited in the queue, in milliseconds. */
+    public long getAverageWaitTime(int priority) {
+        long completed = mCompleted.get(priority);
+        return completed > 0 ? mWaitTime.get(priority) / completed : 0;
+    }
+
+    /** Returns the maximum time a task waited in the queue, in milliseconds. */
+    public long getMaxWaitTime(int priority) {
+        return mMaxWaitTime.get(priority);
+    }
+
+    /** Returns a summary of the executor statistics. */
+    public String getStats() {
+        StringBuilder b = new StringBuilder()
+            .append("depth=").append(getQueueDepth())
+            .append(" maxDepth=").append(getMaxQueueDepth());
+        for (int i = 0; i < LANES; i++) {
+            b.append(' ').append(LANE_NAMES[i])
+                .append("[completed=").append(mCompleted.get(i))
+                .append(" callerRuns=").append(mCallerRuns.get(i))
+                .append(" dropped=").append(mDropped.get(i))
+                .append(" avgWait=").append(getAverageWaitTime(i)).append("ms")
+                .append(" maxWait=").append(mMaxWaitTime.get(i)).append("ms")
+                .append(']');
+        }
+        return b.toString();
+    }
+
+    /** Discards all queued tasks and stops the workers. */
+    public synchronized void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void taskStarted(Task task) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.queued);
+        mWaitTime.addAndGet(task.priority, wait);
+
+        long max;
+        do {
+            max = mMaxWaitTime.get(task.priority);
+        } while (wait > max && !mMaxWaitTime.compareAndSet(task.priority, max, wait));
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        final Runnable task;
+        final int priority;
+        final long queued;
+        long sequence;
+
+        Task(Runnable task, int priority) {
+            this.task = task;
+            this.priority = priority;
+            this.queued = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            taskStarted(this);
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "error processing " + LANE_NAMES[priority] + " task", e);
+            }
+            finally {
+                mCompleted.incrementAndGet(priority);
+            }
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority)
+                return priority < another.priority ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+}
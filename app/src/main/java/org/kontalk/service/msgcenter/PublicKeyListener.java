@@ -56,7 +56,17 @@ class PublicKeyListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) {
-        PublicKeyPublish p = (PublicKeyPublish) packet;
+        final PublicKeyPublish p = (PublicKeyPublish) packet;
+        // keyring access is expensive, keep it off the connection thread
+        queueTask(new Runnable() {
+            @Override
+            public void run() {
+                handlePublicKey(p);
+            }
+        }, PriorityTaskExecutor.PRIORITY_KEY);
+    }
+
+    private void handlePublicKey(PublicKeyPublish p) {
 
         if (p.getType() == IQ.Type.result) {
             byte[] _publicKey = p.getPublicKey();
@@ -20,9 +20,11 @@ package org.kontalk.service.msgcenter;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jivesoftware.smack.roster.packet.RosterPacket;
 import org.jivesoftware.smack.roster.rosterstore.RosterStore;
@@ -35,15 +37,19 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.kontalk.util.Preferences;
 
 
 /**
- * A roster store backed by a SQLite database.
+ * A roster store backed by a SQLite database. Entries are indexed in memory
+ * by bare JID on first access and the index is kept in sync on every write,
+ * so reads never hit the database again.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
+    private static final String TAG = MessageCenterService.TAG;
 
     private static final int DATABASE_VERSION = 1;
     private static final String DATABASE_NAME = "roster.db";
@@ -65,8 +71,16 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     private SQLiteStatement mInsertStatement;
     private final Object mInsertLock = new Object();
 
+    /** In-memory index of roster items by bare JID. */
+    private final Map<String, RosterPacket.Item> mCache = new ConcurrentHashMap<>();
+    private volatile boolean mCacheLoaded;
+
     public SQLiteRosterStore(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    SQLiteRosterStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
         mContext = context;
     }
 
@@ -81,12 +95,17 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     }
 
     public void onDestroy() {
+        synchronized (mInsertLock) {
+            mCache.clear();
+            mCacheLoaded = false;
+            mInsertStatement = null;
+        }
         close();
     }
 
     private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
         if (mInsertStatement == null) {
-            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE_ROSTER +
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ROSTER +
                 " VALUES(?, ?, ?, ?, ?)");
         }
         else {
@@ -95,7 +114,8 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
         int i = 0;
         mInsertStatement.bindString(++i, item.getUser());
-        mInsertStatement.bindString(++i, item.getName());
+        // name is not mandatory in roster items
+        mInsertStatement.bindString(++i, nameOf(item));
         mInsertStatement.bindString(++i, item.getItemType() != null ?
             item.getItemType().toString() : RosterPacket.ItemType.none.toString());
 
@@ -118,33 +138,46 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return mInsertStatement;
     }
 
-    @Override
-    public Collection<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
+    /** Loads all entries in the in-memory index, if not already done. */
+    private boolean ensureCacheLoaded() {
+        if (mCacheLoaded)
+            return true;
+
+        synchronized (mInsertLock) {
+            if (mCacheLoaded)
+                return true;
+
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor c = null;
+            try {
+                c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
                 while (c.moveToNext()) {
-                    items.add(fromCursor(c));
+                    RosterPacket.Item item = fromCursor(c);
+                    mCache.put(item.getUser(), item);
                 }
 
-                return items;
+                mCacheLoaded = true;
+                return true;
             }
-
-            return null;
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
+            catch (SQLiteException e) {
+                Log.w(TAG, "unable to load roster", e);
+                mCache.clear();
+                return false;
+            }
+            finally {
+                if (c != null) {
+                    c.close();
+                }
             }
         }
     }
 
+    @Override
+    public Collection<RosterPacket.Item> getEntries() {
+        return ensureCacheLoaded() ?
+            new ArrayList<>(mCache.values()) : null;
+    }
+
     private RosterPacket.Item fromCursor(Cursor c) {
         String user = c.getString(0);
         String name = c.getString(1);
@@ -171,25 +204,23 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
     @Override
     public RosterPacket.Item getEntry(String bareJid) {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null,
-                "user = ?", new String[] { bareJid },
-                null, null, null);
-            if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
-            }
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return null;
+        return ensureCacheLoaded() ? mCache.get(bareJid) : null;
+    }
+
+    /**
+     * Returns true if we are subscribed to the given contact presence
+     * according to the stored roster.
+     */
+    public boolean isSubscribed(String bareJid) {
+        RosterPacket.Item item = getEntry(bareJid);
+        return item != null && (item.getItemType() == RosterPacket.ItemType.to ||
+                item.getItemType() == RosterPacket.ItemType.both) &&
+            item.getItemStatus() != RosterPacket.ItemStatus.SUBSCRIPTION_PENDING;
+    }
+
+    /** Number of entries in the roster, or -1 if it couldn't be loaded. */
+    public int size() {
+        return ensureCacheLoaded() ? mCache.size() : -1;
     }
 
     @Override
@@ -197,65 +228,120 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return Preferences.getRosterVersion(mContext);
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
+    /** Writes an entry to the database. Must be called with the insert lock held. */
+    private void writeEntry(SQLiteDatabase db, RosterPacket.Item item) {
+        SQLiteStatement stm = prepareInsert(db, item);
+        stm.executeInsert();
+    }
+
+    @Override
+    public boolean addEntry(RosterPacket.Item item, String version) {
+        if (!ensureCacheLoaded())
+            return false;
+
+        SQLiteDatabase db = getWritableDatabase();
         synchronized (mInsertLock) {
             try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
+                // insert or replace: roster pushes update existing entries too
+                writeEntry(db, item);
             }
             catch (SQLiteException e) {
+                Log.w(TAG, "unable to store roster entry", e);
                 return false;
             }
 
-            // insert was successful
-            return true;
+            mCache.put(item.getUser(), item);
         }
+        return setRosterVersion(version);
     }
 
-    @Override
-    public boolean addEntry(RosterPacket.Item item, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
-    }
-
+    /**
+     * Replaces the whole roster. Only the differences with the current roster
+     * are written, in a single transaction.
+     */
     @Override
     public boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
+        if (!ensureCacheLoaded())
+            return false;
+
+        Map<String, RosterPacket.Item> newEntries = new HashMap<>(items.size());
+        for (RosterPacket.Item item : items)
+            newEntries.put(item.getUser(), item);
+
         SQLiteDatabase db = getWritableDatabase();
+        synchronized (mInsertLock) {
+            beginTransaction(db);
+            boolean success = false;
 
-        beginTransaction(db);
-        boolean success = false;
+            try {
+                for (String jid : mCache.keySet()) {
+                    if (!newEntries.containsKey(jid))
+                        db.delete(TABLE_ROSTER, "jid = ?", new String[] { jid });
+                }
+                for (RosterPacket.Item item : newEntries.values()) {
+                    if (!equals(item, mCache.get(item.getUser())))
+                        writeEntry(db, item);
+                }
 
-        try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
-            for (RosterPacket.Item item : items) {
-                addEntry(db, item);
+                success = setTransactionSuccessful(db);
             }
-
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
+            catch (SQLiteException e) {
+                Log.w(TAG, "unable to store roster", e);
+            }
+            finally {
+                endTransaction(db, success);
             }
-        }
-        catch (SQLiteException e) {
-            return false;
-        }
-        finally {
-            endTransaction(db, success);
-        }
 
-        return false;
+            if (!success)
+                return false;
+
+            mCache.keySet().retainAll(newEntries.keySet());
+            mCache.putAll(newEntries);
+        }
+        return setRosterVersion(version);
     }
 
     @Override
     public boolean removeEntry(String bareJid, String version) {
+        if (!ensureCacheLoaded())
+            return false;
+
         SQLiteDatabase db = getWritableDatabase();
-        try {
-            db.delete(TABLE_ROSTER, "user = ?", new String[]{bareJid});
-            return setRosterVersion(version);
+        synchronized (mInsertLock) {
+            try {
+                db.delete(TABLE_ROSTER, "jid = ?", new String[] { bareJid });
+            }
+            catch (SQLiteException e) {
+                Log.w(TAG, "unable to remove roster entry", e);
+                return false;
+            }
+
+            mCache.remove(bareJid);
         }
-        catch (SQLiteException e) {
+        return setRosterVersion(version);
+    }
+
+    private static String nameOf(RosterPacket.Item item) {
+        return item.getName() != null ? item.getName() : "";
+    }
+
+    /** Compares the stored fields of two roster items. */
+    static boolean equals(RosterPacket.Item a, RosterPacket.Item b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null)
             return false;
-        }
+
+        RosterPacket.ItemType typeA = a.getItemType() != null ?
+            a.getItemType() : RosterPacket.ItemType.none;
+        RosterPacket.ItemType typeB = b.getItemType() != null ?
+            b.getItemType() : RosterPacket.ItemType.none;
+
+        return TextUtils.equals(a.getUser(), b.getUser()) &&
+            TextUtils.equals(nameOf(a), nameOf(b)) &&
+            typeA == typeB &&
+            a.getItemStatus() == b.getItemStatus() &&
+            a.getGroupNames().equals(b.getGroupNames());
     }
 
     private boolean setRosterVersion(String version) {
@@ -43,7 +43,16 @@ class VersionListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) {
-        Version p = (Version) packet;
+        final Version p = (Version) packet;
+        queueTask(new Runnable() {
+            @Override
+            public void run() {
+                handleVersion(p);
+            }
+        }, PriorityTaskExecutor.PRIORITY_INFO);
+    }
+
+    private void handleVersion(Version p) {
         Intent i = new Intent(ACTION_VERSION);
         i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
 
@@ -862,7 +862,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
             DownloadService.start(getContext(), msg.getDatabaseId(),
                 msg.getSender(), msg.getTimestamp(),
                 attachment.getSecurityFlags() != Coder.SECURITY_CLEARTEXT,
-                attachment.getFetchUrl());
+                attachment.getFetchUrl(), attachment.getMime(), attachment.getLength(), true);
         }
         else {
             // corrupted message :(
@@ -116,6 +116,13 @@ public class MessagingNotification {
     /** Temporary disable all notifications flag */
     private static volatile boolean sDisabled;
 
+    /** Guards {@link #sHeld} and {@link #sHeldUpdate}. */
+    private static final Object sHoldLock = new Object();
+    /** New messages notification updates are being held. */
+    private static boolean sHeld;
+    /** A new messages notification update was requested while held. */
+    private static boolean sHeldUpdate;
+
     /** Peer to NOT be notified for new messages. */
     private static volatile String sPaused;
 
@@ -150,12 +157,40 @@ public class MessagingNotification {
         sDisabled = true;
     }
 
+    /** Holds new messages notification updates until {@link #releaseUpdates}. */
+    public static void holdUpdates() {
+        synchronized (sHoldLock) {
+            sHeld = true;
+        }
+    }
+
+    /** Releases held notification updates, firing a single update if needed. */
+    public static void releaseUpdates(Context context) {
+        boolean update;
+        synchronized (sHoldLock) {
+            sHeld = false;
+            update = sHeldUpdate;
+            sHeldUpdate = false;
+        }
+        if (update)
+            delayedUpdateMessagesNotification(context, true);
+    }
+
     private static boolean supportsBigNotifications() {
         return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
     }
 
     /** Starts messages notification updates in another thread. */
     public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
+        if (isNew) {
+            synchronized (sHoldLock) {
+                if (sHeld) {
+                    sHeldUpdate = true;
+                    return;
+                }
+            }
+        }
+
         if (!sPending) {
             sPending = true;
             new Thread(new Runnable() {
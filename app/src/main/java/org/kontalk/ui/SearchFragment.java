@@ -26,11 +26,13 @@ import org.kontalk.ui.view.SearchListItem;
 import android.app.Activity;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 
@@ -38,11 +40,18 @@ import android.widget.ListView;
  * A basic search fragment for the entire database.
  * @author Daniele Ricci
  */
-public class SearchFragment extends ListFragment {
+public class SearchFragment extends ListFragment implements AbsListView.OnScrollListener {
+
+    /** Number of results loaded at a time. */
+    private static final int PAGE_SIZE = 50;
 
     private Cursor mCursor;
     private String mQuery;
     private SearchListAdapter mListAdapter;
+    /** Number of results loaded so far. */
+    private int mResultCount;
+    /** False when the last page was not full (no more results). */
+    private boolean mHasMore;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -54,6 +63,25 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        getListView().setOnScrollListener(this);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        // load the next page when getting close to the end of the list
+        if (mCursor != null && mHasMore &&
+                firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 5) {
+            loadMore();
+        }
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -70,8 +98,13 @@ public class SearchFragment extends ListFragment {
 
         Activity parent = getActivity();
         if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            getActivity().startManagingCursor(mCursor);
+            if (mCursor != null)
+                parent.stopManagingCursor(mCursor);
+
+            mCursor = SearchItem.query(parent, mQuery, 0, PAGE_SIZE);
+            mResultCount = mCursor.getCount();
+            mHasMore = mResultCount >= PAGE_SIZE;
+            parent.startManagingCursor(mCursor);
 
             mListAdapter = new SearchListAdapter(parent, mCursor);
             // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
@@ -79,4 +112,27 @@ public class SearchFragment extends ListFragment {
         }
     }
 
+    /** Loads the next page of results and appends it to the list. */
+    private void loadMore() {
+        Activity parent = getActivity();
+        if (parent == null)
+            return;
+
+        Cursor page = SearchItem.query(parent, mQuery, mResultCount, PAGE_SIZE);
+        int count = page.getCount();
+        // last page was not full: no more results
+        mHasMore = count >= PAGE_SIZE;
+        if (count == 0) {
+            page.close();
+            return;
+        }
+
+        mResultCount += count;
+        // join with the results loaded so far (closed together with it)
+        parent.stopManagingCursor(mCursor);
+        mCursor = new MergeCursor(new Cursor[] { mCursor, page });
+        parent.startManagingCursor(mCursor);
+        mListAdapter.swapCursor(mCursor);
+    }
+
 }
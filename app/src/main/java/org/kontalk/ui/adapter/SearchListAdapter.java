@@ -25,11 +25,11 @@ import org.kontalk.ui.view.SearchListItem;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.widget.CursorAdapter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 
 
 public class SearchListAdapter extends CursorAdapter {
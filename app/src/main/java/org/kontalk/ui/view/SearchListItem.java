@@ -18,10 +18,15 @@
 
 package org.kontalk.ui.view;
 
+import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.data.SearchItem;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
 import android.util.AttributeSet;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
@@ -65,7 +70,32 @@ public class SearchListItem extends RelativeLayout {
             name = found.getUserId();
 
         mText1.setText(name);
-        mText2.setText(found.getText());
+        mText2.setText(formatSnippet(context, found.getText()));
+    }
+
+    /** Highlights the matches marked in a search snippet. */
+    private static CharSequence formatSnippet(Context context, String snippet) {
+        if (snippet == null)
+            return null;
+
+        int color = context.getResources().getColor(R.color.highlight_color);
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        int pos = 0;
+        int start;
+        while ((start = snippet.indexOf(Fulltext.SNIPPET_START, pos)) >= 0) {
+            int end = snippet.indexOf(Fulltext.SNIPPET_END, start);
+            if (end < 0)
+                break;
+
+            text.append(snippet, pos, start);
+            int spanStart = text.length();
+            text.append(snippet, start + Fulltext.SNIPPET_START.length(), end);
+            text.setSpan(new BackgroundColorSpan(color), spanStart, text.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            pos = end + Fulltext.SNIPPET_END.length();
+        }
+        text.append(snippet, pos, snippet.length());
+        return text;
     }
 
     public final void unbind() {
@@ -20,20 +20,17 @@ package org.kontalk.upload;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.net.HttpURLConnection;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
 import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.service.ProgressListener;
@@ -46,18 +43,64 @@ import org.kontalk.util.ProgressInputStreamEntity;
  * @author Daniele Ricci
  */
 public class HTPPFileUploadConnection implements UploadConnection {
+    private static final String TAG = HTPPFileUploadConnection.class.getSimpleName();
+
+    /** Default size of the buffer used for writing the request body. */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
 
     private final Context mContext;
     private final String mUrl;
+    private final int mBufferSize;
 
     private HttpsURLConnection currentRequest;
 
+    /** True to ask the server for the data it already has before uploading. */
+    private boolean mResume;
+    /** True if the upload slot was rejected by the server and a new one is needed. */
+    private boolean mNeedsNewSlot;
+
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
+    /** Status code returned by the server for an incomplete upload. */
+    private final static int HTTP_RESUME_INCOMPLETE = 308;
+
+    /** Returned by {@link #resumeOffset} when the upload slot can't be used any more. */
+    static final long OFFSET_NEW_SLOT = -1;
+
     public HTPPFileUploadConnection(Context context, String url) {
+        this(context, url, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize size of the buffer used for streaming the request
+     *                   body (also used as chunk size for chunked uploads)
+     */
+    public HTPPFileUploadConnection(Context context, String url, int bufferSize) {
         mContext = context;
         mUrl = url;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Enables resuming a previous upload attempt. The server will be asked
+     * how much data it has already received (using Content-Range semantics)
+     * and only the remaining data will be sent.
+     * The query is not part of XEP-0363 (a plain server would store an empty
+     * file), so it must be enabled only for servers advertising
+     * {@link HTTPFileUploadService#FEATURE_RESUME}.
+     */
+    public void setResume(boolean resume) {
+        mResume = resume;
+    }
+
+    /**
+     * Returns true if the last upload attempt failed because the server
+     * rejected the upload slot (e.g. it expired). A new slot must be
+     * requested and the whole file uploaded again.
+     */
+    public boolean needsNewSlot() {
+        return mNeedsNewSlot;
     }
 
     @Override
@@ -77,23 +120,20 @@ public class HTPPFileUploadConnection implements UploadConnection {
 
             // http request!
             boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-            currentRequest = prepareMessage(length, mime, acceptAnyCertificate);
-
-            // execute!
-            ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener);
-            entity.writeTo(currentRequest.getOutputStream());
+            SSLSocketFactory socketFactory = ClientHTTPConnection
+                .setupSSLSocketFactory(mContext, null, null, acceptAnyCertificate);
+            HostnameVerifier hostnameVerifier = acceptAnyCertificate ?
+                new AllowAllHostnameVerifier() : null;
 
-            if (currentRequest.getResponseCode() != 200)
-                throw new IOException(currentRequest.getResponseCode() + " " + currentRequest.getResponseMessage());
-
-            // no media url returned
-            return null;
+            return upload(inMessage, length, mime, socketFactory, hostnameVerifier, listener);
+        }
+        catch (IOException e) {
+            throw e;
         }
         catch (Exception e) {
             throw innerException("upload error", e);
         }
         finally {
-            currentRequest = null;
             if (inMessage != null) {
                 try {
                     inMessage.close();
@@ -105,22 +145,72 @@ public class HTPPFileUploadConnection implements UploadConnection {
         }
     }
 
+    /**
+     * Uploads the given stream.
+     * @param hostnameVerifier hostname verifier, null to use the default one
+     */
+    String upload(InputStream inMessage, long length, String mime, SSLSocketFactory socketFactory,
+            HostnameVerifier hostnameVerifier, ProgressListener listener) throws IOException {
+        mNeedsNewSlot = false;
+        try {
+            // ask the server where to resume from
+            long offset = 0;
+            if (mResume && length > 0) {
+                currentRequest = prepareMessage(0, mime, socketFactory, hostnameVerifier);
+                offset = queryUploadOffset(currentRequest, length);
+                if (offset == OFFSET_NEW_SLOT) {
+                    mNeedsNewSlot = true;
+                    throw new IOException("upload slot rejected by server");
+                }
+                if (offset > 0)
+                    Log.d(TAG, "resuming upload from byte " + offset);
+            }
+
+            currentRequest = prepareMessage(length - offset, mime, socketFactory, hostnameVerifier);
+            if (offset > 0)
+                setupContentRange(currentRequest, offset, length);
+
+            // execute!
+            ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener, mBufferSize);
+            entity.writeTo(currentRequest.getOutputStream(), offset);
+
+            int code = currentRequest.getResponseCode();
+            String message = currentRequest.getResponseMessage();
+            // keep the connection alive for the next upload
+            ClientHTTPConnection.releaseConnection(currentRequest);
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_CREATED) {
+                // slot expired or not valid any more
+                if (isClientError(code))
+                    mNeedsNewSlot = true;
+                throw new IOException(code + " " + message);
+            }
+
+            ClientHTTPConnection.logConnectionStats();
+
+            // no media url returned
+            return null;
+        }
+        catch (Exception e) {
+            throw innerException("upload error", e);
+        }
+        finally {
+            currentRequest = null;
+        }
+    }
+
     private IOException innerException(String detail, Throwable cause) {
         IOException ie = new IOException(detail);
         ie.initCause(cause);
         return ie;
     }
 
-    private void setupClient(HttpsURLConnection conn, long length, String mime, boolean acceptAnyCertificate)
-        throws CertificateException, UnrecoverableKeyException,
-        NoSuchAlgorithmException, KeyStoreException,
-        KeyManagementException, NoSuchProviderException,
-        IOException {
+    private void setupClient(HttpsURLConnection conn, long length, String mime,
+            SSLSocketFactory socketFactory, HostnameVerifier hostnameVerifier)
+            throws IOException {
 
-        conn.setSSLSocketFactory(ClientHTTPConnection.setupSSLSocketFactory(mContext,
-            null, null, acceptAnyCertificate));
-        if (acceptAnyCertificate)
-            conn.setHostnameVerifier(new AllowAllHostnameVerifier());
+        conn.setSSLSocketFactory(socketFactory);
+        if (hostnameVerifier != null)
+            conn.setHostnameVerifier(hostnameVerifier);
         conn.setRequestProperty("Content-Type", mime != null ? mime
             : "application/octet-stream");
         // bug caused by Lighttpd
@@ -130,23 +220,108 @@ public class HTPPFileUploadConnection implements UploadConnection {
         conn.setReadTimeout(READ_TIMEOUT);
         conn.setDoOutput(true);
         conn.setDoInput(true);
-        conn.setRequestProperty("Content-Length", String.valueOf(length));
+        setupStreamingMode(conn, length, mBufferSize);
         conn.setRequestMethod("PUT");
     }
 
-    /** A message posting method. */
-    private HttpsURLConnection prepareMessage(long length, String mime, boolean acceptAnyCertificate)
-            throws IOException {
+    /**
+     * Puts the connection in streaming mode, otherwise the whole request
+     * body would be buffered in memory before being sent.
+     * @param length content length, or -1 if unknown (chunked transfer will be used)
+     */
+    static void setupStreamingMode(HttpURLConnection conn, long length, int bufferSize) {
+        // setFixedLengthStreamingMode(long) is not available before API 19
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) length);
+        }
+        else {
+            // unknown length
+            conn.setChunkedStreamingMode(bufferSize);
+        }
+    }
 
-        // create uri
-        HttpsURLConnection conn = (HttpsURLConnection) new URL(mUrl).openConnection();
-        try {
-            setupClient(conn, length, mime, acceptAnyCertificate);
+    /**
+     * Asks the server how many bytes of a previous upload it already has,
+     * by sending an empty PUT with a <code>Content-Range: bytes *&#47;length</code>
+     * header. A server supporting resumable uploads will reply with
+     * 308 Resume Incomplete and a Range header.
+     * @return the offset to resume the upload from, or {@link #OFFSET_NEW_SLOT}
+     * @see #resumeOffset(int, String, long)
+     */
+    static long queryUploadOffset(HttpURLConnection conn, long length) throws IOException {
+        conn.setDoOutput(true);
+        conn.setInstanceFollowRedirects(false);
+        conn.setRequestMethod("PUT");
+        conn.setRequestProperty("Content-Range", "bytes */" + length);
+        conn.setFixedLengthStreamingMode(0);
+        conn.getOutputStream().close();
+
+        int code = conn.getResponseCode();
+        String range = conn.getHeaderField("Range");
+
+        // release the connection for reuse
+        ClientHTTPConnection.releaseConnection(conn);
+
+        return resumeOffset(code, range, length);
+    }
+
+    /**
+     * Decides where to resume an upload from, given the server response to
+     * an upload offset query. Resuming is not part of XEP-0363, so anything
+     * but an explicit 308 Resume Incomplete means the slot can't be resumed
+     * and a new one must be requested.
+     * @return the offset to resume the upload from, or {@link #OFFSET_NEW_SLOT}
+     * @throws IOException for server errors (5xx), the query can be retried later
+     */
+    static long resumeOffset(int code, String range, long length) throws IOException {
+        if (code == HTTP_RESUME_INCOMPLETE) {
+            // no Range header: server has no data yet
+            if (range == null)
+                return 0;
+            long end = parseRangeEnd(range);
+            if (end >= 0 && end + 1 < length)
+                return end + 1;
+            // invalid or inconsistent range
+            return OFFSET_NEW_SLOT;
         }
-        catch (Exception e) {
-            throw new IOException("error setting up SSL connection", e);
+        if (code >= 500)
+            throw new IOException("server error " + code);
+
+        return OFFSET_NEW_SLOT;
+    }
+
+    static boolean isClientError(int code) {
+        return code >= 400 && code < 500;
+    }
+
+    /** Parses the last byte position of a "bytes=0-N" range. Returns -1 if not available. */
+    static long parseRangeEnd(String range) {
+        if (range != null) {
+            int sep = range.lastIndexOf('-');
+            if (sep > 0) {
+                try {
+                    return Long.parseLong(range.substring(sep + 1).trim());
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
         }
+        return -1;
+    }
+
+    /** Sets up the request for sending the data from the given offset. */
+    static void setupContentRange(HttpURLConnection conn, long offset, long length) {
+        conn.setRequestProperty("Content-Range", "bytes " + offset + "-" + (length - 1) + "/" + length);
+    }
 
+    /** A message posting method. */
+    private HttpsURLConnection prepareMessage(long length, String mime,
+            SSLSocketFactory socketFactory, HostnameVerifier hostnameVerifier)
+            throws IOException {
+
+        // create uri
+        HttpsURLConnection conn = ClientHTTPConnection.openConnection(mUrl);
+        setupClient(conn, length, mime, socketFactory, hostnameVerifier);
         return conn;
     }
 
@@ -33,12 +33,20 @@ import org.kontalk.service.msgcenter.IUploadService;
  */
 public class HTTPFileUploadService implements IUploadService {
 
+    /**
+     * Feature advertised by upload services supporting resumable uploads.
+     * Resuming is not part of XEP-0363.
+     */
+    public static final String FEATURE_RESUME = "http://kontalk.org/extensions/upload#resume";
+
     private final XMPPConnection mConnection;
     private final String mService;
+    private final boolean mResume;
 
-    public HTTPFileUploadService(XMPPConnection connection, String service) {
+    public HTTPFileUploadService(XMPPConnection connection, String service, boolean resume) {
         mConnection = connection;
         mService = service;
+        mResume = resume;
     }
 
     @Override
@@ -46,6 +54,11 @@ public class HTTPFileUploadService implements IUploadService {
         return false;
     }
 
+    @Override
+    public boolean supportsResume() {
+        return mResume;
+    }
+
     @Override
     public void getPostUrl(String filename, long size, String mime, final UrlCallback callback) {
         HTTPFileUpload.Request request = new HTTPFileUpload.Request(filename, size, mime);
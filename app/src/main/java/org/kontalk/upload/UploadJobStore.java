@@ -0,0 +1,279 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.util.Log;
+
+import org.kontalk.provider.MessagesProviderUtils;
+
+
+/**
+ * Persistent storage for upload jobs, used for resuming interrupted uploads
+ * (even across process restarts).
+ * @author Daniele Ricci
+ */
+public class UploadJobStore extends SQLiteOpenHelper {
+    private static final String TAG = UploadJobStore.class.getSimpleName();
+
+    private static final int DATABASE_VERSION = 2;
+    private static final String DATABASE_NAME = "uploads.db";
+
+    private static final String TABLE_JOBS = "upload_jobs";
+    private static final String CREATE_TABLE_JOBS = "(" +
+        // message database id
+        "msg_id INTEGER NOT NULL PRIMARY KEY," +
+        "file_uri TEXT NOT NULL," +
+        // null if a new upload slot must be requested
+        "put_url TEXT," +
+        "get_url TEXT," +
+        "length INTEGER NOT NULL," +
+        // file to upload is a temporary file (e.g. encrypted media)
+        "temp_file INTEGER NOT NULL DEFAULT 0," +
+        "attempts INTEGER NOT NULL DEFAULT 0," +
+        "timestamp INTEGER NOT NULL" +
+        ")";
+
+    private static final String SCHEMA_JOBS =
+        "CREATE TABLE " + TABLE_JOBS + " " + CREATE_TABLE_JOBS;
+
+    private static final String[] JOB_COLUMNS = {
+        "msg_id",
+        "file_uri",
+        "put_url",
+        "get_url",
+        "length",
+        "temp_file",
+        "attempts",
+    };
+
+    /** Jobs will be discarded after this many failed attempts. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static UploadJobStore sInstance;
+
+    public static synchronized UploadJobStore getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new UploadJobStore(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private UploadJobStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SCHEMA_JOBS);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // jobs will be started again from scratch
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_JOBS);
+        onCreate(db);
+    }
+
+    private static Job readJob(Cursor c) {
+        return new Job(c.getLong(0), Uri.parse(c.getString(1)),
+            c.getString(2), c.getString(3), c.getLong(4),
+            c.getInt(5) != 0, c.getInt(6));
+    }
+
+    /** Returns the upload job for the given message, or null if not found. */
+    public Job get(long msgId) {
+        Cursor c = null;
+        try {
+            c = getReadableDatabase().query(TABLE_JOBS, JOB_COLUMNS,
+                "msg_id = ?", new String[] { String.valueOf(msgId) },
+                null, null, null);
+            if (c.moveToFirst())
+                return readJob(c);
+        }
+        catch (SQLiteException e) {
+            // ignored
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return null;
+    }
+
+    /**
+     * Registers a new attempt for an upload job, creating the job if needed.
+     * The upload slot will be updated if it changed.
+     * @return the job as it was before this attempt, or null if it's a new job
+     */
+    public Job begin(long msgId, Uri file, String putUrl, String getUrl, long length, boolean tempFile) {
+        Job job = get(msgId);
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            if (job != null) {
+                db.execSQL("UPDATE " + TABLE_JOBS + " SET attempts = attempts + 1, " +
+                        "put_url = ?, get_url = ? WHERE msg_id = ?",
+                    new Object[] { putUrl, getUrl, msgId });
+            }
+            else {
+                ContentValues values = new ContentValues(8);
+                values.put("msg_id", msgId);
+                values.put("file_uri", file.toString());
+                values.put("put_url", putUrl);
+                values.put("get_url", getUrl);
+                values.put("length", length);
+                values.put("temp_file", tempFile);
+                values.put("attempts", 1);
+                values.put("timestamp", System.currentTimeMillis());
+                db.insertOrThrow(TABLE_JOBS, null, values);
+            }
+        }
+        catch (SQLiteException e) {
+            // ignored - upload will not be resumable
+        }
+        return job;
+    }
+
+    /**
+     * Marks the upload slot of a job as not usable any more (e.g. expired).
+     * The file will be uploaded again to a new slot on the next attempt.
+     */
+    public void invalidateSlot(long msgId) {
+        ContentValues values = new ContentValues(2);
+        values.putNull("put_url");
+        values.putNull("get_url");
+        try {
+            getWritableDatabase().update(TABLE_JOBS, values,
+                "msg_id = ?", new String[] { String.valueOf(msgId) });
+        }
+        catch (SQLiteException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * Drops the upload slot of a job so a new one can be requested right
+     * away. The attempt that found the slot expired doesn't count as failed.
+     */
+    public void renewSlot(long msgId) {
+        try {
+            getWritableDatabase().execSQL("UPDATE " + TABLE_JOBS + " SET put_url = NULL, " +
+                    "get_url = NULL, attempts = attempts - 1 WHERE msg_id = ?",
+                new Object[] { msgId });
+        }
+        catch (SQLiteException e) {
+            // ignored
+        }
+    }
+
+    /** Removes an upload job (after completion or if it has to be discarded). */
+    public void remove(long msgId) {
+        try {
+            getWritableDatabase().delete(TABLE_JOBS,
+                "msg_id = ?", new String[] { String.valueOf(msgId) });
+        }
+        catch (SQLiteException e) {
+            // ignored
+        }
+    }
+
+    /** Removes an upload job, deleting also the file to upload if it was a temporary file. */
+    public void discard(Job job) {
+        remove(job.msgId);
+        if (job.tempFile && "file".equals(job.fileUri.getScheme()))
+            new File(job.fileUri.getPath()).delete();
+    }
+
+    /** Discards the upload job of the given message, if any. */
+    public void discard(long msgId) {
+        Job job = get(msgId);
+        if (job != null)
+            discard(job);
+    }
+
+    /** Discards the jobs of messages that don't exist any more. */
+    public void purge(Context context) {
+        List<Job> jobs = new ArrayList<>();
+        Cursor c = null;
+        try {
+            c = getReadableDatabase().query(TABLE_JOBS, JOB_COLUMNS,
+                null, null, null, null, null);
+            while (c.moveToNext())
+                jobs.add(readJob(c));
+        }
+        catch (SQLiteException e) {
+            // ignored
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+
+        for (Job job : jobs) {
+            if (!MessagesProviderUtils.exists(context, job.msgId)) {
+                Log.v(TAG, "discarding upload job for deleted message " + job.msgId);
+                discard(job);
+            }
+        }
+    }
+
+    /** An upload job. */
+    public static final class Job {
+        public final long msgId;
+        public final Uri fileUri;
+        /** Upload slot, null if a new one must be requested. */
+        public final String putUrl;
+        public final String getUrl;
+        public final long length;
+        public final boolean tempFile;
+        public final int attempts;
+
+        Job(long msgId, Uri fileUri, String putUrl, String getUrl,
+                long length, boolean tempFile, int attempts) {
+            this.msgId = msgId;
+            this.fileUri = fileUri;
+            this.putUrl = putUrl;
+            this.getUrl = getUrl;
+            this.length = length;
+            this.tempFile = tempFile;
+            this.attempts = attempts;
+        }
+
+        /** Returns true if the job can still be resumed. */
+        public boolean isResumable() {
+            return attempts < MAX_ATTEMPTS &&
+                (!"file".equals(fileUri.getScheme()) || new File(fileUri.getPath()).isFile());
+        }
+
+        /** Returns true if the upload slot of the previous attempt can be used again. */
+        public boolean hasSlot() {
+            return putUrl != null;
+        }
+    }
+
+}
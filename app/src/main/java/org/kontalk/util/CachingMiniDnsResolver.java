@@ -0,0 +1,185 @@
+/**
+ *
+ * Copyright 2014 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.initializer.SmackInitializer;
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.DNSResolver;
+import org.jivesoftware.smack.util.dns.SRVRecord;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import de.measite.minidns.Client;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.SRV;
+
+
+/**
+ * This implementation uses the <a href="https://github.com/rtreffer/minidns/">minidns</a> implementation for
+ * resolving DNS addresses.
+ * Modified to use our own cache of SRV records, which honours record TTLs and
+ * can be persisted to survive process restarts. It is also compatible with
+ * Android API level 8. If a query fails, expired records are used if available.
+ */
+public class CachingMiniDnsResolver implements SmackInitializer, DNSResolver {
+    private static final String TAG = CachingMiniDnsResolver.class.getSimpleName();
+
+    private static final String PREFS_NAME = "dns_cache";
+
+    /** Records are not cached for longer than this, whatever their TTL. */
+    private static final long MAX_TTL = TimeUnit.DAYS.toMillis(1);
+
+    private static final CachingMiniDnsResolver instance = new CachingMiniDnsResolver();
+    private final Client client;
+
+    private static final class Entry {
+        final List<SRVRecord> records;
+        /** Expiration time (wall clock, since it's persisted). */
+        final long expires;
+
+        Entry(List<SRVRecord> records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private SharedPreferences prefs;
+
+    public CachingMiniDnsResolver() {
+        client = new Client();
+    }
+
+    public static CachingMiniDnsResolver getInstance() {
+        return instance;
+    }
+
+    @Override
+    public List<SRVRecord> lookupSRVRecords(String name) {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(name);
+        if (entry != null && entry.expires > now) {
+            return new LinkedList<SRVRecord>(entry.records);
+        }
+
+        DNSMessage message = client.query(name, TYPE.SRV, CLASS.IN);
+        if (message == null) {
+            if (entry != null) {
+                // better than nothing
+                Log.d(TAG, "SRV query failed, using expired records for " + name);
+                return new LinkedList<SRVRecord>(entry.records);
+            }
+            return new LinkedList<SRVRecord>();
+        }
+
+        List<SRVRecord> res = new ArrayList<SRVRecord>();
+        long ttl = MAX_TTL;
+        for (Record record : message.getAnswers()) {
+            if (!(record.getPayload() instanceof SRV))
+                continue;
+            SRV srv = (SRV) record.getPayload();
+            res.add(new SRVRecord(srv.getName(), srv.getPort(), srv.getPriority(), srv.getWeight()));
+            ttl = Math.min(ttl, TimeUnit.SECONDS.toMillis(record.getTtl()));
+        }
+
+        if (!res.isEmpty() && ttl > 0) {
+            res = Collections.unmodifiableList(res);
+            entry = new Entry(res, now + ttl);
+            cache.put(name, entry);
+            save(name, entry);
+        }
+        return new LinkedList<SRVRecord>(res);
+    }
+
+    /** Loads persisted records and persists the cache from now on. */
+    public synchronized void load(Context context) {
+        if (prefs != null)
+            return;
+
+        prefs = context.getApplicationContext()
+            .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> saved : prefs.getAll().entrySet()) {
+            try {
+                Entry entry = parse(saved.getValue().toString());
+                if (!cache.containsKey(saved.getKey()))
+                    cache.put(saved.getKey(), entry);
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "invalid cache entry for " + saved.getKey());
+            }
+        }
+    }
+
+    private void save(String name, Entry entry) {
+        SharedPreferences p;
+        synchronized (this) {
+            p = prefs;
+        }
+        if (p != null) {
+            p.edit().putString(name, format(entry)).apply();
+        }
+    }
+
+    /** Format: expires;fqdn:port:priority:weight;... */
+    private static String format(Entry entry) {
+        StringBuilder out = new StringBuilder().append(entry.expires);
+        for (SRVRecord record : entry.records) {
+            out.append(';')
+                .append(record.getFQDN()).append(':')
+                .append(record.getPort()).append(':')
+                .append(record.getPriority()).append(':')
+                .append(record.getWeight());
+        }
+        return out.toString();
+    }
+
+    private static Entry parse(String value) {
+        String[] fields = value.split(";");
+        long expires = Long.parseLong(fields[0]);
+        List<SRVRecord> records = new ArrayList<SRVRecord>(fields.length - 1);
+        for (int i = 1; i < fields.length; i++) {
+            String[] record = fields[i].split(":");
+            records.add(new SRVRecord(record[0], Integer.parseInt(record[1]),
+                Integer.parseInt(record[2]), Integer.parseInt(record[3])));
+        }
+        return new Entry(Collections.unmodifiableList(records), expires);
+    }
+
+    public static void setup() {
+        DNSUtil.setDNSResolver(getInstance());
+    }
+
+    @Override
+    public List<Exception> initialize() {
+        setup();
+        return null;
+    }
+
+}
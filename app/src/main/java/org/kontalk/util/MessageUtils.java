@@ -564,6 +564,13 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
+    /**
+     * Encrypts data to a temporary file in the cache directory.
+     * Media can't be encrypted while being uploaded: XEP-0363 upload slots
+     * are requested for the exact length, which for encrypted data is known
+     * only after encrypting (compression, session key and signature lengths
+     * vary). The encrypted file is also what makes uploads resumable.
+     */
     public static File encryptFile(Context context, InputStream in, String[] users)
             throws GeneralSecurityException, IOException, PGPException {
         PersonalKey key = Kontalk.get(context).getPersonalKey();
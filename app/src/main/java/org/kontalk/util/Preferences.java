@@ -25,6 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -526,34 +527,53 @@ public final class Preferences {
             .commit();
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_interval_" + networkType, defaultValue) :
+    public static long getPingAlarmInterval(Context context, String network, long defaultValue) {
+        return (network != null) ?
+            getLong(context, "ping_alarm_interval_" + network, defaultValue) :
             defaultValue;
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
+    public static boolean setPingAlarmInterval(Context context, String network, long intervalMillis) {
+        return network != null && sPreferences.edit()
+            .putLong("ping_alarm_interval_" + network, intervalMillis)
             .commit();
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_backoff_" + networkType, defaultValue) :
+    public static long getPingAlarmBackoff(Context context, String network, long defaultValue) {
+        return (network != null) ?
+            getLong(context, "ping_alarm_backoff_" + network, defaultValue) :
             defaultValue;
     }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+    public static boolean setPingAlarmBackoff(Context context, String network, long intervalMillis) {
+        return network != null && sPreferences.edit()
+            .putLong("ping_alarm_backoff_" + network, intervalMillis)
             .commit();
     }
 
+    /** Largest ping interval known to keep the connection alive on the given network. */
+    public static long getPingSafeInterval(Context context, String network) {
+        return (network != null) ?
+            getLong(context, "ping_safe_interval_" + network, 0) : 0;
+    }
+
+    public static boolean setPingSafeInterval(Context context, String network, long intervalMillis) {
+        return network != null && sPreferences.edit()
+            .putLong("ping_safe_interval_" + network, intervalMillis)
+            .commit();
+    }
+
+    /** Removes the ping intervals learned for the given networks. */
+    public static boolean clearPingIntervals(Context context, Collection<String> networks) {
+        SharedPreferences.Editor editor = sPreferences.edit();
+        for (String network : networks) {
+            editor.remove("ping_alarm_interval_" + network)
+                .remove("ping_alarm_backoff_" + network)
+                .remove("ping_safe_interval_" + network);
+        }
+        return editor.commit();
+    }
+
     /**
      * Saves the current registration progress data. Used for recoverying a
      * registration after a restart or in very low memory situations.
@@ -33,18 +33,25 @@ public class ProgressInputStreamEntity {
     private final InputStream mStream;
     private final UploadConnection mConn;
     private final ProgressListener mListener;
+    private final int mBufferSize;
 
     public ProgressInputStreamEntity(InputStream instream,
             final UploadConnection conn, final ProgressListener listener) {
+        this(instream, conn, listener, BUFFER_SIZE);
+    }
+
+    public ProgressInputStreamEntity(InputStream instream,
+            final UploadConnection conn, final ProgressListener listener, int bufferSize) {
         mStream = instream;
         mConn = conn;
         mListener = listener;
+        mBufferSize = bufferSize;
     }
 
     private void _writeTo(OutputStream outstream) throws IOException {
         InputStream instream = mStream;
         try {
-            final byte[] buffer = new byte[BUFFER_SIZE];
+            final byte[] buffer = new byte[mBufferSize];
             int l;
             while ((l = instream.read(buffer)) != -1) {
                 outstream.write(buffer, 0, l);
@@ -62,8 +69,24 @@ public class ProgressInputStreamEntity {
     }
 
     public void writeTo(final OutputStream outstream) throws IOException {
+        writeTo(outstream, 0);
+    }
+
+    /**
+     * Writes the input stream to the given output stream, skipping the
+     * first <code>offset</code> bytes (e.g. for resuming an upload).
+     * Progress will be reported including the skipped bytes.
+     */
+    public void writeTo(final OutputStream outstream, long offset) throws IOException {
         mListener.start(mConn);
-        _writeTo(new CountingOutputStream(outstream, mConn, mListener));
+        long skipped = 0;
+        while (skipped < offset) {
+            long l = mStream.skip(offset - skipped);
+            if (l <= 0)
+                throw new IOException("unable to skip to offset " + offset);
+            skipped += l;
+        }
+        _writeTo(new CountingOutputStream(outstream, mConn, mListener, offset));
     }
 
     private static final class CountingOutputStream extends FilterOutputStream {
@@ -73,11 +96,11 @@ public class ProgressInputStreamEntity {
         private long transferred;
 
         public CountingOutputStream(OutputStream out, UploadConnection conn,
-            ProgressListener listener) {
+            ProgressListener listener, long offset) {
             super(out);
             this.listener = listener;
             this.conn = conn;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
@@ -19,12 +19,18 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.List;
 
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.service.DownloadListener;
 
 
@@ -35,13 +41,30 @@ public class ProgressOutputStreamEntity {
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
+    /** Bytes already downloaded before this request (for resumed downloads). */
+    private final long mOffset;
 
     public ProgressOutputStreamEntity(HttpURLConnection parent,
             String url, File file, final DownloadListener listener) {
+        this(parent, url, file, listener, 0);
+    }
+
+    /**
+     * @param offset number of bytes already downloaded by a previous request;
+     *               progress will be reported over the whole content
+     */
+    public ProgressOutputStreamEntity(HttpURLConnection parent,
+            String url, File file, final DownloadListener listener, long offset) {
         mParent = parent;
         mUrl = url;
         mFile = file;
         mListener = listener;
+        mOffset = offset;
+    }
+
+    private long getTotalLength() {
+        long length = mParent.getContentLength();
+        return length >= 0 ? length + mOffset : -1;
     }
 
     private void _writeTo(OutputStream outstream) throws IOException {
@@ -65,12 +88,202 @@ public class ProgressOutputStreamEntity {
     }
 
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
+        writeData(outstream);
         String mime = mParent.getContentType();
         mListener.completed(mUrl, mime, mFile);
     }
 
+    /** Like {@link #writeTo} but the completed event is left to the caller. */
+    public void writeData(OutputStream outstream) throws IOException {
+        mListener.start(mUrl, mFile, getTotalLength());
+        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mOffset));
+    }
+
+    /**
+     * Decrypts the incoming stream on the fly into the given output stream.
+     * Progress is reported on the encrypted bytes received. Unlike
+     * {@link #writeTo}, the completed event is left to the caller.
+     */
+    public void decryptTo(OutputStream outstream, Coder coder, List<DecryptException> errors)
+            throws IOException, GeneralSecurityException {
+        decryptTo(outstream, null, null, coder, errors);
+    }
+
+    /**
+     * Decrypts the incoming stream on the fly, resuming a previous download.
+     * @param previous data already downloaded by a previous request, will be
+     *                 decrypted before the incoming stream (may be null)
+     * @param raw if not null, incoming encrypted data will be copied here
+     *            too, for resuming the download later
+     */
+    public void decryptTo(OutputStream outstream, InputStream previous, OutputStream raw,
+            Coder coder, List<DecryptException> errors)
+            throws IOException, GeneralSecurityException {
+        mListener.start(mUrl, mFile, getTotalLength());
+        InputStream instream = new CountingInputStream(mParent.getInputStream(),
+            mUrl, mFile, mListener, mOffset);
+        if (raw != null)
+            instream = new CopyInputStream(instream, raw);
+        if (previous != null)
+            instream = new SequenceInputStream(previous, instream);
+        FailureInputStream tracker = new FailureInputStream(instream);
+        instream = tracker;
+        try {
+            coder.decryptFile(instream, true, outstream, errors);
+        }
+        catch (GeneralSecurityException e) {
+            // the coder wraps stream errors too: report them as I/O errors
+            // so the caller can tell a broken connection from bad data
+            if (tracker.failure != null)
+                throw tracker.failure;
+            throw e;
+        }
+        finally {
+            try {
+                instream.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final DownloadListener listener;
+        private final String url;
+        private final File file;
+        private long transferred;
+
+        public CountingInputStream(final InputStream in,
+                final String url, final File file, final DownloadListener listener,
+                long offset) {
+            super(in);
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.transferred = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int l = in.read(b, off, len);
+            if (l > 0)
+                publishProgress(l);
+            return l;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long l = in.skip(n);
+            if (l > 0)
+                publishProgress(l);
+            return l;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void publishProgress(long add) {
+            this.transferred += add;
+            this.listener.progress(url, file, this.transferred);
+        }
+    }
+
+    /** Remembers the last I/O error thrown while reading. */
+    private static final class FailureInputStream extends FilterInputStream {
+        IOException failure;
+
+        public FailureInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return in.read();
+            }
+            catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return in.read(b, off, len);
+            }
+            catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return in.skip(n);
+            }
+            catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /** Copies everything being read to another output stream. */
+    private static final class CopyInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        public CopyInputStream(final InputStream in, final OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int l = in.read(b, off, len);
+            if (l > 0)
+                copy.write(b, off, l);
+            return l;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must be copied too
+            byte[] buf = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int l = read(buf, 0, buf.length);
+            return l > 0 ? l : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     private static final class CountingOutputStream extends FilterOutputStream {
         private final DownloadListener listener;
         private final String url;
@@ -78,12 +291,13 @@ public class ProgressOutputStreamEntity {
         private long transferred;
 
         public CountingOutputStream(final OutputStream out,
-                final String url, final File file, final DownloadListener listener) {
+                final String url, final File file, final DownloadListener listener,
+                long offset) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
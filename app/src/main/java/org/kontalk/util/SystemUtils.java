@@ -46,6 +46,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.telephony.TelephonyManager;
 import android.support.annotation.ColorRes;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
@@ -180,13 +181,36 @@ public final class SystemUtils {
             .LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
-    /** Returns the type name of the current network, or null. */
-    public static String getCurrentNetworkName(Context context) {
+    /**
+     * Returns an identifier of the current network, or null. For Wi-Fi this
+     * includes the network SSID, for mobile networks the carrier and the radio
+     * access technology.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
 
         NetworkInfo info = connMgr.getActiveNetworkInfo();
-        return info != null ? info.getTypeName() : null;
+        if (info == null)
+            return null;
+
+        StringBuilder id = new StringBuilder(info.getTypeName());
+        if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+            // SSID (might not be available)
+            String ssid = info.getExtraInfo();
+            if (ssid != null && ssid.length() > 0 && !"<unknown ssid>".equals(ssid))
+                id.append('/').append(ssid);
+        }
+        else if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            TelephonyManager telMgr = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+            // MCC+MNC
+            String operator = telMgr != null ? telMgr.getNetworkOperator() : null;
+            if (operator != null && operator.length() > 0)
+                id.append('/').append(operator);
+            id.append('/').append(info.getSubtypeName());
+        }
+        return id.toString();
     }
 
     public static int getCurrentNetworkType(Context context) {
@@ -0,0 +1,45 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ClientHTTPConnectionTest {
+
+    @After
+    public void tearDown() {
+        ClientHTTPConnection.invalidateSSLSocketFactories();
+    }
+
+    @Test
+    public void testSocketFactoryCache() throws Exception {
+        SSLSocketFactory factory = ClientHTTPConnection.setupSSLSocketFactory(null, null, null, true);
+        assertSame(factory, ClientHTTPConnection.setupSSLSocketFactory(null, null, null, true));
+
+        ClientHTTPConnection.invalidateSSLSocketFactories();
+        assertNotSame(factory, ClientHTTPConnection.setupSSLSocketFactory(null, null, null, true));
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.SocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ConnectRaceTest {
+
+    private ServerSocket mServer;
+    private EndpointLatency mLatency;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mLatency = new EndpointLatency();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    /** Returns a local endpoint nobody is listening on. */
+    private static InetSocketAddress closedEndpoint() throws IOException {
+        ServerSocket s = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        InetSocketAddress endpoint = (InetSocketAddress) s.getLocalSocketAddress();
+        s.close();
+        return endpoint;
+    }
+
+    private InetSocketAddress openEndpoint() {
+        return (InetSocketAddress) mServer.getLocalSocketAddress();
+    }
+
+    @Test
+    public void testConnect() throws IOException {
+        InetSocketAddress closed = closedEndpoint();
+        InetSocketAddress open = openEndpoint();
+        ConnectRace race = new ConnectRace(SocketFactory.getDefault(), 5000, 3, mLatency);
+
+        Socket socket = race.connect(Arrays.asList(closed, open));
+        assertTrue(socket.isConnected());
+        assertEquals(open, socket.getRemoteSocketAddress());
+        socket.close();
+
+        assertEquals(EndpointLatency.FAILED, mLatency.get(EndpointLatency.key(closed)));
+        assertTrue(mLatency.get(EndpointLatency.key(open)) >= 0);
+    }
+
+    @Test
+    public void testSequential() throws IOException {
+        InetSocketAddress closed = closedEndpoint();
+        InetSocketAddress open = openEndpoint();
+        ConnectRace race = new ConnectRace(SocketFactory.getDefault(), 5000, 1, mLatency);
+
+        Socket socket = race.connect(Arrays.asList(closed, open));
+        assertEquals(open, socket.getRemoteSocketAddress());
+        socket.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testAllFailed() throws IOException {
+        ConnectRace race = new ConnectRace(SocketFactory.getDefault(), 5000, 3, mLatency);
+        race.connect(Arrays.asList(closedEndpoint(), closedEndpoint()));
+    }
+
+    @Test
+    public void testSort() throws IOException {
+        InetSocketAddress slow = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        InetSocketAddress fast = new InetSocketAddress(InetAddress.getLoopbackAddress(), 2);
+        InetSocketAddress unknown = new InetSocketAddress(InetAddress.getLoopbackAddress(), 3);
+        InetSocketAddress failed = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4);
+        mLatency.record(EndpointLatency.key(slow), 300);
+        mLatency.record(EndpointLatency.key(fast), 20);
+        mLatency.failed(EndpointLatency.key(failed));
+
+        List<InetSocketAddress> sorted = mLatency.sort(Arrays.asList(failed, unknown, slow, fast));
+        assertEquals(Arrays.asList(fast, slow, unknown, failed), sorted);
+
+        // a successful connection clears a failure
+        mLatency.record(EndpointLatency.key(failed), 100);
+        assertEquals(100, mLatency.get(EndpointLatency.key(failed)));
+        // latency is smoothed
+        mLatency.record(EndpointLatency.key(fast), 100);
+        assertEquals(40, mLatency.get(EndpointLatency.key(fast)));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PartialDownloadTest {
+
+    private static final String URL = "https://example.com/download/test";
+
+    private File mBase;
+
+    @Before
+    public void setUp() throws Exception {
+        mBase = File.createTempFile("partial", null);
+        mBase.delete();
+        mBase.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PartialDownload.get(mBase, URL).delete();
+        new File(mBase, ".partial").delete();
+        mBase.delete();
+    }
+
+    /** Fake connection returning canned response headers. */
+    private static final class FakeConnection extends HttpURLConnection {
+        private final Map<String, String> mHeaders = new HashMap<>();
+
+        FakeConnection(int code) throws IOException {
+            super(new URL(URL));
+            responseCode = code;
+        }
+
+        FakeConnection header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    private void writePartial(FakeConnection conn, int length) throws IOException {
+        OutputStream out = PartialDownload.get(mBase, URL).openOutput(conn, 0);
+        out.write(new byte[length]);
+        out.close();
+    }
+
+    @Test
+    public void testResumeRequest() throws Exception {
+        writePartial(new FakeConnection(200).header("ETag", "\"abc\""), 1000);
+
+        PartialDownload partial = PartialDownload.get(mBase, URL);
+        assertEquals(1000, partial.length());
+
+        FakeConnection request = new FakeConnection(0);
+        partial.setupRequest(request);
+        assertEquals("bytes=1000-", request.getRequestProperty("Range"));
+        assertEquals("\"abc\"", request.getRequestProperty("If-Range"));
+
+        FakeConnection response = new FakeConnection(206)
+            .header("Content-Range", "bytes 1000-1999/2000");
+        assertEquals(1000, partial.getResponseOffset(response));
+    }
+
+    @Test
+    public void testRangeIgnored() throws Exception {
+        writePartial(new FakeConnection(200).header("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT"), 1000);
+
+        PartialDownload partial = PartialDownload.get(mBase, URL);
+        assertEquals(1000, partial.length());
+        // full response: data must be downloaded from scratch
+        assertEquals(0, partial.getResponseOffset(new FakeConnection(200)));
+    }
+
+    @Test
+    public void testNoValidator() throws Exception {
+        // weak ETags can't be used with If-Range
+        writePartial(new FakeConnection(200).header("ETag", "W/\"abc\""), 1000);
+
+        PartialDownload partial = PartialDownload.get(mBase, URL);
+        assertFalse(partial.isResumable());
+        assertEquals(0, partial.length());
+
+        FakeConnection request = new FakeConnection(0);
+        partial.setupRequest(request);
+        assertNull(request.getRequestProperty("Range"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnexpectedRange() throws Exception {
+        writePartial(new FakeConnection(200).header("ETag", "\"abc\""), 1000);
+        PartialDownload.get(mBase, URL).getResponseOffset(new FakeConnection(206)
+            .header("Content-Range", "bytes 500-1999/2000"));
+    }
+
+    @Test
+    public void testParseContentRangeStart() {
+        assertEquals(1000, PartialDownload.parseContentRangeStart("bytes 1000-1999/2000"));
+        assertEquals(-1, PartialDownload.parseContentRangeStart("bytes */2000"));
+        assertEquals(-1, PartialDownload.parseContentRangeStart(null));
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SSLContextCacheTest {
+
+    @After
+    public void tearDown() {
+        SSLContextCache.invalidate();
+    }
+
+    @Test
+    public void testContextCache() throws Exception {
+        SSLContext ctx = SSLContextCache.get("TLS", null, null, true, null);
+        assertSame(ctx, SSLContextCache.get("TLS", null, null, true, null));
+
+        SSLContextCache.invalidate();
+        assertNotSame(ctx, SSLContextCache.get("TLS", null, null, true, null));
+    }
+
+    @Test
+    public void testContextKey() throws Exception {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        KeyStore otherTrustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        otherTrustStore.load(null, null);
+
+        SSLContext ctx = SSLContextCache.get("TLS", null, null, false, trustStore);
+        assertSame(ctx, SSLContextCache.get("TLS", null, null, false, trustStore));
+        assertNotSame(ctx, SSLContextCache.get("TLS", null, null, false, otherTrustStore));
+        assertNotSame(ctx, SSLContextCache.get("TLSv1", null, null, false, trustStore));
+
+        // trust store is not used when accepting any certificate
+        ctx = SSLContextCache.get("TLS", null, null, true, null);
+        assertSame(ctx, SSLContextCache.get("TLS", null, null, true, trustStore));
+    }
+
+}
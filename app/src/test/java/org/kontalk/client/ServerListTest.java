@@ -0,0 +1,83 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ServerListTest {
+
+    private ServerList mList;
+
+    @Before
+    public void setUp() {
+        mList = new ServerList(new Date());
+        mList.add(new EndpointServer("beta.kontalk.net"));
+        mList.add(new EndpointServer("prime.kontalk.net|10.0.0.1"));
+        mList.add(new EndpointServer("prime.kontalk.net|10.0.0.2"));
+        mList.add(new EndpointServer("prime.kontalk.net|10.0.0.3"));
+    }
+
+    @After
+    public void tearDown() {
+        EndpointLatency.getInstance().clear();
+    }
+
+    @Test
+    public void testFastestUnknown() {
+        assertNull(mList.fastest());
+        EndpointLatency.getInstance().failed("10.0.0.1");
+        assertNull(mList.fastest());
+    }
+
+    @Test
+    public void testFastestKey() {
+        // latency is recorded under the network when no host is configured
+        EndpointLatency.getInstance().record("beta.kontalk.net", 100);
+        EndpointLatency.getInstance().record("10.0.0.1", 1000);
+        assertEquals("beta.kontalk.net", mList.fastest().getNetwork());
+    }
+
+    @Test
+    public void testFastestTolerance() {
+        EndpointLatency latency = EndpointLatency.getInstance();
+        latency.record("10.0.0.1", 100);
+        latency.record("10.0.0.2", 130);
+        latency.record("10.0.0.3", 500);
+        latency.failed("beta.kontalk.net");
+
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 200; i++)
+            picked.add(mList.fastest().getHost());
+
+        // servers within tolerance share the load
+        assertEquals(2, picked.size());
+        assertTrue(picked.contains("10.0.0.1"));
+        assertTrue(picked.contains("10.0.0.2"));
+    }
+
+}
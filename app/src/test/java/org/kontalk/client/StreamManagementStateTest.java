@@ -0,0 +1,65 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class StreamManagementStateTest {
+
+    @Test
+    public void testExpired() {
+        long now = System.currentTimeMillis();
+        StreamManagementState state = new StreamManagementState("sm1", 10, 20, 300,
+            now, new ArrayList<Stanza>());
+
+        assertFalse(state.isExpired(now));
+        assertFalse(state.isExpired(now + 299000));
+        assertTrue(state.isExpired(now + 301000));
+        // clock went backwards
+        assertTrue(state.isExpired(now - 1000));
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        Message sent = new Message("alice@example.com", "hello");
+        sent.setStanzaId("msg1");
+        StreamManagementState state = new StreamManagementState("sm1", 10, 20, 300,
+            System.currentTimeMillis(), Arrays.<Stanza>asList(sent));
+
+        XMPPTCPConnection conn = new XMPPTCPConnection(XMPPTCPConnectionConfiguration.builder()
+            .setServiceName("example.com")
+            .build());
+        assertFalse(conn.isStanzaUnacknowledged("msg1"));
+
+        conn.restoreStreamManagementState(state);
+        assertTrue(conn.isStanzaUnacknowledged("msg1"));
+        assertFalse(conn.isStanzaUnacknowledged("msg2"));
+        assertFalse(conn.isStanzaUnacknowledged(null));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class UnacknowledgedStanzaQueueTest {
+
+    private static Stanza stanza(String id) {
+        Message msg = new Message("alice@example.com", "hello");
+        msg.setStanzaId(id);
+        return msg;
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        UnacknowledgedStanzaQueue queue = new UnacknowledgedStanzaQueue(10);
+        queue.put(stanza("msg1"));
+        queue.add(stanza("msg2"));
+        queue.offer(stanza("msg2"));
+        assertTrue(queue.containsId("msg1"));
+        assertTrue(queue.containsId("msg2"));
+        assertFalse(queue.containsId("msg3"));
+
+        assertEquals("msg1", queue.poll().getStanzaId());
+        assertFalse(queue.containsId("msg1"));
+        // a duplicate id is still queued
+        assertEquals("msg2", queue.poll().getStanzaId());
+        assertTrue(queue.containsId("msg2"));
+
+        List<Stanza> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained));
+        assertEquals(1, drained.size());
+        assertFalse(queue.containsId("msg2"));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFull() {
+        UnacknowledgedStanzaQueue queue = new UnacknowledgedStanzaQueue(1);
+        assertTrue(queue.offer(stanza("msg1")));
+        assertFalse(queue.offer(stanza("msg2")));
+        assertFalse(queue.containsId("msg2"));
+
+        queue.clear();
+        assertFalse(queue.containsId("msg1"));
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class NotificationDispatcherTest {
+
+    private static final String BASE = "content://org.kontalk.messages/";
+
+    private final List<String> mFired = Collections.synchronizedList(new ArrayList<String>());
+
+    private NotificationDispatcher create(long window, final CountDownLatch fired) {
+        return new NotificationDispatcher(new NotificationDispatcher.Listener() {
+            @Override
+            public void onChange(String uri) {
+                mFired.add(uri);
+                if (fired != null)
+                    fired.countDown();
+            }
+        }, window);
+    }
+
+    @Test
+    public void testParent() {
+        assertEquals(BASE + "messages", NotificationDispatcher.getParent(BASE + "messages/12"));
+        assertNull(NotificationDispatcher.getParent(BASE + "messages"));
+        assertNull(NotificationDispatcher.getParent(BASE + "messages/12?pattern=a/b"));
+        assertNull(NotificationDispatcher.getParent("invalid"));
+    }
+
+    @Test
+    public void testNextFrame() {
+        long frame = NotificationDispatcher.FRAME_INTERVAL;
+        assertEquals(0, NotificationDispatcher.nextFrame(0));
+        assertEquals(frame, NotificationDispatcher.nextFrame(1));
+        assertEquals(frame, NotificationDispatcher.nextFrame(frame));
+        assertEquals(frame * 2, NotificationDispatcher.nextFrame(frame + 1));
+    }
+
+    @Test
+    public void testCollapse() {
+        // children of a notified parent are dropped
+        List<String> uris = NotificationDispatcher.collapse(Arrays.asList(
+            BASE + "messages/1", BASE + "threads/1", BASE + "messages", BASE + "messages/2"));
+        assertEquals(Arrays.asList(BASE + "threads/1", BASE + "messages"), uris);
+
+        // a few children are kept
+        List<String> children = new ArrayList<>();
+        for (int i = 0; i < NotificationDispatcher.MAX_CHILDREN; i++)
+            children.add(BASE + "messages/" + i);
+        assertEquals(children, NotificationDispatcher.collapse(children));
+
+        // many children are collapsed
+        children.add(BASE + "messages/100");
+        children.add(BASE + "conversations/1");
+        assertEquals(Arrays.asList(BASE + "messages", BASE + "conversations/1"),
+            NotificationDispatcher.collapse(children));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        CountDownLatch fired = new CountDownLatch(2);
+        NotificationDispatcher dispatcher = create(50, fired);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.notifyChange(BASE + "threads/1");
+            dispatcher.notifyChange(BASE + "conversations/1");
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        assertEquals(Arrays.asList(BASE + "threads/1", BASE + "conversations/1"), mFired);
+        assertEquals(2, dispatcher.getFiredCount());
+        assertEquals(18, dispatcher.getCoalescedCount());
+    }
+
+    @Test
+    public void testFlush() {
+        NotificationDispatcher dispatcher = create(60000, null);
+        dispatcher.notifyChange(BASE + "messages/1");
+        dispatcher.notifyChange(BASE + "messages/1");
+        assertTrue(mFired.isEmpty());
+        // duplicate was merged already
+        assertEquals(1, dispatcher.getCoalescedCount());
+
+        dispatcher.flush();
+        assertEquals(Collections.singletonList(BASE + "messages/1"), mFired);
+        assertEquals(1, dispatcher.getFiredCount());
+        assertEquals(1, dispatcher.getCoalescedCount());
+
+        // nothing left to send
+        dispatcher.flush();
+        assertEquals(1, mFired.size());
+    }
+
+}
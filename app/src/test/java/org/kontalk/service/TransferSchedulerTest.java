@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TransferSchedulerTest {
+
+    private TransferScheduler mScheduler;
+    private final CountDownLatch mIdle = new CountDownLatch(1);
+    private final List<String> mExecuted = Collections.synchronizedList(new ArrayList<String>());
+
+    private final TransferScheduler.Listener mListener = new TransferScheduler.Listener() {
+        @Override
+        public void onIdle() {
+            mIdle.countDown();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null)
+            mScheduler.shutdown();
+    }
+
+    /** A transfer waiting on a latch before completing. */
+    private class TestTransfer extends TransferScheduler.Transfer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+        volatile boolean aborted;
+        volatile boolean canceled;
+
+        TestTransfer(String key, String url, int priority, CountDownLatch release) {
+            super(key, url, priority);
+            this.release = release;
+        }
+
+        TestTransfer(String key, int priority) {
+            this(key, "https://example.com/" + key, priority, new CountDownLatch(0));
+        }
+
+        @Override
+        public void run() {
+            mExecuted.add(getKey());
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        protected void abort() {
+            aborted = true;
+            release.countDown();
+        }
+
+        @Override
+        protected void onCanceled() {
+            canceled = true;
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        mScheduler = new TransferScheduler("test", 1, 1, mListener);
+        CountDownLatch release = new CountDownLatch(1);
+        TestTransfer blocker = new TestTransfer("blocker", "https://example.com/blocker",
+            TransferScheduler.PRIORITY_NORMAL, release);
+        assertTrue(mScheduler.submit(blocker));
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+
+        mScheduler.submit(new TestTransfer("video", TransferScheduler.PRIORITY_LOW));
+        mScheduler.submit(new TestTransfer("image1", TransferScheduler.PRIORITY_NORMAL));
+        mScheduler.submit(new TestTransfer("voice", TransferScheduler.PRIORITY_HIGH));
+        mScheduler.submit(new TestTransfer("image2", TransferScheduler.PRIORITY_NORMAL));
+        release.countDown();
+
+        assertTrue(mIdle.await(5, TimeUnit.SECONDS));
+        assertEquals(5, mExecuted.size());
+        assertEquals(Arrays.asList("blocker", "voice", "image1", "image2", "video"), mExecuted);
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        mScheduler = new TransferScheduler("test", 3, 1, mListener);
+        CountDownLatch release = new CountDownLatch(1);
+        TestTransfer first = new TestTransfer("first", "https://a.example.com/1",
+            TransferScheduler.PRIORITY_NORMAL, release);
+        TestTransfer second = new TestTransfer("second", "https://a.example.com/2",
+            TransferScheduler.PRIORITY_NORMAL, new CountDownLatch(0));
+        TestTransfer other = new TestTransfer("other", "https://b.example.com/1",
+            TransferScheduler.PRIORITY_NORMAL, new CountDownLatch(0));
+
+        mScheduler.submit(first);
+        mScheduler.submit(second);
+        mScheduler.submit(other);
+
+        // a different host is not blocked
+        assertTrue(other.started.await(5, TimeUnit.SECONDS));
+        // same host must wait for the first transfer
+        assertFalse(second.started.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        assertTrue(mIdle.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        mScheduler = new TransferScheduler("test", 1, 1, mListener);
+        TestTransfer running = new TestTransfer("running", "https://example.com/running",
+            TransferScheduler.PRIORITY_NORMAL, new CountDownLatch(1));
+        TestTransfer pending = new TestTransfer("pending", TransferScheduler.PRIORITY_NORMAL);
+
+        mScheduler.submit(running);
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        mScheduler.submit(pending);
+        // duplicate key
+        assertFalse(mScheduler.submit(new TestTransfer("pending", TransferScheduler.PRIORITY_HIGH)));
+        assertTrue(mScheduler.isQueued("pending"));
+
+        assertTrue(mScheduler.cancel("pending"));
+        assertTrue(pending.canceled);
+        assertFalse(mScheduler.isQueued("pending"));
+
+        assertTrue(mScheduler.cancel("running"));
+        assertTrue(running.aborted);
+        assertTrue(running.isCanceled());
+
+        assertTrue(mIdle.await(5, TimeUnit.SECONDS));
+        assertTrue(mScheduler.isIdle());
+        assertFalse(mExecuted.contains("pending"));
+        assertFalse(mScheduler.cancel("running"));
+    }
+
+    @Test
+    public void testGetPriority() {
+        assertEquals(TransferScheduler.PRIORITY_HIGH,
+            TransferScheduler.getPriority("audio/mp4", 2 * 1024 * 1024));
+        assertEquals(TransferScheduler.PRIORITY_HIGH,
+            TransferScheduler.getPriority("image/jpeg", 50 * 1024));
+        assertEquals(TransferScheduler.PRIORITY_NORMAL,
+            TransferScheduler.getPriority("image/jpeg", 1024 * 1024));
+        assertEquals(TransferScheduler.PRIORITY_NORMAL,
+            TransferScheduler.getPriority(null, -1));
+        assertEquals(TransferScheduler.PRIORITY_LOW,
+            TransferScheduler.getPriority("video/mp4", -1));
+        assertEquals(TransferScheduler.PRIORITY_LOW,
+            TransferScheduler.getPriority("image/jpeg", 20 * 1024 * 1024));
+    }
+
+}
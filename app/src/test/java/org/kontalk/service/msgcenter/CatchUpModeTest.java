@@ -0,0 +1,62 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CatchUpModeTest {
+
+    @Test
+    public void testQuietPeriod() {
+        CatchUpMode mode = new CatchUpMode();
+        assertFalse(mode.onActivity(0));
+        assertFalse(mode.shouldEnd(0));
+
+        mode.begin(1000);
+        assertTrue(mode.isActive());
+        for (int i = 1; i <= 10; i++)
+            assertTrue(mode.onActivity(1000 + i * 100));
+
+        assertFalse(mode.shouldEnd(2000 + CatchUpMode.QUIET_PERIOD - 1));
+        assertTrue(mode.shouldEnd(2000 + CatchUpMode.QUIET_PERIOD));
+
+        assertTrue(mode.end());
+        assertFalse(mode.isActive());
+        assertFalse(mode.end());
+        assertEquals(10, mode.getLastCount());
+        assertEquals(1000, mode.getLastDuration());
+    }
+
+    @Test
+    public void testMaxDuration() {
+        CatchUpMode mode = new CatchUpMode();
+        mode.begin(0);
+        long now = 0;
+        while (now < CatchUpMode.MAX_DURATION) {
+            assertFalse(mode.shouldEnd(now));
+            now += CatchUpMode.QUIET_PERIOD / 2;
+            mode.onActivity(now);
+        }
+        assertTrue(mode.shouldEnd(now));
+    }
+
+}
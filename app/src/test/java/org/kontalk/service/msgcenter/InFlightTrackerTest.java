@@ -0,0 +1,88 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class InFlightTrackerTest {
+
+    @Test
+    public void testLookup() {
+        InFlightTracker tracker = new InFlightTracker(60000);
+        tracker.put("stanza1", 1, true);
+        tracker.put("stanza2", 2, false);
+
+        assertEquals(2, tracker.size());
+        assertTrue(tracker.containsMessage(1));
+        assertEquals(2, tracker.getMessageId("stanza2"));
+        assertEquals(0, tracker.getMessageId("stanza3"));
+        assertEquals(0, tracker.getMessageId(null));
+
+        InFlightTracker.Entry entry = tracker.remove("stanza1");
+        assertEquals(1, entry.msgId);
+        assertTrue(entry.held);
+        assertFalse(tracker.containsMessage(1));
+        assertNull(tracker.remove("stanza1"));
+        assertNull(tracker.remove(null));
+        assertEquals(1, tracker.size());
+
+        // release only entries holding the message center
+        assertFalse(tracker.remove("stanza2").held);
+    }
+
+    @Test
+    public void testReplace() {
+        InFlightTracker tracker = new InFlightTracker(60000);
+        tracker.put("stanza1", 1, true);
+        // message sent again with another stanza
+        tracker.put("stanza2", 1, true);
+
+        assertEquals(1, tracker.size());
+        assertEquals(0, tracker.getMessageId("stanza1"));
+        assertEquals(1, tracker.getMessageId("stanza2"));
+
+        // late ack for the old stanza doesn't affect the new one
+        assertNull(tracker.remove("stanza1"));
+        assertTrue(tracker.containsMessage(1));
+    }
+
+    @Test
+    public void testExpire() {
+        InFlightTracker tracker = new InFlightTracker(1000);
+        tracker.put("stanza1", 1, true);
+        tracker.put("stanza2", 2, false);
+        tracker.put("stanza3", 3, true);
+        tracker.remove("stanza3");
+
+        long now = System.currentTimeMillis();
+        assertEquals(0, tracker.expire(now));
+        assertEquals(2, tracker.size());
+
+        // only entries holding the message center are counted
+        assertEquals(1, tracker.expire(now + 5000));
+        assertEquals(0, tracker.size());
+        assertFalse(tracker.containsMessage(1));
+        assertFalse(tracker.containsMessage(2));
+        assertEquals(0, tracker.expire(now + 5000));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class InboundBatchTest {
+
+    private final List<List<Integer>> mBatches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    private InboundBatch<Integer> create(int maxSize, long maxDelay, final CountDownLatch committed) {
+        return new InboundBatch<>(new InboundBatch.Committer<Integer>() {
+            @Override
+            public void commit(List<Integer> items) {
+                mBatches.add(new ArrayList<>(items));
+                if (committed != null)
+                    committed.countDown();
+            }
+        }, maxSize, maxDelay);
+    }
+
+    @Test
+    public void testMaxSize() {
+        InboundBatch<Integer> batch = create(3, 60000, null);
+        for (int i = 0; i < 7; i++)
+            batch.add(i);
+
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5)), mBatches);
+        assertEquals(1, batch.size());
+
+        batch.flush();
+        assertEquals(3, mBatches.size());
+        assertEquals(Arrays.asList(6), mBatches.get(2));
+        assertEquals(0, batch.size());
+
+        // empty batches are not committed
+        batch.flush();
+        assertEquals(3, mBatches.size());
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        CountDownLatch committed = new CountDownLatch(1);
+        InboundBatch<Integer> batch = create(50, 50, committed);
+        batch.add(1);
+        batch.add(2);
+
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), mBatches);
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void testCommitError() {
+        InboundBatch<Integer> batch = new InboundBatch<>(new InboundBatch.Committer<Integer>() {
+            @Override
+            public void commit(List<Integer> items) {
+                throw new IllegalStateException("test");
+            }
+        }, 2, 60000);
+        batch.add(1);
+        batch.add(2);
+        // failed batch is discarded, next one starts empty
+        assertEquals(0, batch.size());
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class OutboundQueueTest {
+
+    private static final int MESSAGES = 500;
+    private static final int CONVERSATIONS = 10;
+    /** Maximum time the caller (i.e. the main thread) can be blocked. */
+    private static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    /** More than the default, to check ordering between concurrent workers. */
+    private static final int WORKERS = 4;
+    private static final int PRODUCERS = 4;
+
+    private OutboundQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new OutboundQueue(WORKERS);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.shutdown();
+    }
+
+    /** Simulates encryption of a message. */
+    private static void encrypt(int seq) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] data = new byte[64 * 1024];
+            data[0] = (byte) seq;
+            md.update(data);
+            md.digest();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSendMessages() throws Exception {
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        final Map<String, List<Integer>> sent = new HashMap<>();
+        for (int i = 0; i < CONVERSATIONS; i++)
+            sent.put("user" + i + "@kontalk.net", new ArrayList<Integer>());
+
+        long maxBlock = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            final String jid = "user" + (i % CONVERSATIONS) + "@kontalk.net";
+            final int seq = i;
+
+            long start = System.nanoTime();
+            mQueue.execute(jid, new Runnable() {
+                @Override
+                public void run() {
+                    encrypt(seq);
+                    List<Integer> list = sent.get(jid);
+                    synchronized (list) {
+                        list.add(seq);
+                    }
+                    done.countDown();
+                }
+            });
+            // skip first call (class loading)
+            if (i > 0)
+                maxBlock = Math.max(maxBlock, System.nanoTime() - start);
+        }
+
+        assertTrue("caller blocked for " + TimeUnit.NANOSECONDS.toMillis(maxBlock) + " ms",
+            maxBlock < MAX_BLOCK_NANOS);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        // messages in the same conversation must be sent in order
+        for (List<Integer> list : sent.values()) {
+            assertEquals(MESSAGES / CONVERSATIONS, list.size());
+            for (int i = 1; i < list.size(); i++)
+                assertTrue(list.get(i - 1) < list.get(i));
+        }
+
+        // wait for the last task to be cleaned up
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!mQueue.isIdle() && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void testOrderingUnderContention() throws Exception {
+        final int perProducer = MESSAGES / PRODUCERS;
+        final CountDownLatch done = new CountDownLatch(perProducer * PRODUCERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Map<String, List<Integer>> sent = new HashMap<>();
+        final Map<String, AtomicInteger> running = new HashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            sent.put("user" + i + "@kontalk.net", new ArrayList<Integer>());
+            running.put("user" + i + "@kontalk.net", new AtomicInteger());
+        }
+
+        // several threads queue messages for the same conversations at once
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        final String jid = "user" + (i % CONVERSATIONS) + "@kontalk.net";
+                        final int seq = producer * perProducer + i;
+                        mQueue.execute(jid, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (running.get(jid).incrementAndGet() > 1)
+                                    overlaps.incrementAndGet();
+                                encrypt(seq);
+                                List<Integer> list = sent.get(jid);
+                                synchronized (list) {
+                                    list.add(seq);
+                                }
+                                running.get(jid).decrementAndGet();
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        start.countDown();
+        for (Thread t : producers)
+            t.join();
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        // a conversation is never processed by two workers at the same time
+        assertEquals(0, overlaps.get());
+
+        // messages queued by the same thread must be sent in order
+        for (List<Integer> list : sent.values()) {
+            int[] last = new int[PRODUCERS];
+            Arrays.fill(last, -1);
+            for (int seq : list) {
+                int producer = seq / perProducer;
+                assertTrue(seq > last[producer]);
+                last[producer] = seq;
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentConversations() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+
+        // a slow message in one conversation...
+        mQueue.execute("slow@kontalk.net", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        });
+        // ...must not block other conversations
+        mQueue.execute("fast@kontalk.net", new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        blocked.countDown();
+    }
+
+    @Test
+    public void testFailingTask() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        mQueue.execute("user@kontalk.net", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        });
+        // next message in the same conversation must be processed anyway
+        mQueue.execute("user@kontalk.net", new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PingStatisticsTest {
+
+    @Test
+    public void testRecord() {
+        PingStatistics.Record r = new PingStatistics.Record(1000);
+        r.wakeups = 12;
+        r.success = 10;
+        r.failure = 2;
+        r.maxInterval = 270000;
+        r.lastUpdate = 5000;
+
+        PingStatistics.Record parsed = PingStatistics.Record.parse(r.toString());
+        assertEquals(1000, parsed.since);
+        assertEquals(12, parsed.wakeups);
+        assertEquals(10, parsed.success);
+        assertEquals(2, parsed.failure);
+        assertEquals(270000, parsed.maxInterval);
+        assertEquals(5000, parsed.lastUpdate);
+
+        // record without last update
+        parsed = PingStatistics.Record.parse("1000:12:10:2:270000");
+        assertEquals(1000, parsed.lastUpdate);
+    }
+
+    @Test
+    public void testExpired() {
+        long now = PingStatistics.MAX_AGE * 2;
+        Map<String, PingStatistics.Record> records = new HashMap<>();
+        for (int i = 0; i < PingStatistics.MAX_NETWORKS + 2; i++) {
+            PingStatistics.Record r = new PingStatistics.Record(0);
+            r.lastUpdate = now - i * 1000;
+            records.put("wifi/" + i, r);
+        }
+        PingStatistics.Record old = new PingStatistics.Record(0);
+        old.lastUpdate = now - PingStatistics.MAX_AGE - 1;
+        records.put("wifi/old", old);
+
+        List<String> expired = PingStatistics.expired(records, now);
+        // least recently seen networks beyond the limit and the old one
+        assertEquals(3, expired.size());
+        assertTrue(expired.contains("wifi/" + PingStatistics.MAX_NETWORKS));
+        assertTrue(expired.contains("wifi/" + (PingStatistics.MAX_NETWORKS + 1)));
+        assertTrue(expired.contains("wifi/old"));
+    }
+
+    @Test
+    public void testWakeupsPerHour() {
+        PingStatistics.Record r = new PingStatistics.Record(0);
+        assertEquals(0, r.getWakeupsPerHour(0), 0);
+
+        r.wakeups = 6;
+        assertEquals(3, r.getWakeupsPerHour(TimeUnit.HOURS.toMillis(2)), 0.001);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testInvalidRecord() {
+        PingStatistics.Record.parse("1000:12");
+    }
+
+}
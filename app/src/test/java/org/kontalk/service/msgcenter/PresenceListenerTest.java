@@ -0,0 +1,53 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceListenerTest {
+
+    private static Presence presence(String from, Presence.Type type) {
+        Presence p = new Presence(type);
+        p.setFrom(from);
+        return p;
+    }
+
+    @Test
+    public void testCoalesce() {
+        Presence alice1 = presence("alice@example.com/phone", Presence.Type.available);
+        Presence bob = presence("bob@example.com/phone", Presence.Type.available);
+        Presence alice2 = presence("alice@example.com/phone", Presence.Type.unavailable);
+        Presence aliceTablet = presence("alice@example.com/tablet", Presence.Type.available);
+
+        List<Presence> latest = new ArrayList<>(PresenceListener
+            .coalesce(Arrays.asList(alice1, bob, alice2, aliceTablet)));
+
+        // latest presence for each resource, in order of arrival
+        assertEquals(Arrays.asList(bob, alice2, aliceTablet), latest);
+    }
+
+}
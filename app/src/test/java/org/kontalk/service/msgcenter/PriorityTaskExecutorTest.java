@@ -0,0 +1,148 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.kontalk.service.msgcenter.PriorityTaskExecutor.*;
+
+
+public class PriorityTaskExecutorTest {
+
+    private PriorityTaskExecutor mExecutor;
+    private CountDownLatch mBlocker;
+    private CountDownLatch mBlocked;
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = new PriorityTaskExecutor(1, 4);
+        mBlocker = new CountDownLatch(1);
+        mBlocked = new CountDownLatch(1);
+        // occupy the only worker thread
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBlocked.countDown();
+                try {
+                    mBlocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        }, PRIORITY_INFO);
+        assertTrue(mBlocked.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBlocker.countDown();
+        mExecutor.shutdown();
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(name);
+            }
+        };
+    }
+
+    private void drain() throws InterruptedException {
+        mBlocker.countDown();
+        final CountDownLatch done = new CountDownLatch(1);
+        // lowest lane, will run last
+        while (!mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, PRIORITY_INFO)) {
+            Thread.sleep(10);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        assertTrue(mExecutor.execute(task("info"), PRIORITY_INFO));
+        assertTrue(mExecutor.execute(task("presence1"), PRIORITY_PRESENCE));
+        assertTrue(mExecutor.execute(task("key"), PRIORITY_KEY));
+        assertTrue(mExecutor.execute(task("presence2"), PRIORITY_PRESENCE));
+        assertEquals(4, mExecutor.getQueueDepth());
+
+        drain();
+        assertEquals(Arrays.asList("key", "presence1", "presence2", "info"), mOrder);
+        assertEquals(1, mExecutor.getCompletedCount(PRIORITY_KEY));
+        assertEquals(2, mExecutor.getCompletedCount(PRIORITY_PRESENCE));
+        assertEquals(4, mExecutor.getMaxQueueDepth());
+    }
+
+    @Test
+    public void testFullQueue() throws Exception {
+        for (int i = 0; i < 3; i++)
+            assertTrue(mExecutor.execute(task("presence" + i), PRIORITY_PRESENCE));
+        assertTrue(mExecutor.execute(task("info"), PRIORITY_INFO));
+
+        // lower lanes are dropped
+        assertFalse(mExecutor.execute(task("info2"), PRIORITY_INFO));
+        assertEquals(1, mExecutor.getDroppedCount(PRIORITY_INFO));
+
+        // higher lanes evict lower ones
+        assertTrue(mExecutor.execute(task("presence3"), PRIORITY_PRESENCE));
+        assertEquals(2, mExecutor.getDroppedCount(PRIORITY_INFO));
+        assertFalse(mExecutor.execute(task("presence4"), PRIORITY_PRESENCE));
+        assertEquals(1, mExecutor.getDroppedCount(PRIORITY_PRESENCE));
+
+        // key requests are never lost: they run on the caller thread
+        final Thread caller = Thread.currentThread();
+        final Thread[] runner = new Thread[1];
+        assertTrue(mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runner[0] = Thread.currentThread();
+            }
+        }, PRIORITY_KEY));
+        assertSame(caller, runner[0]);
+        assertEquals(1, mExecutor.getCallerRunsCount(PRIORITY_KEY));
+
+        drain();
+        assertEquals(Arrays.asList("presence0", "presence1", "presence2", "presence3"), mOrder);
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        mExecutor.shutdown();
+        assertFalse(mExecutor.execute(task("key"), PRIORITY_KEY));
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(mOrder.isEmpty());
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import org.kontalk.service.ProgressListener;
+
+import static org.junit.Assert.*;
+
+
+public class HTPPFileUploadConnectionTest {
+
+    private static final char[] KEYSTORE_PASSWORD = "test".toCharArray();
+
+    private HttpsServer mServer;
+    private SSLContext mClientContext;
+    private final AtomicLong mReceived = new AtomicLong();
+
+    /** Data stored by the resumable endpoint so far. */
+    private long mStored;
+    private final CRC32 mStoredChecksum = new CRC32();
+
+    @Before
+    public void setUp() throws Exception {
+        // self-signed certificate for the stand-in server
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair keyPair = kpg.generateKeyPair();
+        X500Name name = new X500Name("CN=localhost");
+        Date now = new Date();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+            new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(now.getTime() - 86400000L), new Date(now.getTime() + 86400000L),
+                name, keyPair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256WithRSA").build(keyPair.getPrivate())));
+
+        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keystore.load(null, null);
+        keystore.setKeyEntry("server", keyPair.getPrivate(), KEYSTORE_PASSWORD,
+            new Certificate[] { cert });
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, KEYSTORE_PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        mServer = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    mReceived.addAndGet(l);
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        // expired upload slot
+        mServer.createContext("/expired", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                while (in.read(buf) != -1);
+                exchange.sendResponseHeaders(403, -1);
+                exchange.close();
+            }
+        });
+        // endpoint supporting resumable uploads
+        mServer.createContext("/resumable", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Content-Range");
+                // streaming requests can't be retried on a stale kept-alive
+                // connection, and this server might drop it after a 308
+                exchange.getResponseHeaders().set("Connection", "close");
+                synchronized (HTPPFileUploadConnectionTest.this) {
+                    if (range == null) {
+                        // new upload
+                        mStored = 0;
+                        mStoredChecksum.reset();
+                    }
+                    else if (range.startsWith("bytes */")) {
+                        // upload status query
+                        if (mStored > 0)
+                            exchange.getResponseHeaders().set("Range", "bytes=0-" + (mStored - 1));
+                        exchange.sendResponseHeaders(308, -1);
+                        exchange.close();
+                        return;
+                    }
+                    else {
+                        long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+                        if (start != mStored) {
+                            exchange.sendResponseHeaders(416, -1);
+                            exchange.close();
+                            return;
+                        }
+                    }
+
+                    InputStream in = exchange.getRequestBody();
+                    byte[] buf = new byte[8192];
+                    int l;
+                    while ((l = in.read(buf)) != -1) {
+                        mStoredChecksum.update(buf, 0, l);
+                        mStored += l;
+                    }
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+        mClientContext = SSLContext.getInstance("TLS");
+        mClientContext.init(null, new TrustManager[] {
+            new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+            }
+        }, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+    }
+
+    private String getUrl(String path) {
+        return "https://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private static final HostnameVerifier ANY_HOSTNAME = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    private HttpsURLConnection openConnection() throws IOException {
+        return openConnection("/upload");
+    }
+
+    private HttpsURLConnection openConnection(String path) throws IOException {
+        HttpsURLConnection conn = (HttpsURLConnection) new URL(getUrl(path)).openConnection();
+        conn.setSSLSocketFactory(mClientContext.getSocketFactory());
+        conn.setHostnameVerifier(ANY_HOSTNAME);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("PUT");
+        return conn;
+    }
+
+    /**
+     * Uploads the given stream through {@link HTPPFileUploadConnection}.
+     * @return the number of bytes reported as sent to the progress listener
+     */
+    private long upload(HTPPFileUploadConnection conn, InputStream in, long length) throws IOException {
+        final AtomicLong sent = new AtomicLong();
+        try {
+            conn.upload(in, length, null, mClientContext.getSocketFactory(), ANY_HOSTNAME,
+                new ProgressListener() {
+                    @Override
+                    public void start(UploadConnection conn) {
+                    }
+
+                    @Override
+                    public void progress(UploadConnection conn, long bytes) {
+                        sent.set(bytes);
+                    }
+                });
+        }
+        finally {
+            in.close();
+        }
+        return sent.get();
+    }
+
+    private long upload(File file, long length) throws IOException {
+        return upload(new HTPPFileUploadConnection(null, getUrl("/upload")),
+            new FileInputStream(file), length);
+    }
+
+    /** Uploads the data to the resumable endpoint. */
+    private long uploadResumable(byte[] data, boolean resume) throws IOException {
+        HTPPFileUploadConnection conn = new HTPPFileUploadConnection(null, getUrl("/resumable"));
+        conn.setResume(resume);
+        return upload(conn, new ByteArrayInputStream(data), data.length);
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /** Uploads a (sparse) file much bigger than the heap: it would run out of memory if buffered. */
+    private File createHugeFile() throws IOException {
+        long size = Runtime.getRuntime().maxMemory() * 4;
+        File file = File.createTempFile("upload", null);
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        raf.close();
+        return file;
+    }
+
+    @Test
+    public void testFixedLengthUpload() throws Exception {
+        File file = createHugeFile();
+        try {
+            long length = file.length();
+            assertEquals(length, upload(file, length));
+            assertEquals(length, mReceived.get());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testChunkedUpload() throws Exception {
+        File file = createHugeFile();
+        try {
+            long length = file.length();
+            assertEquals(length, upload(file, -1));
+            assertEquals(length, mReceived.get());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testResumeUpload() throws Exception {
+        byte[] data = createData(100000);
+        byte[] partial = new byte[30000];
+        System.arraycopy(data, 0, partial, 0, partial.length);
+        // interrupted upload: the server got only part of the data
+        uploadResumable(partial, false);
+
+        long offset = HTPPFileUploadConnection
+            .queryUploadOffset(openConnection("/resumable"), data.length);
+        assertEquals(partial.length, offset);
+
+        // progress is reported over the whole file
+        assertEquals(data.length, uploadResumable(data, true));
+
+        CRC32 expected = new CRC32();
+        expected.update(data);
+        synchronized (this) {
+            assertEquals(data.length, mStored);
+            assertEquals(expected.getValue(), mStoredChecksum.getValue());
+        }
+    }
+
+    @Test
+    public void testResumeNotSupported() throws Exception {
+        // server doesn't know about Content-Range: upload must restart with a new slot
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT, HTPPFileUploadConnection
+            .queryUploadOffset(openConnection(), 100000));
+    }
+
+    @Test
+    public void testResumeNewSlot() throws Exception {
+        HTPPFileUploadConnection conn = new HTPPFileUploadConnection(null, getUrl("/upload"));
+        conn.setResume(true);
+        try {
+            upload(conn, new ByteArrayInputStream(createData(1000)), 1000);
+            fail("upload to a non-resumable slot succeeded");
+        }
+        catch (IOException expected) {
+        }
+        assertTrue(conn.needsNewSlot());
+        // nothing should have been sent
+        assertEquals(0, mReceived.get());
+    }
+
+    @Test
+    public void testExpiredSlot() throws Exception {
+        HTPPFileUploadConnection conn = new HTPPFileUploadConnection(null, getUrl("/expired"));
+        try {
+            upload(conn, new ByteArrayInputStream(createData(1000)), 1000);
+            fail("upload to an expired slot succeeded");
+        }
+        catch (IOException expected) {
+        }
+        assertTrue(conn.needsNewSlot());
+    }
+
+    @Test
+    public void testResumeOffset() throws Exception {
+        // partial data on server
+        assertEquals(30000, HTPPFileUploadConnection.resumeOffset(308, "bytes=0-29999", 100000));
+        // no data on server yet
+        assertEquals(0, HTPPFileUploadConnection.resumeOffset(308, null, 100000));
+        // invalid or inconsistent ranges
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT,
+            HTPPFileUploadConnection.resumeOffset(308, "garbage", 100000));
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT,
+            HTPPFileUploadConnection.resumeOffset(308, "bytes=0-99999", 100000));
+        // slot expired or not valid
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT,
+            HTPPFileUploadConnection.resumeOffset(403, null, 100000));
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT,
+            HTPPFileUploadConnection.resumeOffset(404, null, 100000));
+        // unknown response
+        assertEquals(HTPPFileUploadConnection.OFFSET_NEW_SLOT,
+            HTPPFileUploadConnection.resumeOffset(200, null, 100000));
+    }
+
+    @Test(expected = IOException.class)
+    public void testResumeOffsetServerError() throws Exception {
+        HTPPFileUploadConnection.resumeOffset(503, null, 100000);
+    }
+
+    @Test
+    public void testParseRangeEnd() {
+        assertEquals(29999, HTPPFileUploadConnection.parseRangeEnd("bytes=0-29999"));
+        assertEquals(-1, HTPPFileUploadConnection.parseRangeEnd(null));
+        assertEquals(-1, HTPPFileUploadConnection.parseRangeEnd("garbage"));
+    }
+
+}